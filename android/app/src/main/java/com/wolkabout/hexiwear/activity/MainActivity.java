@@ -61,6 +61,8 @@ import org.androidannotations.annotations.Receiver;
 import org.androidannotations.annotations.ViewById;
 import org.androidannotations.annotations.sharedpreferences.Pref;
 
+import java.util.List;
+
 @OptionsMenu(R.menu.menu_main)
 @EActivity(R.layout.activity_main)
 public class MainActivity extends AppCompatActivity implements ServiceConnection {
@@ -174,14 +176,15 @@ public class MainActivity extends AppCompatActivity implements ServiceConnection
     public void onServiceConnected(ComponentName name, IBinder service) {
         final BluetoothService.ServiceBinder binder = (BluetoothService.ServiceBinder) service;
         final BluetoothService bluetoothService = binder.getService();
-        final BluetoothDevice currentDevice = bluetoothService.getCurrentDevice();
-        if (currentDevice != null) {
-            ReadingsActivity_.intent(this).device(currentDevice).flags(Intent.FLAG_ACTIVITY_NEW_TASK).start();
+        final List<BluetoothDevice> devices = bluetoothService.getDevices();
+        for (BluetoothDevice device : devices) {
             final BluetoothDeviceWrapper wrapper = new BluetoothDeviceWrapper();
-            wrapper.setDevice(currentDevice);
+            wrapper.setDevice(device);
             wrapper.setSignalStrength(-65);
             adapter.add(wrapper);
-
+        }
+        if (!devices.isEmpty()) {
+            ReadingsActivity_.intent(this).device(devices.get(0)).flags(Intent.FLAG_ACTIVITY_NEW_TASK).start();
         }
 
         unbindService(this);
@@ -24,8 +24,8 @@ import android.app.ProgressDialog;
 import android.bluetooth.BluetoothDevice;
 import android.content.ComponentName;
 import android.content.DialogInterface;
-import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
 import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
@@ -41,13 +41,13 @@ import com.wolkabout.hexiwear.R;
 import com.wolkabout.hexiwear.model.Characteristic;
 import com.wolkabout.hexiwear.model.HexiwearDevice;
 import com.wolkabout.hexiwear.model.Mode;
+import com.wolkabout.hexiwear.model.Sample;
 import com.wolkabout.hexiwear.service.BluetoothService;
 import com.wolkabout.hexiwear.service.BluetoothService_;
+import com.wolkabout.hexiwear.service.DeviceSession;
 import com.wolkabout.hexiwear.util.Dialog;
 import com.wolkabout.hexiwear.util.HexiwearDevices;
 import com.wolkabout.hexiwear.view.Reading;
-import com.wolkabout.hexiwear.view.SingleReading;
-import com.wolkabout.hexiwear.view.TripleReading;
 import com.wolkabout.wolkrestandroid.Credentials_;
 
 import org.androidannotations.annotations.AfterInject;
@@ -62,13 +62,16 @@ import org.androidannotations.annotations.ViewById;
 import org.androidannotations.annotations.sharedpreferences.Pref;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @EActivity(R.layout.activity_readings)
 @OptionsMenu(R.menu.menu_readings)
 public class ReadingsActivity extends AppCompatActivity implements ServiceConnection {
 
     private static final String TAG = ReadingsActivity.class.getSimpleName();
+    private static final Characteristic[] CHARACTERISTICS = Characteristic.values();
+    // Samples arriving within this long of each other are shown in one pass over the views.
+    private static final long REFRESH_INTERVAL_MILLIS = 33;
 
     @Extra
     BluetoothDevice device;
@@ -79,39 +82,6 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
     @ViewById
     Toolbar toolbar;
 
-    @ViewById
-    SingleReading readingBattery;
-
-    @ViewById
-    SingleReading readingTemperature;
-
-    @ViewById
-    SingleReading readingHumidity;
-
-    @ViewById
-    SingleReading readingPressure;
-
-    @ViewById
-    SingleReading readingHeartRate;
-
-    @ViewById
-    SingleReading readingLight;
-
-    @ViewById
-    SingleReading readingSteps;
-
-    @ViewById
-    SingleReading readingCalories;
-
-    @ViewById
-    TripleReading readingAcceleration;
-
-    @ViewById
-    TripleReading readingMagnet;
-
-    @ViewById
-    TripleReading readingGyro;
-
     @ViewById
     TextView connectionStatus;
 
@@ -133,10 +103,21 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
     private ProgressDialog progressDialog;
     private HexiwearDevice hexiwearDevice;
     private BluetoothService bluetoothService;
+    private DeviceSession session;
     private boolean isBound;
     private Mode mode = Mode.IDLE;
     private boolean shouldUnpair;
 
+    private final Handler handler = new Handler();
+    private final Reading[] readingViews = new Reading[CHARACTERISTICS.length];
+    private final AtomicBoolean refreshPosted = new AtomicBoolean();
+    // Written by the session's ingest thread, guarded by itself.
+    private final Sample[] latestSamples = createSamples();
+    private final boolean[] pendingSamples = new boolean[CHARACTERISTICS.length];
+    // Only touched on the UI thread.
+    private final Sample[] shownSamples = createSamples();
+    private final boolean[] samplesToShow = new boolean[CHARACTERISTICS.length];
+
     @AfterInject
     void startService() {
         hexiwearDevice = hexiwearDevices.getDevice(device.getAddress());
@@ -151,6 +132,10 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
         toolbar.setTitle(hexiwearDevice.getWolkName());
         setSupportActionBar(toolbar);
         progressBar.setVisibility(View.VISIBLE);
+        for (int i = 0; i < readings.getChildCount(); i++) {
+            final Reading reading = (Reading) readings.getChildAt(i);
+            readingViews[reading.getReadingType().ordinal()] = reading;
+        }
     }
 
     @Override
@@ -162,7 +147,15 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
     }
 
     @Receiver(actions = BluetoothService.MODE_CHANGED, local = true)
-    void onModeChanged(@Receiver.Extra final Mode mode) {
+    void onModeChanged(@Receiver.Extra final Mode mode, @Receiver.Extra final String deviceAddress) {
+        if (isForOtherDevice(deviceAddress)) {
+            return;
+        }
+
+        onModeChanged(mode);
+    }
+
+    private void onModeChanged(final Mode mode) {
         this.mode = mode;
         connectionStatus.setText(mode.getStringResource());
 
@@ -173,9 +166,9 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
         setReadingVisibility(mode);
     }
 
-    @Receiver(actions = BluetoothService.BLUETOOTH_SERVICE_STOPPED, local = true)
-    void onBluetoothServiceDestroyed() {
-        if (!shouldUnpair) {
+    @Receiver(actions = BluetoothService.SESSION_CLOSED, local = true)
+    void onSessionClosed(@Receiver.Extra final String deviceAddress) {
+        if (!shouldUnpair || isForOtherDevice(deviceAddress)) {
             return;
         }
 
@@ -193,8 +186,8 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
     }
 
     @Receiver(actions = BluetoothService.SHOW_TIME_PROGRESS, local = true)
-    void showProgressForSettingTime() {
-        if (progressBar == null) {
+    void showProgressForSettingTime(@Receiver.Extra final String deviceAddress) {
+        if (progressBar == null || isForOtherDevice(deviceAddress)) {
             return;
         }
 
@@ -202,21 +195,25 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
     }
 
     @Receiver(actions = BluetoothService.HIDE_TIME_PROGRESS, local = true)
-    void hideProgressForSettingTime() {
-        if (progressBar == null) {
+    void hideProgressForSettingTime(@Receiver.Extra final String deviceAddress) {
+        if (progressBar == null || isForOtherDevice(deviceAddress)) {
             return;
         }
 
         progressBar.setVisibility(View.INVISIBLE);
     }
 
+    private boolean isForOtherDevice(final String deviceAddress) {
+        return !device.getAddress().equals(deviceAddress);
+    }
+
     private void setReadingVisibility(final Mode mode) {
-        final Map<String, Boolean> displayPreferences = hexiwearDevices.getDisplayPreferences(device.getAddress());
+        final boolean[] displayPreferences = hexiwearDevices.getDisplayPreferences(device.getAddress());
         for (int i = 0; i < readings.getChildCount(); i++) {
             final Reading reading = (Reading) readings.getChildAt(i);
             final Characteristic readingType = reading.getReadingType();
-            final boolean readingEnabled = displayPreferences.get(readingType.name());
-            reading.setVisibility(readingEnabled && mode.hasCharacteristic(readingType) ? View.VISIBLE : View.GONE);
+            final boolean readingEnabled = displayPreferences[readingType.ordinal()];
+            reading.setVisibility(readingEnabled && mode.hasReading(readingType) ? View.VISIBLE : View.GONE);
         }
     }
 
@@ -224,10 +221,10 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
     public void onServiceConnected(final ComponentName name, final IBinder service) {
         final BluetoothService.ServiceBinder binder = (BluetoothService.ServiceBinder) service;
         bluetoothService = binder.getService();
-        if (!bluetoothService.isConnected()) {
-            bluetoothService.startReading(device);
-        }
-        final Mode mode = bluetoothService.getCurrentMode();
+        session = bluetoothService.startReading(device);
+        session.addSampleListener(sampleListener);
+        session.requestFreshReadings();
+        final Mode mode = session.getCurrentMode();
         if (mode != null) {
             onModeChanged(mode);
         }
@@ -240,6 +237,10 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
 
     @Override
     protected void onDestroy() {
+        if (session != null) {
+            session.removeSampleListener(sampleListener);
+        }
+        handler.removeCallbacks(refreshReadings);
         if (isBound) {
             unbindService(this);
             isBound = false;
@@ -248,79 +249,73 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
     }
 
     @Receiver(actions = BluetoothService.ACTION_NEEDS_BOND, local = true)
-    void onBondRequested() {
+    void onBondRequested(@Receiver.Extra final String deviceAddress) {
+        if (isForOtherDevice(deviceAddress)) {
+            return;
+        }
+
         connectionStatus.setText(R.string.discovery_pairing);
         Snackbar.make(coordinator, R.string.discovery_pairing, Snackbar.LENGTH_LONG).show();
     }
 
     @Receiver(actions = BluetoothService.CONNECTION_STATE_CHANGED, local = true)
-    void onConnectionStateChanged(@Receiver.Extra final boolean connectionState) {
+    void onConnectionStateChanged(@Receiver.Extra final boolean connectionState, @Receiver.Extra final String deviceAddress) {
+        if (isForOtherDevice(deviceAddress)) {
+            return;
+        }
+
         connectionStatus.setText(connectionState ? R.string.readings_connection_connected : R.string.readings_connection_reconnecting);
     }
 
-    @Receiver(actions = BluetoothService.DATA_AVAILABLE, local = true)
-    void onDataAvailable(Intent intent) {
-        progressBar.setVisibility(View.INVISIBLE);
-
-        final String uuid = intent.getStringExtra(BluetoothService.READING_TYPE);
-        final String data = intent.getStringExtra(BluetoothService.STRING_DATA);
+    private final DeviceSession.SampleListener sampleListener = new DeviceSession.SampleListener() {
+        @Override
+        public void onSample(final Sample sample) {
+            synchronized (latestSamples) {
+                final int index = sample.getCharacteristicOrdinal();
+                latestSamples[index].copyFrom(sample);
+                pendingSamples[index] = true;
+            }
 
-        if (data.isEmpty()) {
-            return;
+            if (refreshPosted.compareAndSet(false, true)) {
+                handler.postDelayed(refreshReadings, REFRESH_INTERVAL_MILLIS);
+            }
         }
+    };
+
+    private final Runnable refreshReadings = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, anything arriving while the views are updated gets another pass.
+            refreshPosted.set(false);
+            synchronized (latestSamples) {
+                for (int i = 0; i < CHARACTERISTICS.length; i++) {
+                    if (pendingSamples[i]) {
+                        pendingSamples[i] = false;
+                        shownSamples[i].copyFrom(latestSamples[i]);
+                        samplesToShow[i] = true;
+                    }
+                }
+            }
 
-        final Characteristic characteristic = Characteristic.byUuid(uuid);
-        if (characteristic == null) {
-            Log.w(TAG, "UUID " + uuid + " is unknown. Skipping.");
-            return;
+            progressBar.setVisibility(View.INVISIBLE);
+            for (int i = 0; i < CHARACTERISTICS.length; i++) {
+                if (samplesToShow[i]) {
+                    samplesToShow[i] = false;
+                    final Reading reading = readingViews[i];
+                    if (reading != null) {
+                        reading.setSample(shownSamples[i]);
+                    }
+                }
+            }
         }
+    };
 
-        switch (characteristic) {
-            case BATTERY:
-                readingBattery.setValue(data);
-                break;
-            case TEMPERATURE:
-                readingTemperature.setValue(data);
-                break;
-            case HUMIDITY:
-                readingHumidity.setValue(data);
-                break;
-            case PRESSURE:
-                readingPressure.setValue(data);
-                break;
-            case HEARTRATE:
-                readingHeartRate.setValue(data);
-                break;
-            case LIGHT:
-                readingLight.setValue(data);
-                break;
-            case STEPS:
-                readingSteps.setValue(data);
-                break;
-            case CALORIES:
-                readingCalories.setValue(data);
-                break;
-            case ACCELERATION:
-                final String[] accelerationReadings = data.split(";");
-                readingAcceleration.setFirstValue(accelerationReadings[0]);
-                readingAcceleration.setSecondValue(accelerationReadings[1]);
-                readingAcceleration.setThirdValue(accelerationReadings[2]);
-                break;
-            case MAGNET:
-                final String[] magnetReadings = data.split(";");
-                readingMagnet.setFirstValue(magnetReadings[0]);
-                readingMagnet.setSecondValue(magnetReadings[1]);
-                readingMagnet.setThirdValue(magnetReadings[2]);
-                break;
-            case GYRO:
-                final String[] gyroscopeReadings = data.split(";");
-                readingGyro.setFirstValue(gyroscopeReadings[0]);
-                readingGyro.setSecondValue(gyroscopeReadings[1]);
-                readingGyro.setThirdValue(gyroscopeReadings[2]);
-                break;
-            default:
-                break;
+    private static Sample[] createSamples() {
+        final Sample[] samples = new Sample[CHARACTERISTICS.length];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new Sample();
         }
+        return samples;
     }
 
     @Receiver(actions = BluetoothService.STOP)
@@ -339,12 +334,12 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
 
     @OptionsItem
     void openSettings() {
-        SettingsActivity_.intent(this).device(hexiwearDevice).manufacturerInfo(bluetoothService.getManufacturerInfo()).start();
+        SettingsActivity_.intent(this).device(hexiwearDevice).manufacturerInfo(session.getManufacturerInfo()).start();
     }
 
     @OptionsItem
     void setTime() {
-        bluetoothService.setTime();
+        session.setTime();
     }
 
     @OptionsItem
@@ -355,7 +350,7 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
 
         hexiwearDevices.toggleTracking(device);
         final boolean shouldTransmit = hexiwearDevices.shouldTransmit(device);
-        bluetoothService.setTracking(shouldTransmit);
+        session.setTracking(shouldTransmit);
         supportInvalidateOptionsMenu();
     }
 
@@ -373,11 +368,16 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
 
     private void stopBluetoothServiceAndUnpair() {
         shouldUnpair = true;
-        if (isBound) {
-            unbindService(this);
-            isBound = false;
+        stopReading();
+    }
+
+    private void stopReading() {
+        if (bluetoothService != null) {
+            // Other devices keep their sessions, the service stops itself once none are left.
+            bluetoothService.stopReading(device);
+        } else {
+            BluetoothService_.intent(this).stop();
         }
-        BluetoothService_.intent(this).stop();
     }
 
     @Override
@@ -385,7 +385,7 @@ public class ReadingsActivity extends AppCompatActivity implements ServiceConnec
         if (isTaskRoot()) {
             MainActivity_.intent(this).start();
         }
-        BluetoothService_.intent(this).stop();
+        stopReading();
         super.onBackPressed();
     }
 
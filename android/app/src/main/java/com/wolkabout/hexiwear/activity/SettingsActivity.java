@@ -20,12 +20,17 @@
 
 package com.wolkabout.hexiwear.activity;
 
+import android.content.ComponentName;
+import android.content.ServiceConnection;
+import android.os.IBinder;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 
 import com.wolkabout.hexiwear.R;
 import com.wolkabout.hexiwear.model.HexiwearDevice;
 import com.wolkabout.hexiwear.model.ManufacturerInfo;
+import com.wolkabout.hexiwear.service.BluetoothService;
+import com.wolkabout.hexiwear.service.BluetoothService_;
 
 import org.androidannotations.annotations.AfterViews;
 import org.androidannotations.annotations.EActivity;
@@ -33,7 +38,7 @@ import org.androidannotations.annotations.Extra;
 import org.androidannotations.annotations.ViewById;
 
 @EActivity(R.layout.activity_settings)
-public class SettingsActivity extends AppCompatActivity {
+public class SettingsActivity extends AppCompatActivity implements ServiceConnection {
 
     @Extra
     public HexiwearDevice device;
@@ -44,9 +49,46 @@ public class SettingsActivity extends AppCompatActivity {
     @ViewById
     Toolbar toolbar;
 
+    private BluetoothService bluetoothService;
+    private boolean isBound;
+
     @AfterViews
     void setToolbar() {
         setSupportActionBar(toolbar);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Only attaches to a running service, settings alone shouldn't start reading.
+        isBound = bindService(BluetoothService_.intent(this).get(), this, 0);
+    }
+
+    @Override
+    protected void onStop() {
+        if (isBound) {
+            unbindService(this);
+            isBound = false;
+        }
+        bluetoothService = null;
+        super.onStop();
+    }
+
+    @Override
+    public void onServiceConnected(final ComponentName name, final IBinder service) {
+        bluetoothService = ((BluetoothService.ServiceBinder) service).getService();
+    }
+
+    @Override
+    public void onServiceDisconnected(final ComponentName name) {
+        bluetoothService = null;
+    }
+
+    /**
+     * @return the service if it's running, null otherwise.
+     */
+    public BluetoothService getBluetoothService() {
+        return bluetoothService;
+    }
+
 }
@@ -20,31 +20,51 @@
 
 package com.wolkabout.hexiwear.fragment;
 
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.preference.SwitchPreference;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
+import android.widget.Toast;
 
 import com.wolkabout.hexiwear.BuildConfig;
 import com.wolkabout.hexiwear.R;
 import com.wolkabout.hexiwear.activity.SettingsActivity;
+import com.wolkabout.hexiwear.model.Characteristic;
 import com.wolkabout.hexiwear.model.HexiwearDevice;
+import com.wolkabout.hexiwear.model.PayloadFormat;
 import com.wolkabout.hexiwear.service.BluetoothService;
 import com.wolkabout.hexiwear.service.BluetoothService_;
+import com.wolkabout.hexiwear.service.LinkMetrics;
 import com.wolkabout.hexiwear.util.HexiwearDevices;
+import com.wolkabout.hexiwear.util.PublishQueue;
+import com.wolkabout.hexiwear.util.ReadingAggregator;
 import com.wolkabout.wolkrestandroid.Credentials_;
 
 import org.androidannotations.annotations.AfterPreferences;
+import org.androidannotations.annotations.Background;
 import org.androidannotations.annotations.Bean;
 import org.androidannotations.annotations.EFragment;
 import org.androidannotations.annotations.PreferenceByKey;
+import org.androidannotations.annotations.PreferenceClick;
 import org.androidannotations.annotations.PreferenceScreen;
+import org.androidannotations.annotations.UiThread;
 import org.androidannotations.annotations.sharedpreferences.Pref;
 
-import java.util.Map;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 
 
 @PreferenceScreen(R.xml.pref_hexiwear_settings)
@@ -52,6 +72,8 @@ import java.util.Map;
 public class HexiwearSettingsFragment extends PreferenceFragment implements SharedPreferences.OnSharedPreferenceChangeListener, Preference.OnPreferenceChangeListener {
 
     private static final String TAG = HexiwearSettingsFragment.class.getSimpleName();
+    private static final String METRICS_FILE_DATE_FORMAT = "yyyyMMdd-HHmmss";
+    private static final String AGGREGATION_NONE = "NONE";
 
     @Bean
     HexiwearDevices hexiwearDevices;
@@ -68,9 +90,24 @@ public class HexiwearSettingsFragment extends PreferenceFragment implements Shar
     @PreferenceByKey(R.string.preferences_keep_alive_key)
     SwitchPreference keepAlive;
 
+    @PreferenceByKey(R.string.preferences_streaming_key)
+    SwitchPreference streaming;
+
     @PreferenceByKey(R.string.preferences_publish_key)
     SwitchPreference publish;
 
+    @PreferenceByKey(R.string.preferences_publish_orientation_key)
+    SwitchPreference publishOrientation;
+
+    @PreferenceByKey(R.string.preferences_aggregation_key)
+    ListPreference aggregation;
+
+    @PreferenceByKey(R.string.preferences_payload_format_key)
+    ListPreference payloadFormat;
+
+    @PreferenceByKey(R.string.preferences_overflow_policy_key)
+    ListPreference overflowPolicy;
+
     @PreferenceByKey(R.string.preferences_app_version)
     Preference appVersion;
 
@@ -78,19 +115,17 @@ public class HexiwearSettingsFragment extends PreferenceFragment implements Shar
     Credentials_ credentials;
 
     private HexiwearDevice device;
-    private Map<String, Boolean> displayPreferences;
 
     @AfterPreferences
     void initPrefs() {
         SettingsActivity settingsActivity = (SettingsActivity) getActivity();
         device = settingsActivity.device;
-        displayPreferences = hexiwearDevices.getDisplayPreferences(device.getDeviceAddress());
-
-        for (Map.Entry<String, Boolean> entry : displayPreferences.entrySet()) {
-            Log.d(TAG, "Key: " + entry.getKey() + " value " + entry.getValue());
-            final SwitchPreference displayPref = (SwitchPreference) findPreference(entry.getKey());
+        final boolean[] displayPreferences = hexiwearDevices.getDisplayPreferences(device.getDeviceAddress());
+        for (Characteristic reading : Characteristic.getDisplayedReadings()) {
+            Log.d(TAG, "Key: " + reading.name() + " value " + displayPreferences[reading.ordinal()]);
+            final SwitchPreference displayPref = (SwitchPreference) findPreference(reading.name());
             if (displayPref != null) {
-                displayPref.setChecked(entry.getValue());
+                displayPref.setChecked(displayPreferences[reading.ordinal()]);
                 displayPref.setOnPreferenceChangeListener(this);
             }
         }
@@ -100,8 +135,19 @@ public class HexiwearSettingsFragment extends PreferenceFragment implements Shar
         publishInterval.setOnPreferenceChangeListener(this);
         keepAlive.setChecked(hexiwearDevices.shouldKeepAlive(device));
         keepAlive.setOnPreferenceChangeListener(this);
+        streaming.setChecked(hexiwearDevices.shouldStream(device));
+        streaming.setOnPreferenceChangeListener(this);
         publish.setChecked(hexiwearDevices.shouldTransmit(device));
         publish.setOnPreferenceChangeListener(this);
+        publishOrientation.setChecked(hexiwearDevices.shouldPublishOrientation(device));
+        publishOrientation.setOnPreferenceChangeListener(this);
+        final ReadingAggregator.Statistic statistic = hexiwearDevices.getAggregation(device);
+        aggregation.setValue(statistic == null ? AGGREGATION_NONE : statistic.name());
+        aggregation.setOnPreferenceChangeListener(this);
+        payloadFormat.setValue(hexiwearDevices.getPayloadFormat(device).name());
+        payloadFormat.setOnPreferenceChangeListener(this);
+        overflowPolicy.setValue(hexiwearDevices.getOverflowPolicy(device).name());
+        overflowPolicy.setOnPreferenceChangeListener(this);
         manufacturerInfo.setSummary(settingsActivity.manufacturerInfo.manufacturer);
         fwVersion.setSummary(settingsActivity.manufacturerInfo.firmwareRevision);
         appVersion.setSummary(BuildConfig.VERSION_NAME + "." + BuildConfig.FLAVOR.toUpperCase());
@@ -120,7 +166,7 @@ public class HexiwearSettingsFragment extends PreferenceFragment implements Shar
             hexiwearDevices.setPublishInterval(device, Integer.valueOf((String) newValue));
             final String interval = String.format(getActivity().getString(R.string.preferences_publish_interval_value), hexiwearDevices.getPublishInterval(device));
             publishInterval.setSummary(interval);
-            LocalBroadcastManager.getInstance(getActivity()).sendBroadcast(new Intent(BluetoothService.PUBLISH_TIME_CHANGED));
+            sendBroadcast(new Intent(BluetoothService.PUBLISH_TIME_CHANGED));
         } else if (preference == keepAlive) {
             Log.d(TAG, "Keep alive changed. New value: " + newValue);
             final boolean shouldKeepAlive = (boolean) newValue;
@@ -130,6 +176,10 @@ public class HexiwearSettingsFragment extends PreferenceFragment implements Shar
             } else {
                 BluetoothService_.intent(getActivity()).stop();
             }
+        } else if (preference == streaming) {
+            Log.d(TAG, "Streaming changed. New value: " + newValue);
+            hexiwearDevices.setStreaming(device, (boolean) newValue);
+            sendBroadcast(new Intent(BluetoothService.STREAMING_CHANGED));
         } else if (preference == publish) {
             if (isDemo) {
                 return true;
@@ -137,21 +187,98 @@ public class HexiwearSettingsFragment extends PreferenceFragment implements Shar
 
             Log.d(TAG, "Should publish changed. New value: " + newValue);
             hexiwearDevices.toggleTracking(device);
-            LocalBroadcastManager.getInstance(getActivity()).sendBroadcast(new Intent(BluetoothService.SHOULD_PUBLISH_CHANGED));
+            sendBroadcast(new Intent(BluetoothService.SHOULD_PUBLISH_CHANGED));
+        } else if (preference == publishOrientation) {
+            Log.d(TAG, "Publish orientation changed. New value: " + newValue);
+            hexiwearDevices.setPublishOrientation(device, (boolean) newValue);
+            sendBroadcast(new Intent(BluetoothService.SHOULD_PUBLISH_CHANGED));
+        } else if (preference == aggregation) {
+            Log.d(TAG, "Aggregation changed. New value: " + newValue);
+            final String value = (String) newValue;
+            hexiwearDevices.setAggregation(device, AGGREGATION_NONE.equals(value) ? null : ReadingAggregator.Statistic.valueOf(value));
+            sendBroadcast(new Intent(BluetoothService.PUBLISH_TIME_CHANGED));
+        } else if (preference == payloadFormat) {
+            Log.d(TAG, "Payload format changed. New value: " + newValue);
+            hexiwearDevices.setPayloadFormat(device, PayloadFormat.valueOf((String) newValue));
+            sendBroadcast(new Intent(BluetoothService.PUBLISH_TIME_CHANGED));
+        } else if (preference == overflowPolicy) {
+            Log.d(TAG, "Overflow policy changed. New value: " + newValue);
+            hexiwearDevices.setOverflowPolicy(device, PublishQueue.Policy.valueOf((String) newValue));
+            sendBroadcast(new Intent(BluetoothService.PUBLISH_TIME_CHANGED));
         } else {
             Log.d(TAG, "Key: " + preference.getKey() + " value " + newValue);
-            displayPreferences.put(preference.getKey(), (Boolean) newValue);
-            hexiwearDevices.setDisplayPreferences(device.getDeviceAddress(), displayPreferences);
+            hexiwearDevices.setDisplayPreference(device.getDeviceAddress(), Characteristic.valueOf(preference.getKey()), (boolean) newValue);
 
             final Intent preferenceChanged = new Intent(BluetoothService.PREFERENCE_CHANGED);
             preferenceChanged.putExtra(BluetoothService.PREFERENCE_NAME, preference.getKey());
             preferenceChanged.putExtra(BluetoothService.PREFERENCE_ENABLED, (boolean) newValue);
-            LocalBroadcastManager.getInstance(getActivity()).sendBroadcast(preferenceChanged);
+            sendBroadcast(preferenceChanged);
         }
 
         return true;
     }
 
+    @PreferenceClick(R.string.preferences_diagnostics_key)
+    void showDiagnostics() {
+        final BluetoothService bluetoothService = ((SettingsActivity) getActivity()).getBluetoothService();
+        final String report = bluetoothService == null ? null : bluetoothService.getMetricsReport(device.getDeviceAddress());
+        if (report == null) {
+            Toast.makeText(getActivity(), R.string.diagnostics_not_reading, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.preferences_diagnostics_title)
+                .setMessage(report)
+                .setPositiveButton(R.string.diagnostics_dump, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dumpDiagnostics(getActivity().getApplicationContext(), report);
+                    }
+                })
+                .setNeutralButton(R.string.diagnostics_reset, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final LinkMetrics metrics = bluetoothService.getMetrics(device.getDeviceAddress());
+                        if (metrics != null) {
+                            metrics.reset();
+                        }
+                    }
+                })
+                .setNegativeButton(R.string.diagnostics_close, null)
+                .show();
+    }
+
+    @Background
+    void dumpDiagnostics(final Context context, final String report) {
+        final String timestamp = new SimpleDateFormat(METRICS_FILE_DATE_FORMAT, Locale.ENGLISH).format(new Date());
+        final String fileName = "metrics-" + device.getDeviceAddress().replace(":", "") + "-" + timestamp + ".txt";
+        final File file = new File(context.getExternalFilesDir(null), fileName);
+        try {
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                writer.write(report);
+            } finally {
+                writer.close();
+            }
+            Log.i(TAG, "Metrics written to " + file.getAbsolutePath());
+            showDumpResult(context, context.getString(R.string.diagnostics_dumped, file.getAbsolutePath()));
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't write metrics to " + file.getAbsolutePath(), e);
+            showDumpResult(context, context.getString(R.string.diagnostics_dump_failed));
+        }
+    }
+
+    @UiThread
+    void showDumpResult(final Context context, final String message) {
+        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+    }
+
+    private void sendBroadcast(final Intent intent) {
+        intent.putExtra(BluetoothService.DEVICE_ADDRESS, device.getDeviceAddress());
+        LocalBroadcastManager.getInstance(getActivity()).sendBroadcast(intent);
+    }
+
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         // Preferences are changed on this screen only.
@@ -21,7 +21,9 @@
 package com.wolkabout.hexiwear.model;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
 public enum Characteristic {
 
@@ -49,28 +51,78 @@ public enum Characteristic {
 
     CONTROL_POINT(Type.OTAP, "01ff5551-ba5e-f4ee-5ca1-eb1e5e4b1ce0"),
     DATA(Type.OTAP, "01ff5552-ba5e-f4ee-5ca1-eb1e5e4b1ce0"),
-    STATE(Type.OTAP, "01ff5553-ba5e-f4ee-5ca1-eb1e5e4b1ce0");
+    STATE(Type.OTAP, "01ff5553-ba5e-f4ee-5ca1-eb1e5e4b1ce0"),
+
+    // Computed by the app from the motion readings, there's no such characteristic on the device.
+    ORIENTATION(Type.DERIVED, null, "\u00B0");
+
+    private static final Characteristic[] VALUES = values();
+
+    // Bluetooth base UUID, 0000xxxx-0000-1000-8000-00805f9b34fb, without the 16 bit short UUID.
+    private static final long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    private static final long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805f9b34fbL;
+
+    // Open addressing on the UUID bits, the size is a power of two at least twice the number of characteristics.
+    private static final int INDEX_BITS = 6;
+    private static final long[] INDEX_MOST_SIGNIFICANT_BITS = new long[1 << INDEX_BITS];
+    private static final long[] INDEX_LEAST_SIGNIFICANT_BITS = new long[1 << INDEX_BITS];
+    private static final Characteristic[] INDEX = new Characteristic[1 << INDEX_BITS];
+
+    private static final List<Characteristic> READINGS;
+    private static final List<Characteristic> DISPLAYED_READINGS;
+
+    static {
+        final List<Characteristic> readings = new ArrayList<>();
+        final List<Characteristic> displayedReadings = new ArrayList<>();
+        for (Characteristic characteristic : VALUES) {
+            if (characteristic.type == Type.READING) {
+                readings.add(characteristic);
+            }
+            if (characteristic.type == Type.READING || characteristic.type == Type.DERIVED) {
+                displayedReadings.add(characteristic);
+            }
+            if (characteristic.uuid == null) {
+                continue;
+            }
+
+            int slot = getSlot(characteristic.mostSignificantBits, characteristic.leastSignificantBits);
+            while (INDEX[slot] != null) {
+                slot = (slot + 1) & (INDEX.length - 1);
+            }
+            INDEX[slot] = characteristic;
+            INDEX_MOST_SIGNIFICANT_BITS[slot] = characteristic.mostSignificantBits;
+            INDEX_LEAST_SIGNIFICANT_BITS[slot] = characteristic.leastSignificantBits;
+        }
+        READINGS = Collections.unmodifiableList(readings);
+        DISPLAYED_READINGS = Collections.unmodifiableList(displayedReadings);
+    }
 
     private final Type type;
     private final String uuid;
+    private final long mostSignificantBits;
+    private final long leastSignificantBits;
     private final String unit;
 
     Characteristic(final Type type, final String uuid) {
-        this.type = type;
-        this.uuid = uuid;
-        this.unit = "";
+        this(type, uuid, "");
     }
 
     Characteristic(final Type type, final String uuid, final String unit) {
         this.type = type;
         this.uuid = uuid;
         this.unit = unit;
+        final UUID parsed = uuid == null ? null : UUID.fromString(uuid);
+        this.mostSignificantBits = parsed == null ? 0 : parsed.getMostSignificantBits();
+        this.leastSignificantBits = parsed == null ? 0 : parsed.getLeastSignificantBits();
     }
 
     public Type getType() {
         return type;
     }
 
+    /**
+     * @return UUID of the GATT characteristic, null for the ones computed by the app.
+     */
     public String getUuid() {
         return uuid;
     }
@@ -79,30 +131,72 @@ public enum Characteristic {
         return unit;
     }
 
-    public static Characteristic byUuid(final String uuid) {
-        for (final Characteristic characteristic : values()) {
-            if (characteristic.uuid.equals(uuid)) {
+    /**
+     * Resolves the characteristic without allocating, safe to call from every GATT callback.
+     *
+     * @return characteristic with the UUID, or null if it isn't one of Hexiwear's.
+     */
+    public static Characteristic byUuid(final UUID uuid) {
+        return byUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public static Characteristic byUuid(final long mostSignificantBits, final long leastSignificantBits) {
+        int slot = getSlot(mostSignificantBits, leastSignificantBits);
+        Characteristic characteristic;
+        while ((characteristic = INDEX[slot]) != null) {
+            if (INDEX_MOST_SIGNIFICANT_BITS[slot] == mostSignificantBits
+                    && INDEX_LEAST_SIGNIFICANT_BITS[slot] == leastSignificantBits) {
                 return characteristic;
             }
+            slot = (slot + 1) & (INDEX.length - 1);
         }
         return null;
     }
 
+    /**
+     * @param shortUuid 16 bit UUID assigned on top of the Bluetooth base UUID, e.g. 0x2a19 for the battery level.
+     */
+    public static Characteristic byShortUuid(final int shortUuid) {
+        return byUuid(BASE_UUID_MOST_SIGNIFICANT_BITS | (long) (shortUuid & 0xffff) << 32, BASE_UUID_LEAST_SIGNIFICANT_BITS);
+    }
+
+    /**
+     * @return the 16 bit UUID if the UUID is derived from the Bluetooth base UUID, -1 otherwise.
+     */
+    public static int getShortUuid(final UUID uuid) {
+        final long mostSignificantBits = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LEAST_SIGNIFICANT_BITS
+                || (mostSignificantBits & 0xffff0000ffffffffL) != BASE_UUID_MOST_SIGNIFICANT_BITS) {
+            return -1;
+        }
+        return (int) (mostSignificantBits >>> 32) & 0xffff;
+    }
+
     public static Characteristic byOrdinal(final int ordinal) {
-        return values()[ordinal];
+        return VALUES[ordinal];
     }
 
+    private static int getSlot(final long mostSignificantBits, final long leastSignificantBits) {
+        long hash = mostSignificantBits ^ leastSignificantBits * 31;
+        hash *= 0x9e3779b97f4a7c15L;
+        return (int) (hash >>> (64 - INDEX_BITS));
+    }
+
+    /**
+     * @return characteristics carrying sensor readings, the list can't be modified.
+     */
     public static List<Characteristic> getReadings() {
-        final List<Characteristic> readingCharacteristics = new ArrayList<>();
-        for (Characteristic characteristic : values()) {
-            if (characteristic.type == Type.READING) {
-                readingCharacteristics.add(characteristic);
-            }
-        }
-        return readingCharacteristics;
+        return READINGS;
+    }
+
+    /**
+     * @return readings the user can show or hide, both the ones read from the device and the ones computed from them.
+     */
+    public static List<Characteristic> getDisplayedReadings() {
+        return DISPLAYED_READINGS;
     }
 
     public enum Type {
-        READING, ALERT, MODE, INFO, OTAP
+        READING, ALERT, MODE, INFO, OTAP, DERIVED
     }
 }
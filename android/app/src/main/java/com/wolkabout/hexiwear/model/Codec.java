@@ -0,0 +1,144 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.model;
+
+/**
+ * Describes how a reading characteristic lays out its value: fixed width integers, one per axis,
+ * scaled to the displayed units by a divisor.
+ * <p>
+ * Published values are integers: the raw value times {@link #getPublishMultiplier()} divided by
+ * {@link #getPublishDivisor()}, halves rounded away from zero.
+ */
+public final class Codec {
+
+    private final int width;
+    private final boolean signed;
+    private final boolean littleEndian;
+    private final int axes;
+    private final int divisor;
+    private final int decimals;
+    private final int publishMultiplier;
+    private final int publishDivisor;
+    private final String unit;
+
+    public Codec(final int width, final boolean signed, final boolean littleEndian, final int axes, final int divisor,
+                 final int decimals, final int publishMultiplier, final int publishDivisor, final String unit) {
+        if (width < 1 || width > 4 || axes < 1 || axes > Sample.MAX_VALUES || divisor < 1 || publishDivisor < 1) {
+            throw new IllegalArgumentException("Unsupported codec: " + width + " bytes, " + axes + " axes, divisor " + divisor);
+        }
+        this.width = width;
+        this.signed = signed;
+        this.littleEndian = littleEndian;
+        this.axes = axes;
+        this.divisor = divisor;
+        this.decimals = decimals;
+        this.publishMultiplier = publishMultiplier;
+        this.publishDivisor = publishDivisor;
+        this.unit = unit;
+    }
+
+    /**
+     * @return bytes per axis.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    public boolean isLittleEndian() {
+        return littleEndian;
+    }
+
+    public int getAxes() {
+        return axes;
+    }
+
+    /**
+     * @return bytes needed to decode every axis.
+     */
+    public int getLength() {
+        return width * axes;
+    }
+
+    /**
+     * @return raw counts per displayed unit.
+     */
+    public int getDivisor() {
+        return divisor;
+    }
+
+    /**
+     * @return digits shown after the decimal separator.
+     */
+    public int getDecimals() {
+        return decimals;
+    }
+
+    public int getPublishMultiplier() {
+        return publishMultiplier;
+    }
+
+    public int getPublishDivisor() {
+        return publishDivisor;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return integer of the axis as sent by the device, the caller makes sure the payload is long enough.
+     */
+    public int readRaw(final byte[] data, final int axis) {
+        final int offset = axis * width;
+        int raw = 0;
+        for (int i = 0; i < width; i++) {
+            raw |= (data[littleEndian ? offset + i : offset + width - 1 - i] & 0xff) << (8 * i);
+        }
+        if (signed && width < 4) {
+            final int shift = 32 - 8 * width;
+            raw = raw << shift >> shift;
+        }
+        return raw;
+    }
+
+    public float toValue(final int raw) {
+        return raw / (float) divisor;
+    }
+
+    /**
+     * @return raw integer the value was decoded from.
+     */
+    public int toRaw(final float value) {
+        return Math.round(value * divisor);
+    }
+
+    /**
+     * @param raw non negative raw value, the caller handles the sign.
+     */
+    public long toPublished(final int raw) {
+        final long scaled = (long) raw * publishMultiplier;
+        return (scaled * 2 + publishDivisor) / (2L * publishDivisor);
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.model;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Connection interval and MTU to ask for, depending on what the link is used for.
+ * Both requests are only available from Lollipop on.
+ */
+public enum LinkProfile {
+
+    OTAP(BluetoothGatt.CONNECTION_PRIORITY_HIGH, LinkProfile.MAX_MTU),
+    STREAMING(BluetoothGatt.CONNECTION_PRIORITY_HIGH, LinkProfile.NO_MTU_REQUEST),
+    BALANCED(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, LinkProfile.NO_MTU_REQUEST),
+    LOW_POWER(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, LinkProfile.NO_MTU_REQUEST);
+
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+    private static final int NO_MTU_REQUEST = 0;
+
+    private final int connectionPriority;
+    private final int mtu;
+
+    LinkProfile(final int connectionPriority, final int mtu) {
+        this.connectionPriority = connectionPriority;
+        this.mtu = mtu;
+    }
+
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    /**
+     * @return MTU to negotiate or 0 if the current one is good enough.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public boolean shouldRequestMtu() {
+        return mtu != NO_MTU_REQUEST;
+    }
+
+    public static LinkProfile forMode(final Mode mode) {
+        if (mode == null) {
+            return BALANCED;
+        }
+
+        switch (mode) {
+            case SENSOR_TAG:
+                return STREAMING;
+            case IDLE:
+            case WATCH:
+                return LOW_POWER;
+            default:
+                return BALANCED;
+        }
+    }
+}
@@ -22,26 +22,52 @@ package com.wolkabout.hexiwear.model;
 
 import com.wolkabout.hexiwear.R;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public enum Mode {
 
     IDLE(0, R.string.mode_idle),
     WATCH(1, R.string.mode_watch),
-    SENSOR_TAG(2, R.string.mode_sensor_tag),
+    SENSOR_TAG(2, R.string.mode_sensor_tag, Characteristic.BATTERY, Characteristic.ACCELERATION, Characteristic.MAGNET,
+            Characteristic.GYRO, Characteristic.TEMPERATURE, Characteristic.HUMIDITY, Characteristic.PRESSURE, Characteristic.LIGHT),
     WEATHER_STATION(3, R.string.mode_weather_station),
     MOTION_CONTROL(4, R.string.mode_motion_control),
-    HEARTRATE(5, R.string.mode_heartrate),
-    PEDOMETER(6, R.string.mode_pedometer),
+    HEARTRATE(5, R.string.mode_heartrate, Characteristic.HEARTRATE),
+    PEDOMETER(6, R.string.mode_pedometer, Characteristic.STEPS, Characteristic.CALORIES),
     COMPASS(7, R.string.mode_compass);
 
     private final int symbol;
     private final int stringResource;
+    private final List<Characteristic> characteristics;
+    // Bit i is set if the characteristic with ordinal i is available in this mode.
+    private final long characteristicMask;
+    // Same for readings shown in this mode, including those computed from the device's readings.
+    private final long readingMask;
+    private final float[] pollingRates = new float[Characteristic.values().length];
 
-    Mode(final int symbol, final int stringResource) {
+    Mode(final int symbol, final int stringResource, final Characteristic... characteristics) {
         this.symbol = symbol;
         this.stringResource = stringResource;
+        this.characteristics = Collections.unmodifiableList(Arrays.asList(characteristics));
+
+        long mask = 0;
+        for (Characteristic characteristic : characteristics) {
+            mask |= 1L << characteristic.ordinal();
+            pollingRates[characteristic.ordinal()] = getDefaultPollingRate(characteristic);
+        }
+        characteristicMask = mask;
+        if (hasCharacteristic(Characteristic.ACCELERATION) && hasCharacteristic(Characteristic.GYRO)
+                && hasCharacteristic(Characteristic.MAGNET)) {
+            mask |= 1L << Characteristic.ORIENTATION.ordinal();
+        }
+        readingMask = mask;
+        pollingRates[Characteristic.MODE.ordinal()] = 1;
+    }
+
+    public int getSymbol() {
+        return symbol;
     }
 
     public int getStringResource() {
@@ -57,41 +83,53 @@ public enum Mode {
         throw new IllegalArgumentException("No mode with such symbol: " + symbol);
     }
 
+    /**
+     * @return readings the device exposes in this mode, the list can't be modified.
+     */
     public List<Characteristic> getCharacteristics() {
-        final List<Characteristic> characteristics = new ArrayList<>();
-
-        switch (this) {
-            case SENSOR_TAG:
-                characteristics.add(Characteristic.BATTERY);
-                characteristics.add(Characteristic.ACCELERATION);
-                characteristics.add(Characteristic.MAGNET);
-                characteristics.add(Characteristic.GYRO);
-                characteristics.add(Characteristic.TEMPERATURE);
-                characteristics.add(Characteristic.HUMIDITY);
-                characteristics.add(Characteristic.PRESSURE);
-                characteristics.add(Characteristic.LIGHT);
-                break;
-            case PEDOMETER:
-                characteristics.add(Characteristic.STEPS);
-                characteristics.add(Characteristic.CALORIES);
-                break;
-            case HEARTRATE:
-                characteristics.add(Characteristic.HEARTRATE);
-                break;
-            default:
-                break;
-        }
-
         return characteristics;
     }
 
-    public boolean hasCharacteristic(final String characteristicName) {
-        return hasCharacteristic(Characteristic.valueOf(characteristicName));
+    /**
+     * @return default number of reads per second for the characteristic while in this mode.
+     */
+    public float getPollingRate(final Characteristic characteristic) {
+        return pollingRates[characteristic.ordinal()];
     }
 
     public boolean hasCharacteristic(final Characteristic characteristic) {
-        final List<Characteristic> characteristics = getCharacteristics();
-        return characteristics.contains(characteristic);
+        return (characteristicMask & 1L << characteristic.ordinal()) != 0;
+    }
+
+    /**
+     * @return true if the reading can be shown in this mode, either read from the device or derived from its readings.
+     */
+    public boolean hasReading(final Characteristic characteristic) {
+        return (readingMask & 1L << characteristic.ordinal()) != 0;
+    }
+
+    private static float getDefaultPollingRate(final Characteristic characteristic) {
+        switch (characteristic) {
+            case ACCELERATION:
+            case GYRO:
+                return 20;
+            case MAGNET:
+                return 10;
+            case LIGHT:
+                return 2;
+            case HEARTRATE:
+            case STEPS:
+            case CALORIES:
+                return 1;
+            case TEMPERATURE:
+            case HUMIDITY:
+            case PRESSURE:
+                return 0.5f;
+            case BATTERY:
+                return 0.1f;
+            default:
+                return 0;
+        }
     }
 
 }
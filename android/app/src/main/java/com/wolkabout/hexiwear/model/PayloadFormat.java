@@ -0,0 +1,42 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.model;
+
+/**
+ * How readings are sent to the cloud.
+ */
+public enum PayloadFormat {
+
+    /**
+     * One decimal string per reading, through a Wolk connection of the device's own.
+     */
+    TEXT,
+
+    /**
+     * Batches of fixed point samples per publish interval, see {@link com.wolkabout.hexiwear.util.BinaryBatchWriter},
+     * published to readings/&lt;serial&gt;/binary over one connection shared by every device publishing this way.
+     * Aggregated readings go as the whole summary of the interval, not only the chosen statistic.
+     * <p>
+     * Negotiated per device: batches go out only while the message the server retains on readings/&lt;serial&gt;/formats
+     * lists BINARY with the batch version, as in TEXT,BINARY:2. The device publishes {@link #TEXT} until then.
+     */
+    BINARY
+}
@@ -0,0 +1,104 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.model;
+
+import java.util.Arrays;
+
+/**
+ * One decoded reading, in the units it's displayed in.
+ * <p>
+ * Meant to be reused: the decoder overwrites it in place, so hold on to a copy if the values are needed
+ * after the next sample arrives.
+ */
+public class Sample {
+
+    public static final int MAX_VALUES = 3;
+
+    private static final Characteristic[] CHARACTERISTICS = Characteristic.values();
+
+    private final float[] values = new float[MAX_VALUES];
+    private int characteristic = -1;
+    private int size;
+    private long timestampNanos;
+
+    /**
+     * Starts a new sample, the values are filled in with {@link #setValue(int, float)}.
+     */
+    public void set(final Characteristic characteristic, final long timestampNanos, final int size) {
+        if (size > MAX_VALUES) {
+            throw new IllegalArgumentException("Sample can't hold " + size + " values");
+        }
+        this.characteristic = characteristic.ordinal();
+        this.timestampNanos = timestampNanos;
+        this.size = size;
+    }
+
+    public void setValue(final int index, final float value) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Sample has " + size + " values, asked for " + index);
+        }
+        values[index] = value;
+    }
+
+    public void copyFrom(final Sample other) {
+        characteristic = other.characteristic;
+        timestampNanos = other.timestampNanos;
+        size = other.size;
+        System.arraycopy(other.values, 0, values, 0, other.size);
+    }
+
+    /**
+     * @return characteristic the sample was read from, or null if nothing was decoded into it yet.
+     */
+    public Characteristic getCharacteristic() {
+        return characteristic < 0 ? null : CHARACTERISTICS[characteristic];
+    }
+
+    public int getCharacteristicOrdinal() {
+        return characteristic;
+    }
+
+    /**
+     * @return number of values, 1 for scalar readings and 3 for the motion sensors.
+     */
+    public int size() {
+        return size;
+    }
+
+    public float get(final int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Sample has " + size + " values, asked for " + index);
+        }
+        return values[index];
+    }
+
+    /**
+     * @return {@link android.os.SystemClock#elapsedRealtimeNanos()} at the time the value was received.
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    @Override
+    public String toString() {
+        return getCharacteristic() + Arrays.toString(Arrays.copyOf(values, size)) + "@" + timestampNanos;
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * {@link GattTransport} over Android's {@link BluetoothGatt}.
+ */
+public class AndroidGattTransport implements GattTransport {
+
+    private static final String TAG = AndroidGattTransport.class.getSimpleName();
+
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    // The battery level indication is enabled through its presentation format descriptor.
+    private static final int PRESENTATION_FORMAT = 0x2904;
+
+    private final Context context;
+    private final BluetoothDevice device;
+    private final Map<Characteristic, BluetoothGattCharacteristic> characteristics =
+            Collections.synchronizedMap(new EnumMap<Characteristic, BluetoothGattCharacteristic>(Characteristic.class));
+
+    private volatile BluetoothGatt bluetoothGatt;
+    private Callback callback;
+
+    public AndroidGattTransport(final Context context, final BluetoothDevice device) {
+        this.context = context;
+        this.device = device;
+    }
+
+    @Override
+    public void connect(final Callback callback) {
+        this.callback = callback;
+        close();
+        bluetoothGatt = device.connectGatt(context, true, gattCallback);
+    }
+
+    @Override
+    public void reconnect() {
+        if (bluetoothGatt != null) {
+            bluetoothGatt.connect();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (bluetoothGatt != null) {
+            bluetoothGatt.close();
+        }
+        characteristics.clear();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        characteristics.clear();
+        return bluetoothGatt.discoverServices();
+    }
+
+    @Override
+    public boolean hasServices() {
+        // Characteristics are only usable through the handle they were discovered with. Android has no way to
+        // recreate them from stored UUIDs, so only the table this handle still holds from the last connection counts.
+        return !characteristics.isEmpty();
+    }
+
+    @Override
+    public boolean hasCharacteristic(final Characteristic characteristic) {
+        return characteristics.containsKey(characteristic);
+    }
+
+    @Override
+    public boolean supportsNotifications(final Characteristic characteristic) {
+        final BluetoothGattCharacteristic gattCharacteristic = characteristics.get(characteristic);
+        return gattCharacteristic != null
+                && (gattCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0
+                && gattCharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG) != null;
+    }
+
+    @Override
+    public boolean read(final Characteristic characteristic) {
+        final BluetoothGattCharacteristic gattCharacteristic = characteristics.get(characteristic);
+        return gattCharacteristic != null && bluetoothGatt.readCharacteristic(gattCharacteristic);
+    }
+
+    @Override
+    public boolean write(final Characteristic characteristic, final byte[] value) {
+        final BluetoothGattCharacteristic gattCharacteristic = characteristics.get(characteristic);
+        if (gattCharacteristic == null) {
+            return false;
+        }
+
+        gattCharacteristic.setValue(value);
+        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        return bluetoothGatt.writeCharacteristic(gattCharacteristic);
+    }
+
+    @Override
+    public boolean subscribe(final Characteristic characteristic, final Subscription subscription) {
+        final BluetoothGattCharacteristic gattCharacteristic = characteristics.get(characteristic);
+        final BluetoothGattDescriptor descriptor = getConfigDescriptor(gattCharacteristic);
+        if (descriptor == null) {
+            return false;
+        }
+
+        bluetoothGatt.setCharacteristicNotification(gattCharacteristic, subscription != Subscription.NONE);
+        switch (subscription) {
+            case NOTIFICATIONS:
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                break;
+            case INDICATIONS:
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+                break;
+            default:
+                descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                break;
+        }
+        return bluetoothGatt.writeDescriptor(descriptor);
+    }
+
+    private static BluetoothGattDescriptor getConfigDescriptor(final BluetoothGattCharacteristic gattCharacteristic) {
+        if (gattCharacteristic == null) {
+            return null;
+        }
+
+        final BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+        if (descriptor != null) {
+            return descriptor;
+        }
+
+        for (BluetoothGattDescriptor candidate : gattCharacteristic.getDescriptors()) {
+            if (Characteristic.getShortUuid(candidate.getUuid()) == PRESENTATION_FORMAT) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public boolean requestMtu(final int mtu) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && bluetoothGatt.requestMtu(mtu);
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public boolean requestConnectionPriority(final int connectionPriority) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && bluetoothGatt.requestConnectionPriority(connectionPriority);
+    }
+
+    private void storeCharacteristics(final BluetoothGatt gatt) {
+        characteristics.clear();
+        for (BluetoothGattService gattService : gatt.getServices()) {
+            for (BluetoothGattCharacteristic gattCharacteristic : gattService.getCharacteristics()) {
+                final Characteristic characteristic = Characteristic.byUuid(gattCharacteristic.getUuid());
+                if (characteristic != null) {
+                    Log.v(TAG, characteristic.getType() + ": " + characteristic.name());
+                    characteristics.put(characteristic, gattCharacteristic);
+                } else {
+                    Log.v(TAG, "UNKNOWN: " + gattCharacteristic.getUuid());
+                }
+            }
+        }
+    }
+
+    private static Characteristic getCharacteristic(final BluetoothGattCharacteristic gattCharacteristic) {
+        final Characteristic characteristic = Characteristic.byUuid(gattCharacteristic.getUuid());
+        if (characteristic == null) {
+            Log.w(TAG, "Callback for unknown characteristic " + gattCharacteristic.getUuid());
+        }
+        return characteristic;
+    }
+
+    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            Log.i(TAG, "GATT state of " + device.getAddress() + " is " + newState + ", status " + status);
+            callback.onConnectionStateChanged(BluetoothProfile.STATE_CONNECTED == newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (gatt.getServices().size() == 0) {
+                Log.i(TAG, "No services found.");
+            }
+            storeCharacteristics(gatt);
+            callback.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic gattCharacteristic, int status) {
+            final long timestamp = SystemClock.elapsedRealtimeNanos();
+            final Characteristic characteristic = getCharacteristic(gattCharacteristic);
+            if (characteristic != null) {
+                callback.onRead(characteristic, gattCharacteristic.getValue(), status, timestamp);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic gattCharacteristic, int status) {
+            final Characteristic characteristic = getCharacteristic(gattCharacteristic);
+            if (characteristic != null) {
+                callback.onWrite(characteristic, gattCharacteristic.getValue(), status);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            final Characteristic characteristic = getCharacteristic(descriptor.getCharacteristic());
+            if (characteristic != null) {
+                callback.onSubscribed(characteristic, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic gattCharacteristic) {
+            final long timestamp = SystemClock.elapsedRealtimeNanos();
+            final Characteristic characteristic = getCharacteristic(gattCharacteristic);
+            if (characteristic != null) {
+                callback.onChanged(characteristic, gattCharacteristic.getValue(), timestamp);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            callback.onMtuChanged(mtu, status);
+        }
+    };
+}
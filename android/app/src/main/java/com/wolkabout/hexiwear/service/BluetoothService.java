@@ -25,14 +25,10 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
 import android.content.Intent;
 import android.graphics.Color;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Binder;
 import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
@@ -44,15 +40,9 @@ import com.wolkabout.hexiwear.BuildConfig;
 import com.wolkabout.hexiwear.R;
 import com.wolkabout.hexiwear.activity.MainActivity_;
 import com.wolkabout.hexiwear.activity.ReadingsActivity_;
-import com.wolkabout.hexiwear.model.Characteristic;
 import com.wolkabout.hexiwear.model.HexiwearDevice;
-import com.wolkabout.hexiwear.model.ManufacturerInfo;
-import com.wolkabout.hexiwear.model.Mode;
-import com.wolkabout.hexiwear.util.ByteUtils;
-import com.wolkabout.hexiwear.util.DataConverter;
 import com.wolkabout.hexiwear.util.HexiwearDevices;
 import com.wolkabout.wolk.Logger;
-import com.wolkabout.wolk.ReadingType;
 import com.wolkabout.wolk.Wolk;
 import com.wolkabout.wolkrestandroid.Credentials_;
 
@@ -63,15 +53,13 @@ import org.androidannotations.annotations.SystemService;
 import org.androidannotations.annotations.UiThread;
 import org.androidannotations.annotations.sharedpreferences.Pref;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Queue;
-import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
 
 @EService
 public class BluetoothService extends Service {
@@ -79,11 +67,8 @@ public class BluetoothService extends Service {
     private static final String TAG = BluetoothService.class.getSimpleName();
 
     public static final String SERVICES_AVAILABLE = "servicesAvailable";
-    public static final String DATA_AVAILABLE = "dataAvailable";
-    public static final String READING_TYPE = "readingType";
     public static final String CONNECTION_STATE_CHANGED = "ConnectionStateChange";
     public static final String CONNECTION_STATE = "connectionState";
-    public static final String STRING_DATA = "stringData";
     public static final String STOP = "stop";
     public static final String ACTION_NEEDS_BOND = "noBond";
     public static final String PREFERENCE_CHANGED = "preferenceChanged";
@@ -96,29 +81,21 @@ public class BluetoothService extends Service {
     public static final String BLUETOOTH_SERVICE_STOPPED = "BLUETOOTH_SERVICE_STOPPED";
     public static final String SHOW_TIME_PROGRESS = "SHOW_TIME_PROGRESS";
     public static final String HIDE_TIME_PROGRESS = "HIDE_TIME_PROGRESS";
+    public static final String STREAMING_CHANGED = "streamingChanged";
+    public static final String SESSION_CLOSED = "sessionClosed";
+    public static final String DEVICE_ADDRESS = "deviceAddress";
 
-    // Notification types
-    private static final byte MISSED_CALLS = 2;
-    private static final byte UNREAD_MESSAGES = 4;
-    private static final byte UNREAD_EMAILS = 6;
-
-    // Alert In commands
-    private static final byte WRITE_NOTIFICATION = 1;
-    private static final byte WRITE_TIME = 3;
-
-    private static final Map<String, BluetoothGattCharacteristic> readableCharacteristics = new HashMap<>();
-    private static final ManufacturerInfo manufacturerInfo = new ManufacturerInfo();
-    private static final Queue<String> readingQueue = new ArrayBlockingQueue<>(12);
-    private static final Queue<byte[]> notificationsQueue = new LinkedBlockingDeque<>();
-
-    private volatile boolean shouldUpdateTime;
-    private volatile boolean isConnected;
-    private BluetoothDevice bluetoothDevice;
-    private HexiwearDevice hexiwearDevice;
-    private BluetoothGattCharacteristic alertIn;
-    private BluetoothGatt bluetoothGatt;
-    private Wolk wolk;
-    private Mode mode;
+    private static final int NOTIFICATION_ID = 442;
+
+    // Requests in flight across all connections, more than this mostly ends up waiting in the controller anyway.
+    private static final int RADIO_SLOTS = 2;
+
+    private final Map<String, DeviceSession> sessions = new ConcurrentHashMap<>();
+    private final RadioArbiter radioArbiter = new RadioArbiter(RADIO_SLOTS);
+    // Opened once the first session asks for binary batches, with the account credentials it was opened with.
+    private MqttPublisher batchPublisher;
+    private String batchPublisherUsername;
+    private String batchPublisherToken;
 
     @Bean
     HexiwearDevices hexiwearDevices;
@@ -126,6 +103,9 @@ public class BluetoothService extends Service {
     @SystemService
     NotificationManager notificationManager;
 
+    @SystemService
+    ConnectivityManager connectivityManager;
+
     @Pref
     Credentials_ credentials;
 
@@ -137,14 +117,33 @@ public class BluetoothService extends Service {
 
         Log.d(TAG, "Bond state changed for: " + device.getAddress() + " new state: " + bondState + " previous: " + previousBondState);
 
+        final DeviceSession session = sessions.get(device.getAddress());
+        if (session == null) {
+            return;
+        }
+
         if (bondState == BluetoothDevice.BOND_BONDED) {
             Log.i(TAG, "Bonded");
-            createGATT(device);
+            session.connect();
         } else if (bondState == BluetoothDevice.BOND_NONE) {
             device.createBond();
         }
     }
 
+    @Receiver(actions = ConnectivityManager.CONNECTIVITY_ACTION)
+    void onConnectivityChanged() {
+        final boolean available = isNetworkAvailable();
+        Log.d(TAG, "Network " + (available ? "available." : "unavailable."));
+        for (DeviceSession session : sessions.values()) {
+            session.onNetworkAvailabilityChanged(available);
+        }
+    }
+
+    boolean isNetworkAvailable() {
+        final NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+        return network != null && network.isConnected();
+    }
+
     @Receiver(actions = STOP)
     void onStopCommand() {
         Log.i(TAG, "Stop command received.");
@@ -155,353 +154,191 @@ public class BluetoothService extends Service {
     @Override
     public void onDestroy() {
         Log.i(TAG, "Stopping service...");
-        if (bluetoothGatt != null) {
-            bluetoothGatt.close();
-            NotificationService_.intent(this).stop();
-        }
-        if (wolk != null && hexiwearDevices.shouldTransmit(hexiwearDevice)) {
-            wolk.stopAutoPublishing();
+        for (DeviceSession session : sessions.values()) {
+            session.close();
         }
+        sessions.clear();
+        closeBatchPublisher(MqttPublisher.CLOSE_FLUSH_MILLIS);
+        NotificationService_.intent(this).stop();
 
         Log.d(TAG, "onDestroy: sending intent that bt service stopped");
         final Intent intent = new Intent(BLUETOOTH_SERVICE_STOPPED);
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
     }
 
-    public void startReading(BluetoothDevice device) {
-        Log.i(TAG, "Starting to read data for device: " + device.getName());
-        hexiwearDevice = hexiwearDevices.getDevice(device.getAddress());
-        bluetoothDevice = device;
-        createGATT(device);
-
-        if (credentials.username().get().equals("Demo")) {
-            return;
+    /**
+     * Opens a session for the device or returns the one already open.
+     */
+    public DeviceSession startReading(BluetoothDevice device) {
+        final DeviceSession existingSession = sessions.get(device.getAddress());
+        if (existingSession != null) {
+            return existingSession;
         }
 
-        wolk = new Wolk(hexiwearDevice, BuildConfig.MQTT_HOST);
-        wolk.setLogger(new Logger() {
-            @Override
-            public void info(final String message) {
-                Log.i(TAG, message);
-            }
-
-            @Override
-            public void error(final String message, final Throwable e) {
-                Log.e(TAG, message, e);
-            }
-        });
+        Log.i(TAG, "Starting to read data for device: " + device.getName());
+        final HexiwearDevice hexiwearDevice = hexiwearDevices.getDevice(device.getAddress());
+        final Wolk wolk = credentials.username().get().equals("Demo") ? null : createWolk(hexiwearDevice);
+        final DeviceSession session = new DeviceSession(this, hexiwearDevices, device, wolk, radioArbiter);
+        sessions.put(device.getAddress(), session);
+        session.connect();
+        return session;
+    }
+
+    /**
+     * Closes the session for the device. The service stops once no sessions are left.
+     */
+    public void stopReading(BluetoothDevice device) {
+        final DeviceSession session = sessions.remove(device.getAddress());
+        if (session != null) {
+            session.close();
+            final Intent sessionClosed = new Intent(SESSION_CLOSED);
+            sessionClosed.putExtra(DEVICE_ADDRESS, device.getAddress());
+            sendBroadcast(sessionClosed);
+        }
 
-        if (hexiwearDevices.shouldTransmit(device)) {
-            final int publishInterval = hexiwearDevices.getPublishInterval(hexiwearDevice);
-            wolk.startAutoPublishing(publishInterval);
+        if (sessions.isEmpty()) {
+            closeBatchPublisher(MqttPublisher.CLOSE_FLUSH_MILLIS);
+            stopForeground(true);
+            stopSelf();
+        } else {
+            updateNotification();
         }
     }
 
-    private void createGATT(final BluetoothDevice device) {
-        bluetoothGatt = device.connectGatt(this, true, new BluetoothGattCallback() {
-            @Override
-            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                isConnected = BluetoothProfile.STATE_CONNECTED == newState;
-                if (isConnected) {
-                    Log.i(TAG, "GATT connected.");
-                    startForeground(442, getNotification(device));
-                    gatt.discoverServices();
-                } else {
-                    Log.i(TAG, "GATT disconnected.");
-                    NotificationService_.intent(BluetoothService.this).stop();
-                    notificationManager.notify(442, getNotification(device));
-                    gatt.connect();
-                }
-
-                final Intent connectionStateChanged = new Intent(CONNECTION_STATE_CHANGED);
-                connectionStateChanged.putExtra(CONNECTION_STATE, isConnected);
-                sendBroadcast(connectionStateChanged);
-            }
-
-            @Override
-            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                Log.i(TAG, "Services discovered.");
-                if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
-                    handleAuthenticationError(gatt);
-                    return;
-                }
-
-                discoverCharacteristics(gatt);
-            }
-
-            @Override
-            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                Log.i(TAG, "Characteristic written: " + status);
-
-                if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
-                    handleAuthenticationError(gatt);
-                    return;
-                }
-
-                final byte command = characteristic.getValue()[0];
-                switch (command) {
-                    case WRITE_TIME:
-                        Log.i(TAG, "Time written.");
-                        showToast(R.string.readings_time_set_success);
-                        final Intent intent = new Intent(HIDE_TIME_PROGRESS);
-                        sendBroadcast(intent);
-
-                        final BluetoothGattCharacteristic batteryCharacteristic = readableCharacteristics.get(Characteristic.BATTERY.getUuid());
-                        gatt.setCharacteristicNotification(batteryCharacteristic, true);
-                        for (BluetoothGattDescriptor descriptor : batteryCharacteristic.getDescriptors()) {
-                            if (descriptor.getUuid().toString().startsWith("00002904")) {
-                                descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-                                gatt.writeDescriptor(descriptor);
-                            }
-                        }
-                        break;
-                    case WRITE_NOTIFICATION:
-                        Log.i(TAG, "Notification sent.");
-                        if (notificationsQueue.isEmpty()) {
-                            Log.i(TAG, "Reading characteristics...");
-                            readNextCharacteristics(gatt);
-                        } else {
-                            Log.i(TAG, "writing next notification...");
-                            alertIn.setValue(notificationsQueue.poll());
-                            gatt.writeCharacteristic(alertIn);
-                        }
-                        break;
-                    default:
-                        Log.w(TAG, "No such ALERT IN command: " + command);
-                        break;
-                }
-            }
-
-            @Override
-            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-                readCharacteristic(gatt, Characteristic.MANUFACTURER);
-            }
-
-            @Override
-            public void onCharacteristicRead(BluetoothGatt gatt, final BluetoothGattCharacteristic gattCharacteristic, int status) {
-                if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
-                    handleAuthenticationError(gatt);
-                    return;
-                }
-
-                final String characteristicUuid = gattCharacteristic.getUuid().toString();
-                final Characteristic characteristic = Characteristic.byUuid(characteristicUuid);
-                switch (characteristic) {
-                    case MANUFACTURER:
-                        manufacturerInfo.manufacturer = gattCharacteristic.getStringValue(0);
-                        readCharacteristic(gatt, Characteristic.FW_REVISION);
-                        break;
-                    case FW_REVISION:
-                        manufacturerInfo.firmwareRevision = gattCharacteristic.getStringValue(0);
-                        readCharacteristic(gatt, Characteristic.MODE);
-                        break;
-                    default:
-                        Log.v(TAG, "Characteristic read: " + characteristic.name());
-                        if (characteristic == Characteristic.MODE) {
-                            final Mode newMode = Mode.bySymbol(gattCharacteristic.getValue()[0]);
-                            if (mode != newMode) {
-                                onModeChanged(newMode);
-                            }
-                        } else {
-                            onBluetoothDataReceived(characteristic, gattCharacteristic.getValue());
-                        }
-
-                        if (shouldUpdateTime) {
-                            updateTime();
-                        }
-
-                        if (notificationsQueue.isEmpty()) {
-                            readNextCharacteristics(gatt);
-                        } else {
-                            alertIn.setValue(notificationsQueue.poll());
-                            gatt.writeCharacteristic(alertIn);
-                        }
-
-                        break;
-                }
-            }
+    private Wolk createWolk(final HexiwearDevice hexiwearDevice) {
+        // The session sets its logger, it learns of failed publishes from it.
+        return new Wolk(hexiwearDevice, BuildConfig.MQTT_HOST);
+    }
 
-            @Override
-            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic gattCharacteristic) {
-                final String characteristicUuid = gattCharacteristic.getUuid().toString();
-                final Characteristic characteristic = Characteristic.byUuid(characteristicUuid);
-                Log.d(TAG, "Characteristic changed: " + characteristic);
+    /**
+     * @return publisher carrying the binary batches of every session over one connection. It signs in with the account
+     * the app is logged in with, under the phone's gateway id, rather than as any one device. It's opened again once
+     * the account or its access token changed, and closed along with the last session.
+     */
+    synchronized MqttPublisher getBatchPublisher() {
+        final String username = credentials.username().get();
+        final String token = credentials.accessToken().get();
+        if (batchPublisher != null && (!username.equals(batchPublisherUsername) || !token.equals(batchPublisherToken))) {
+            // Batches it still holds are dropped, their sessions send them again through the new one.
+            Log.i(TAG, "Account credentials changed, reconnecting the batch publisher.");
+            closeBatchPublisher(0);
+        }
+        if (batchPublisher == null) {
+            batchPublisher = new MqttPublisher(BuildConfig.MQTT_HOST, "hexiwear-" + hexiwearDevices.getGatewayId(),
+                    username, token, MqttPublisher.DEFAULT_QUEUE_CAPACITY);
+            batchPublisher.setLogger(publisherLogger);
+            batchPublisherUsername = username;
+            batchPublisherToken = token;
+        }
+        return batchPublisher;
+    }
 
-                if (characteristic == Characteristic.BATTERY) {
-                    onBluetoothDataReceived(Characteristic.BATTERY, gattCharacteristic.getValue());
-                }
-            }
-        });
+    /**
+     * @param flushMillis time the batches queued by now have to get through, the publisher closes in the background.
+     */
+    private synchronized void closeBatchPublisher(final long flushMillis) {
+        if (batchPublisher != null) {
+            batchPublisher.close(flushMillis);
+            batchPublisher = null;
+        }
     }
 
-    private void onModeChanged(final Mode newMode) {
-        Log.i(TAG, "Mode changed. New mode is: " + mode);
-        mode = newMode;
+    private final Logger publisherLogger = new Logger() {
+        @Override
+        public void info(final String message) {
+            Log.i(TAG, message);
+        }
+
+        @Override
+        public void error(final String message, final Throwable e) {
+            Log.e(TAG, message, e);
+        }
+    };
 
-        setReadingQueue();
+    void updateNotification() {
+        final List<DeviceSession> connectedSessions = getConnectedSessions();
+        if (!connectedSessions.isEmpty()) {
+            startForeground(NOTIFICATION_ID, getNotification(connectedSessions));
+            return;
+        }
 
-        final Intent modeChanged = new Intent(MODE_CHANGED);
-        modeChanged.putExtra(MODE, newMode);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(modeChanged);
+        NotificationService_.intent(this).stop();
+        notificationManager.notify(NOTIFICATION_ID, getNotification(connectedSessions));
     }
 
-    private void setReadingQueue() {
-        readingQueue.clear();
-        readingQueue.add(Characteristic.MODE.name());
-        final List<String> enabledPreferences = hexiwearDevices.getEnabledPreferences(bluetoothDevice.getAddress());
-        for (String characteristic : enabledPreferences) {
-            if (mode.hasCharacteristic(characteristic)) {
-                readingQueue.add(characteristic);
-            }
-        }
+    void onAlertInDiscovered() {
+        NotificationService_.intent(this).start();
     }
 
     @Receiver(actions = PREFERENCE_CHANGED, local = true)
-    void preferenceChanged(@Receiver.Extra String preferenceName, @Receiver.Extra boolean preferenceEnabled) {
-        if (!mode.hasCharacteristic(preferenceName)) {
-            return;
+    void preferenceChanged(@Receiver.Extra String preferenceName, @Receiver.Extra boolean preferenceEnabled, @Receiver.Extra String deviceAddress) {
+        for (DeviceSession session : getSessions(deviceAddress)) {
+            session.onPreferenceChanged(preferenceName);
         }
+    }
 
-        if (preferenceEnabled) {
-            readingQueue.add(preferenceName);
-        } else {
-            readingQueue.remove(preferenceName);
+    @Receiver(actions = STREAMING_CHANGED, local = true)
+    void onStreamingChanged(@Receiver.Extra String deviceAddress) {
+        for (DeviceSession session : getSessions(deviceAddress)) {
+            session.onStreamingChanged();
         }
     }
 
     @Receiver(actions = PUBLISH_TIME_CHANGED, local = true)
-    void onPublishTimeChanged() {
-        if (hexiwearDevices.shouldTransmit(hexiwearDevice)) {
-            setTracking(false);
-            setTracking(true);
+    void onPublishTimeChanged(@Receiver.Extra String deviceAddress) {
+        for (DeviceSession session : getSessions(deviceAddress)) {
+            session.onPublishTimeChanged();
         }
     }
 
     @Receiver(actions = SHOULD_PUBLISH_CHANGED, local = true)
-    void onShouldPublishChanged() {
-        setTracking(hexiwearDevices.shouldTransmit(hexiwearDevice));
+    void onShouldPublishChanged(@Receiver.Extra String deviceAddress) {
+        for (DeviceSession session : getSessions(deviceAddress)) {
+            session.onShouldPublishChanged();
+        }
     }
 
     @Receiver(actions = NotificationService.MISSED_CALLS_AMOUNT_CHANGED, local = true)
     void onMissedCallsAmountChanged(@Receiver.Extra final int value) {
-        queueNotification(MISSED_CALLS, value);
+        queueNotification(HexiwearConnection.MISSED_CALLS, value);
     }
 
     @Receiver(actions = NotificationService.UNREAD_MESSAGES_AMOUNT_CHANGED, local = true)
     void onUnreadMessagesAmountChanged(@Receiver.Extra final int value) {
-        queueNotification(UNREAD_MESSAGES, value);
+        queueNotification(HexiwearConnection.UNREAD_MESSAGES, value);
     }
 
     @Receiver(actions = NotificationService.UNREAD_EMAILS_AMOUNT_CHANGED, local = true)
     void onUnreadEmailAmountChanged(@Receiver.Extra final int value) {
-        queueNotification(UNREAD_EMAILS, value);
+        queueNotification(HexiwearConnection.UNREAD_EMAILS, value);
     }
 
     private void queueNotification(final byte type, final int amount) {
-        final byte[] notification = new byte[20];
-        notification[0] = WRITE_NOTIFICATION;
-        notification[1] = type;
-        notification[2] = ByteUtils.intToByte(amount);
-        notificationsQueue.add(notification);
-    }
-
-    private void onBluetoothDataReceived(final Characteristic type, final byte[] data) {
-        if (wolk != null && hexiwearDevices.shouldTransmit(hexiwearDevice) && type != Characteristic.BATTERY) {
-            final ReadingType readingType = ReadingType.valueOf(type.name());
-            wolk.addReading(readingType, DataConverter.formatForPublushing(type, data));
+        for (DeviceSession session : getConnectedSessions()) {
+            session.queueNotification(type, amount);
         }
-
-        final Intent dataRead = new Intent(DATA_AVAILABLE);
-        dataRead.putExtra(READING_TYPE, type.getUuid());
-        dataRead.putExtra(STRING_DATA, DataConverter.parseBluetoothData(type, data));
-        sendBroadcast(dataRead);
     }
 
-    void readNextCharacteristics(final BluetoothGatt gatt) {
-        final String characteristicUuid = readingQueue.poll();
-        readingQueue.add(characteristicUuid);
-        readCharacteristic(gatt, Characteristic.valueOf(characteristicUuid));
-    }
-
-    private void readCharacteristic(final BluetoothGatt gatt, final Characteristic characteristic) {
-        if (!isConnected) {
-            return;
+    /**
+     * @return sessions for the given device or all of them if no address is given.
+     */
+    private Collection<DeviceSession> getSessions(final String deviceAddress) {
+        if (deviceAddress == null) {
+            return sessions.values();
         }
 
-        final BluetoothGattCharacteristic gattCharacteristic = readableCharacteristics.get(characteristic.getUuid());
-        if (gattCharacteristic != null) {
-            gatt.readCharacteristic(gattCharacteristic);
-        }
+        final DeviceSession session = sessions.get(deviceAddress);
+        return session == null ? Collections.<DeviceSession>emptyList() : Collections.singletonList(session);
     }
 
-    private void discoverCharacteristics(final BluetoothGatt gatt) {
-        if (gatt.getServices().size() == 0) {
-            Log.i(TAG, "No services found.");
-        }
-
-        for (BluetoothGattService gattService : gatt.getServices()) {
-            storeCharacteristicsFromService(gattService);
-        }
-
-        sendBroadcast(new Intent(SERVICES_AVAILABLE));
-    }
-
-    private void storeCharacteristicsFromService(BluetoothGattService gattService) {
-        for (BluetoothGattCharacteristic gattCharacteristic : gattService.getCharacteristics()) {
-            final String characteristicUuid = gattCharacteristic.getUuid().toString();
-            final Characteristic characteristic = Characteristic.byUuid(characteristicUuid);
-
-            if (characteristic == Characteristic.ALERT_IN) {
-                Log.d(TAG, "ALERT_IN DISCOVERED");
-                alertIn = gattCharacteristic;
-                setTime();
-                updateTime();
-                NotificationService_.intent(BluetoothService.this).start();
-            } else if (characteristic != null) {
-                Log.v(TAG, characteristic.getType() + ": " + characteristic.name());
-                readableCharacteristics.put(characteristicUuid, gattCharacteristic);
-            } else {
-                Log.v(TAG, "UNKNOWN: " + characteristicUuid);
+    private List<DeviceSession> getConnectedSessions() {
+        final List<DeviceSession> connectedSessions = new ArrayList<>();
+        for (DeviceSession session : sessions.values()) {
+            if (session.isConnected()) {
+                connectedSessions.add(session);
             }
         }
-    }
-
-    public void setTime() {
-        Log.d(TAG, "Setting time...");
-        if (!isConnected || alertIn == null) {
-            Log.w(TAG, "Time not set.");
-            return;
-        }
-
-        shouldUpdateTime = true;
-    }
-
-    void updateTime() {
-        shouldUpdateTime = false;
-
-        final byte[] time = new byte[20];
-        final long currentTime = System.currentTimeMillis();
-        final long currentTimeWithTimeZoneOffset = (currentTime + TimeZone.getDefault().getOffset(currentTime)) / 1000;
-
-        final ByteBuffer buffer = ByteBuffer.allocate(8);
-        buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(currentTimeWithTimeZoneOffset);
-        final byte[] utcBytes = buffer.array();
-
-        final byte length = 0x04;
-
-        time[0] = WRITE_TIME;
-        time[1] = length;
-        time[2] = utcBytes[0];
-        time[3] = utcBytes[1];
-        time[4] = utcBytes[2];
-        time[5] = utcBytes[3];
-
-        alertIn.setValue(time);
-        alertIn.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-        bluetoothGatt.writeCharacteristic(alertIn);
-        final Intent intent = new Intent(SHOW_TIME_PROGRESS);
-        sendBroadcast(intent);
-        showToast(R.string.readings_setting_time);
+        return connectedSessions;
     }
 
     @UiThread
@@ -509,31 +346,47 @@ public class BluetoothService extends Service {
         Toast.makeText(getApplicationContext(), messageRes, Toast.LENGTH_SHORT).show();
     }
 
-    public void setTracking(final boolean enabled) {
-        if (enabled) {
-            final int publishInterval = hexiwearDevices.getPublishInterval(hexiwearDevice);
-            wolk.startAutoPublishing(publishInterval);
-        } else {
-            wolk.stopAutoPublishing();
+    public DeviceSession getSession(final String deviceAddress) {
+        return sessions.get(deviceAddress);
+    }
+
+    public List<BluetoothDevice> getDevices() {
+        final List<BluetoothDevice> devices = new ArrayList<>();
+        for (DeviceSession session : sessions.values()) {
+            devices.add(session.getDevice());
         }
+        return devices;
     }
 
-    public boolean isConnected() {
-        return isConnected;
+    /**
+     * @return samples per second received over all sessions.
+     */
+    public float getTotalSamplesPerSecond() {
+        float total = 0;
+        for (DeviceSession session : sessions.values()) {
+            total += session.getSamplesPerSecond();
+        }
+        return total;
     }
 
-    public Mode getCurrentMode() {
-        return mode;
+    public RadioArbiter getRadioArbiter() {
+        return radioArbiter;
     }
 
-    public BluetoothDevice getCurrentDevice() {
-        return bluetoothDevice;
+    /**
+     * @return metrics of the connection to the device or null if it isn't being read.
+     */
+    public LinkMetrics getMetrics(final String deviceAddress) {
+        final DeviceSession session = sessions.get(deviceAddress);
+        return session == null ? null : session.getMetrics();
     }
 
-    private void handleAuthenticationError(final BluetoothGatt gatt) {
-        gatt.close();
-        sendBroadcast(new Intent(BluetoothService.ACTION_NEEDS_BOND));
-        gatt.getDevice().createBond();
+    /**
+     * @return plain text report of the connection to the device or null if it isn't being read.
+     */
+    public String getMetricsReport(final String deviceAddress) {
+        final DeviceSession session = sessions.get(deviceAddress);
+        return session == null ? null : session.getMetricsReport() + radioArbiter + "\n";
     }
 
     @Override
@@ -541,18 +394,22 @@ public class BluetoothService extends Service {
         return new ServiceBinder(this);
     }
 
-    public ManufacturerInfo getManufacturerInfo() {
-        return manufacturerInfo;
-    }
-
-    protected Notification getNotification(final BluetoothDevice device) {
-        final boolean connectionEstablished = isConnected && bluetoothGatt != null && bluetoothGatt.getDevice() != null;
-        final String text = connectionEstablished ? "Device is connected to " + hexiwearDevice.getWolkName() : "Device is not connected.";
+    protected Notification getNotification(final List<DeviceSession> connectedSessions) {
+        final boolean connectionEstablished = !connectedSessions.isEmpty();
+        final String text;
+        if (connectedSessions.size() == 1) {
+            text = "Device is connected to " + connectedSessions.get(0).getHexiwearDevice().getWolkName();
+        } else if (connectionEstablished) {
+            text = connectedSessions.size() + " devices connected at " + String.format(Locale.ENGLISH, "%.1f", getTotalSamplesPerSecond()) + " samples/s";
+        } else {
+            text = "Device is not connected.";
+        }
         final int icon = connectionEstablished ? R.drawable.ic_bluetooth_connected_white_48dp : R.drawable.ic_bluetooth_searching_white_48dp;
 
-        final Intent readingsActivityIntent = ReadingsActivity_.intent(this).flags(Intent.FLAG_ACTIVITY_SINGLE_TOP).device(device).get();
         final Intent mainActivityIntent = MainActivity_.intent(this).flags(Intent.FLAG_ACTIVITY_SINGLE_TOP).get();
-        final Intent launchActivity = connectionEstablished ? readingsActivityIntent : mainActivityIntent;
+        final Intent launchActivity = connectedSessions.size() == 1
+                ? ReadingsActivity_.intent(this).flags(Intent.FLAG_ACTIVITY_SINGLE_TOP).device(connectedSessions.get(0).getDevice()).get()
+                : mainActivityIntent;
         final PendingIntent pendingIntentMain = PendingIntent.getActivity(this, 71, launchActivity, PendingIntent.FLAG_UPDATE_CURRENT);
 
         final Intent stopIntent = new Intent(STOP);
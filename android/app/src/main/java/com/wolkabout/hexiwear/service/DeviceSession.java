@@ -0,0 +1,1030 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.wolkabout.hexiwear.R;
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.HexiwearDevice;
+import com.wolkabout.hexiwear.model.LinkProfile;
+import com.wolkabout.hexiwear.model.ManufacturerInfo;
+import com.wolkabout.hexiwear.model.Mode;
+import com.wolkabout.hexiwear.model.PayloadFormat;
+import com.wolkabout.hexiwear.model.Sample;
+import com.wolkabout.hexiwear.util.BinaryBatchWriter;
+import com.wolkabout.hexiwear.util.ChangeFilter;
+import com.wolkabout.hexiwear.util.HexiwearDevices;
+import com.wolkabout.hexiwear.util.OrientationFilter;
+import com.wolkabout.hexiwear.util.PublishQueue;
+import com.wolkabout.hexiwear.util.ReadingAggregator;
+import com.wolkabout.hexiwear.util.ReadingOutbox;
+import com.wolkabout.hexiwear.util.SampleDecoder;
+import com.wolkabout.hexiwear.util.SampleFormatter;
+import com.wolkabout.hexiwear.util.SampleIntervalEstimator;
+import com.wolkabout.hexiwear.util.SampleRateMeter;
+import com.wolkabout.wolk.Logger;
+import com.wolkabout.wolk.ReadingType;
+import com.wolkabout.wolk.Wolk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Connection to a single Hexiwear: the {@link HexiwearConnection} talking to it, the settings it's read with
+ * and the Wolk publisher its readings go to.
+ */
+public class DeviceSession implements HexiwearConnection.Host {
+
+    private static final String TAG = DeviceSession.class.getSimpleName();
+
+    private static final int SAMPLE_RING_CAPACITY = 256;
+    private static final long INGEST_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long ORIENTATION_PUBLISH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final String OUTBOX_DIRECTORY = "outbox";
+    // Room for a few hundred summaries, the most a batch may need to hold for every entry it reads.
+    private static final int BINARY_BATCH_BYTES = 48 * 1024;
+    private static final String BINARY_TOPIC_FORMAT = "readings/%s/binary";
+    // Retained by the server, the formats it reads from the device, like TEXT,BINARY:2 with the batch version.
+    private static final String FORMATS_TOPIC_FORMAT = "readings/%s/formats";
+    private static final String BINARY_OFFER = PayloadFormat.BINARY.name() + ":" + BinaryBatchWriter.VERSION;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int BATCH_PENDING = 0;
+    private static final int BATCH_DELIVERED = 1;
+    private static final int BATCH_DROPPED = 2;
+    private static final int WOLK_HANDOFFS = 16;
+    // Time Wolk has past the publish interval to report a failed publish.
+    private static final long WOLK_CONFIRM_GRACE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // Wolk reading of each characteristic by ordinal. Older Wolk libraries have no orientation reading,
+    // it isn't published with those.
+    private static final ReadingType[] READING_TYPES = new ReadingType[Characteristic.values().length];
+
+    static {
+        for (Characteristic reading : Characteristic.getDisplayedReadings()) {
+            READING_TYPES[reading.ordinal()] = findReadingType(reading.name());
+        }
+    }
+
+    private final BluetoothService service;
+    private final HexiwearDevices hexiwearDevices;
+    private final BluetoothDevice bluetoothDevice;
+    private final HexiwearDevice hexiwearDevice;
+    private final Wolk wolk;
+    // Every published reading is written here before it leaves, null if it couldn't be opened.
+    private final ReadingOutbox outbox;
+    private final PublishQueue publishQueue;
+    private final HexiwearConnection connection;
+
+    private final ManufacturerInfo manufacturerInfo = new ManufacturerInfo();
+    private final SampleRateMeter sampleRateMeter = new SampleRateMeter();
+    private final SampleIntervalEstimator intervalEstimator = new SampleIntervalEstimator();
+    private final ChangeFilter changeFilter = new ChangeFilter();
+    private final SampleRing sampleRing = new SampleRing(SAMPLE_RING_CAPACITY);
+    private final List<SampleListener> sampleListeners = new CopyOnWriteArrayList<>();
+    // Listeners waiting for the ingest thread to replay the last samples to them, guarded by itself.
+    private final List<SampleListener> newSampleListeners = new ArrayList<>();
+    private volatile boolean hasNewSampleListeners;
+    // Settings of the device, indexed by mode and characteristic ordinals. NaN until read from the preferences.
+    private final float[][] pollingRates = new float[Mode.values().length][Characteristic.values().length];
+    private volatile boolean[] enabledReadings;
+    // Only touched by the ingest thread.
+    private final Sample sample = new Sample();
+    private final SampleFormatter sampleFormatter = new SampleFormatter();
+    private final Sample[] lastSamples = new Sample[Characteristic.values().length];
+    private final OrientationFilter orientationFilter = new OrientationFilter();
+    private final Sample orientationSample = new Sample();
+    private long orientationPublishedAt;
+    private final ReadingAggregator aggregator = new ReadingAggregator();
+    private final Sample aggregateSample = new Sample();
+    private final ReadingAggregator.Summary aggregateSummary = new ReadingAggregator.Summary();
+    private long aggregatesDueAt;
+    private final BinaryBatchWriter batchWriter = new BinaryBatchWriter(BINARY_BATCH_BYTES);
+    private long batchDueAt;
+    // Outbox position after the batch waiting for its acknowledgement, only one is sent at a time.
+    private boolean batchInFlight;
+    private long batchEndPosition;
+    private volatile int batchOutcome;
+    private long wolkWindowEndsAt;
+    private int wolkAllowance;
+    // Readings handed to Wolk, by the queue position after them and when they were handed, oldest first.
+    private final long[] wolkHandoffPositions = new long[WOLK_HANDOFFS];
+    private final long[] wolkHandoffNanos = new long[WOLK_HANDOFFS];
+    private int wolkHandoffHead;
+    private int wolkHandoffCount;
+    private long wolkRetryAt;
+    private long seenWolkErrors;
+    private final AtomicLong wolkErrors = new AtomicLong();
+    private final String batchTopic;
+    // Shared by all sessions, the one the last batch was sent with.
+    private volatile MqttPublisher batchPublisher;
+    private final String formatsTopic;
+    // The one subscribed to the formats topic with, only touched by the ingest thread.
+    private MqttPublisher formatsPublisher;
+    private volatile boolean binaryOffered;
+    // Only touched on the main thread.
+    private boolean wolkPublishing;
+    private final Thread ingestThread;
+
+    private volatile boolean shouldPublish;
+    private volatile boolean networkAvailable;
+    private volatile boolean shouldPublishOrientation;
+    private volatile boolean orientationResetPending;
+    // Null while every sample is published as it arrives.
+    private volatile ReadingAggregator.Statistic aggregation;
+    private volatile long aggregationWindowNanos;
+    private volatile PayloadFormat payloadFormat;
+    private volatile boolean closed;
+
+    DeviceSession(final BluetoothService service, final HexiwearDevices hexiwearDevices,
+                  final BluetoothDevice bluetoothDevice, final Wolk wolk, final RadioArbiter arbiter) {
+        this.service = service;
+        this.hexiwearDevices = hexiwearDevices;
+        this.bluetoothDevice = bluetoothDevice;
+        this.hexiwearDevice = hexiwearDevices.getDevice(bluetoothDevice.getAddress());
+        this.wolk = wolk;
+        if (wolk != null) {
+            wolk.setLogger(wolkLogger);
+        }
+        this.outbox = wolk == null ? null : openOutbox(service, bluetoothDevice.getAddress());
+        this.publishQueue = new PublishQueue(PublishQueue.DEFAULT_CAPACITY, outbox);
+        this.batchTopic = String.format(Locale.ENGLISH, BINARY_TOPIC_FORMAT, hexiwearDevice.getDeviceSerial());
+        this.formatsTopic = String.format(Locale.ENGLISH, FORMATS_TOPIC_FORMAT, hexiwearDevice.getDeviceSerial());
+        this.networkAvailable = service.isNetworkAvailable();
+        this.enabledReadings = hexiwearDevices.getDisplayPreferences(bluetoothDevice.getAddress());
+        loadPublishSettings();
+        for (float[] modeRates : pollingRates) {
+            Arrays.fill(modeRates, Float.NaN);
+        }
+        for (int i = 0; i < lastSamples.length; i++) {
+            lastSamples[i] = new Sample();
+        }
+        this.connection = new HexiwearConnection(new AndroidGattTransport(service, bluetoothDevice), this,
+                new GattOperationScheduler(arbiter));
+
+        if (hexiwearDevices.shouldTransmit(bluetoothDevice)) {
+            setTracking(true);
+        }
+
+        ingestThread = new Thread(ingestLoop, "Ingest " + bluetoothDevice.getAddress());
+        ingestThread.start();
+    }
+
+    void connect() {
+        connection.connect();
+    }
+
+    /**
+     * Disconnects for good, the session can't be used afterwards.
+     */
+    void close() {
+        Log.i(TAG, "Closing session for " + bluetoothDevice.getAddress() + ". " + connection.getScheduler());
+        closed = true;
+        LockSupport.unpark(ingestThread);
+        connection.close();
+        if (wolkPublishing) {
+            wolk.stopAutoPublishing();
+            wolkPublishing = false;
+        }
+    }
+
+    @Override
+    public List<Characteristic> getEnabledReadings() {
+        final boolean[] enabled = enabledReadings;
+        final List<Characteristic> readings = new ArrayList<>();
+        for (Characteristic reading : Characteristic.getReadings()) {
+            if (enabled[reading.ordinal()]) {
+                readings.add(reading);
+            }
+        }
+        return readings;
+    }
+
+    @Override
+    public float getPollingRate(final Mode mode, final Characteristic characteristic) {
+        final float[] modeRates = pollingRates[mode.ordinal()];
+        synchronized (modeRates) {
+            if (Float.isNaN(modeRates[characteristic.ordinal()])) {
+                modeRates[characteristic.ordinal()] = hexiwearDevices.getPollingRate(hexiwearDevice, mode, characteristic);
+            }
+            return modeRates[characteristic.ordinal()];
+        }
+    }
+
+    @Override
+    public boolean shouldStream() {
+        return hexiwearDevices.shouldStream(hexiwearDevice);
+    }
+
+    @Override
+    public void onConnectionStateChanged(final boolean connected) {
+        if (!connected) {
+            sampleRateMeter.reset();
+            changeFilter.clear();
+        }
+
+        service.updateNotification();
+        final Intent connectionStateChanged = new Intent(BluetoothService.CONNECTION_STATE_CHANGED);
+        connectionStateChanged.putExtra(BluetoothService.CONNECTION_STATE, connected);
+        sendBroadcast(connectionStateChanged);
+    }
+
+    @Override
+    public void onServicesAvailable() {
+        sendBroadcast(new Intent(BluetoothService.SERVICES_AVAILABLE));
+    }
+
+    @Override
+    public void onAlertInDiscovered() {
+        service.onAlertInDiscovered();
+    }
+
+    @Override
+    public void onModeChanged(final Mode mode) {
+        sampleRateMeter.reset();
+        intervalEstimator.reset();
+        changeFilter.clear();
+        orientationResetPending = true;
+
+        final Intent modeChanged = new Intent(BluetoothService.MODE_CHANGED);
+        modeChanged.putExtra(BluetoothService.MODE, mode);
+        sendBroadcast(modeChanged);
+    }
+
+    @Override
+    public void onReadingsUpdated() {
+        for (Characteristic characteristic : Characteristic.getReadings()) {
+            changeFilter.setDeadband(characteristic, hexiwearDevices.getDeadband(hexiwearDevice, characteristic));
+        }
+    }
+
+    /**
+     * Runs on the binder thread, the GATT callbacks of a connection are delivered one at a time
+     * so this is the only producer of the ring.
+     */
+    @Override
+    public void onSample(final Characteristic characteristic, final byte[] value, final long timestampNanos) {
+        sampleRing.offer(characteristic, value, timestampNanos);
+    }
+
+    @Override
+    public void onTimeWriteQueued() {
+        sendBroadcast(new Intent(BluetoothService.SHOW_TIME_PROGRESS));
+        service.showToast(R.string.readings_setting_time);
+    }
+
+    @Override
+    public void onTimeWritten() {
+        service.showToast(R.string.readings_time_set_success);
+        sendBroadcast(new Intent(BluetoothService.HIDE_TIME_PROGRESS));
+    }
+
+    @Override
+    public void onAuthenticationRequired() {
+        sendBroadcast(new Intent(BluetoothService.ACTION_NEEDS_BOND));
+        bluetoothDevice.createBond();
+    }
+
+    @Override
+    public void log(final String message) {
+        Log.i(TAG, bluetoothDevice.getAddress() + ": " + message);
+    }
+
+    /**
+     * Changes the polling rate of the characteristic for the current mode.
+     */
+    public void setPollingRate(final Characteristic characteristic, final float rate) {
+        final Mode mode = connection.getMode();
+        if (mode == null) {
+            return;
+        }
+
+        hexiwearDevices.setPollingRate(hexiwearDevice, mode, characteristic, rate);
+        final float[] modeRates = pollingRates[mode.ordinal()];
+        synchronized (modeRates) {
+            modeRates[characteristic.ordinal()] = rate;
+        }
+        connection.requestReadingsUpdate();
+    }
+
+    void onPreferenceChanged(final String preferenceName) {
+        enabledReadings = hexiwearDevices.getDisplayPreferences(bluetoothDevice.getAddress());
+        final Mode mode = connection.getMode();
+        if (mode == null) {
+            return;
+        }
+
+        for (Characteristic characteristic : mode.getCharacteristics()) {
+            if (characteristic.name().equals(preferenceName)) {
+                connection.requestReadingsUpdate();
+                return;
+            }
+        }
+    }
+
+    void onStreamingChanged() {
+        connection.requestReadingsUpdate();
+    }
+
+    void onPublishTimeChanged() {
+        loadPublishSettings();
+        if (hexiwearDevices.shouldTransmit(hexiwearDevice)) {
+            setTracking(false);
+            setTracking(true);
+        }
+    }
+
+    void onShouldPublishChanged() {
+        loadPublishSettings();
+        setTracking(hexiwearDevices.shouldTransmit(hexiwearDevice));
+    }
+
+    private void loadPublishSettings() {
+        shouldPublishOrientation = hexiwearDevices.shouldPublishOrientation(hexiwearDevice);
+        aggregationWindowNanos = TimeUnit.SECONDS.toNanos(hexiwearDevices.getPublishInterval(hexiwearDevice));
+        aggregation = hexiwearDevices.getAggregation(hexiwearDevice);
+        payloadFormat = hexiwearDevices.getPayloadFormat(hexiwearDevice);
+        publishQueue.setPolicy(hexiwearDevices.getOverflowPolicy(hexiwearDevice));
+    }
+
+    void queueNotification(final byte type, final int amount) {
+        connection.queueNotification(type, amount);
+    }
+
+    private final Runnable ingestLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (!closed) {
+                if (hasNewSampleListeners) {
+                    addNewSampleListeners();
+                }
+                sampleRing.drain(sampleSink, SystemClock.elapsedRealtimeNanos());
+                publishAggregates(SystemClock.elapsedRealtimeNanos());
+                publishQueued(SystemClock.elapsedRealtimeNanos());
+                sampleRing.await(INGEST_PARK_NANOS);
+            }
+            awaitBatchOutcome();
+            stopWatchingFormats();
+            if (outbox != null) {
+                outbox.close();
+            }
+        }
+    };
+
+    private final SampleRing.Sink sampleSink = new SampleRing.Sink() {
+        @Override
+        public void onSample(final Characteristic type, final byte[] value, final long timestampNanos) {
+            try {
+                processSample(type, value, timestampNanos);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Couldn't process " + type + " sample.", e);
+            }
+        }
+    };
+
+    private void processSample(final Characteristic type, final byte[] data, final long timestampNanos) {
+        final long timestampMillis = TimeUnit.NANOSECONDS.toMillis(timestampNanos);
+        connection.onSampleHandled(type, data);
+        intervalEstimator.onSample(type, timestampNanos);
+        if (sampleRateMeter.onSample(type, timestampMillis)) {
+            Log.d(TAG, bluetoothDevice.getAddress() + " " + type + (connection.isStreaming(type) ? " streamed" : " polled")
+                    + " at " + sampleRateMeter.getSamplesPerSecond(type) + " samples/s, every "
+                    + intervalEstimator.getIntervalMillis(type) + " ms with " + intervalEstimator.getJitterMillis(type) + " ms jitter, "
+                    + changeFilter.getSuppressedCount(type) + " unchanged samples suppressed, ring "
+                    + sampleRing.getOccupancy() + "/" + sampleRing.getCapacity() + " lagging "
+                    + TimeUnit.NANOSECONDS.toMicros(sampleRing.getLastLagNanos()) + " us");
+        }
+
+        // Motion samples go to the orientation filter even when they're too close to the last one to be shown.
+        final boolean decoded = SampleDecoder.decode(type, data, timestampNanos, sample);
+        if (decoded) {
+            updateOrientation(timestampNanos);
+        }
+
+        // Aggregates see every sample, not only the ones that changed, so the mean isn't skewed.
+        final boolean publishes = wolk != null && shouldPublish && type != Characteristic.BATTERY;
+        final ReadingAggregator.Statistic aggregation = this.aggregation;
+        if (decoded && publishes && aggregation != null) {
+            aggregator.add(sample);
+        }
+
+        if (!changeFilter.accept(type, data, timestampMillis)) {
+            return;
+        }
+
+        if (!decoded) {
+            Log.w(TAG, "Couldn't decode " + type + " sample of " + (data == null ? 0 : data.length) + " bytes.");
+            return;
+        }
+
+        if (publishes && aggregation == null) {
+            publish(sample);
+        }
+
+        dispatch(sample);
+    }
+
+    /**
+     * Publishes one reading per characteristic once the publish interval since the first aggregated sample is up.
+     * Whatever is left is published right away when aggregation is turned off. Binary batches carry the whole
+     * summary, text payloads only the chosen statistic.
+     */
+    private void publishAggregates(final long nowNanos) {
+        if (aggregator.isEmpty()) {
+            aggregatesDueAt = 0;
+            return;
+        }
+
+        if (aggregatesDueAt == 0) {
+            aggregatesDueAt = nowNanos + aggregationWindowNanos;
+        }
+        final ReadingAggregator.Statistic aggregation = this.aggregation;
+        if (aggregation != null && nowNanos < aggregatesDueAt) {
+            return;
+        }
+
+        aggregatesDueAt = 0;
+        if (wolk == null || !shouldPublish) {
+            aggregator.clear();
+            return;
+        }
+
+        final ReadingAggregator.Statistic statistic = aggregation == null ? ReadingAggregator.Statistic.LAST : aggregation;
+        final boolean summarize = getPublishedFormat() == PayloadFormat.BINARY;
+        for (Characteristic characteristic : Characteristic.getReadings()) {
+            if (summarize && aggregator.take(characteristic, aggregateSummary)) {
+                final long ageMillis = TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos()
+                        - aggregateSummary.get(ReadingAggregator.Statistic.LAST).getTimestampNanos());
+                publishQueue.offer(aggregateSummary, System.currentTimeMillis() - ageMillis);
+            } else if (!summarize && aggregator.take(characteristic, statistic, aggregateSample)) {
+                publish(aggregateSample);
+            }
+        }
+    }
+
+    private void updateOrientation(final long timestampNanos) {
+        if (orientationResetPending) {
+            orientationResetPending = false;
+            orientationFilter.reset();
+        }
+        if (!orientationFilter.update(sample)) {
+            return;
+        }
+
+        orientationFilter.getOrientation(timestampNanos, orientationSample);
+        if (wolk != null && shouldPublish && shouldPublishOrientation
+                && (getPublishedFormat() == PayloadFormat.BINARY || READING_TYPES[Characteristic.ORIENTATION.ordinal()] != null)
+                && timestampNanos - orientationPublishedAt >= ORIENTATION_PUBLISH_INTERVAL_NANOS) {
+            orientationPublishedAt = timestampNanos;
+            publish(orientationSample);
+        }
+
+        dispatch(orientationSample);
+    }
+
+    /**
+     * Queues the reading for the publisher, stamped with the wall clock time it was read at.
+     */
+    private void publish(final Sample sample) {
+        final long ageMillis = TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() - sample.getTimestampNanos());
+        publishQueue.offer(sample, System.currentTimeMillis() - ageMillis);
+    }
+
+    /**
+     * Hands queued readings to the publisher while the network is up, they leave the queue once they're known to
+     * have arrived.
+     * <p>
+     * Binary batches go out only once the server offered to read them, see {@link #watchFormats()}, readings go to
+     * Wolk until then. They go out on publish interval boundaries, back to back while readings are left over, but only once
+     * the broker acknowledged the last one. Its readings leave the queue then, a batch that was dropped is read again
+     * at the next boundary. The boundaries are the same for every session, so the shared publisher writes the batches
+     * of all devices in one go.
+     * <p>
+     * Wolk gives no sign of how far it got, only logs an error when a publish fails. It gets at most a queue's worth
+     * per publish interval, and readings handed to it leave the queue once a publish interval and some grace passed
+     * without an error. After an error everything not confirmed is handed again, once a publish interval went by
+     * without another one, so nothing is handed over while the broker can't be reached.
+     */
+    private void publishQueued(final long nowNanos) {
+        if (batchInFlight && !onBatchOutcome(nowNanos)) {
+            return;
+        }
+        confirmWolkHandoffs(nowNanos);
+        if (wolk == null || !shouldPublish || !networkAvailable) {
+            return;
+        }
+        watchFormats();
+        if (publishQueue.isEmpty()) {
+            return;
+        }
+
+        if (getPublishedFormat() == PayloadFormat.BINARY) {
+            if (wolkHandoffCount > 0) {
+                return;
+            }
+            if (batchDueAt == 0) {
+                batchDueAt = getNextBatchBoundary(nowNanos);
+            }
+            if (nowNanos < batchDueAt) {
+                return;
+            }
+
+            publishQueue.read(batchSink, batchWriter.getFreeEntries());
+            sendBatch();
+            batchDueAt = batchInFlight ? nowNanos : getNextBatchBoundary(nowNanos);
+            return;
+        }
+
+        if (nowNanos >= wolkWindowEndsAt) {
+            wolkWindowEndsAt = nowNanos + aggregationWindowNanos;
+            wolkAllowance = publishQueue.getCapacity();
+        }
+        if (wolkAllowance > 0 && nowNanos >= wolkRetryAt) {
+            final int read = publishQueue.read(wolkSink, wolkAllowance);
+            if (read > 0) {
+                wolkAllowance -= read;
+                addWolkHandoff(publishQueue.getReadPosition(), nowNanos);
+            }
+        }
+    }
+
+    /**
+     * Takes the readings Wolk had time to publish off the queue, or has everything not confirmed handed again after
+     * it logged an error.
+     */
+    private void confirmWolkHandoffs(final long nowNanos) {
+        final long errors = wolkErrors.get();
+        if (errors != seenWolkErrors) {
+            seenWolkErrors = errors;
+            wolkRetryAt = nowNanos + aggregationWindowNanos;
+            if (wolkHandoffCount > 0) {
+                wolkHandoffCount = 0;
+                publishQueue.rewind();
+            }
+            return;
+        }
+
+        final long confirmNanos = aggregationWindowNanos + WOLK_CONFIRM_GRACE_NANOS;
+        while (wolkHandoffCount > 0 && nowNanos - wolkHandoffNanos[wolkHandoffHead] >= confirmNanos) {
+            publishQueue.acknowledge(wolkHandoffPositions[wolkHandoffHead]);
+            wolkHandoffHead = (wolkHandoffHead + 1) % WOLK_HANDOFFS;
+            wolkHandoffCount--;
+        }
+    }
+
+    /**
+     * Readings handed soon after the last ones join them, so the handoffs of a publish interval fit.
+     */
+    private void addWolkHandoff(final long position, final long nowNanos) {
+        int index = (wolkHandoffHead + wolkHandoffCount - 1) % WOLK_HANDOFFS;
+        final long joinNanos = (aggregationWindowNanos + WOLK_CONFIRM_GRACE_NANOS) / WOLK_HANDOFFS;
+        if (wolkHandoffCount == 0 || wolkHandoffCount < WOLK_HANDOFFS && nowNanos - wolkHandoffNanos[index] >= joinNanos) {
+            index = (wolkHandoffHead + wolkHandoffCount) % WOLK_HANDOFFS;
+            wolkHandoffCount++;
+        }
+        // Confirmed once there was time to publish the last reading in it.
+        wolkHandoffPositions[index] = position;
+        wolkHandoffNanos[index] = nowNanos;
+    }
+
+    private final Logger wolkLogger = new Logger() {
+        @Override
+        public void info(final String message) {
+            Log.i(TAG, message);
+        }
+
+        @Override
+        public void error(final String message, final Throwable e) {
+            // Taken as a publish that failed, whatever Wolk was doing.
+            wolkErrors.incrementAndGet();
+            LockSupport.unpark(ingestThread);
+            Log.e(TAG, message, e);
+        }
+    };
+
+    private final PublishQueue.Sink wolkSink = new PublishQueue.Sink() {
+        @Override
+        public void onReading(final Sample sample, final long timestampMillis) {
+            final ReadingType readingType = READING_TYPES[sample.getCharacteristicOrdinal()];
+            if (readingType != null) {
+                wolk.addReading(readingType, sampleFormatter.formatForPublishing(sample));
+            }
+        }
+
+        @Override
+        public void onSummary(final ReadingAggregator.Summary summary, final long timestampMillis) {
+            // Queued while publishing binary batches.
+            final ReadingAggregator.Statistic aggregation = DeviceSession.this.aggregation;
+            onReading(summary.get(aggregation == null ? ReadingAggregator.Statistic.LAST : aggregation), timestampMillis);
+        }
+    };
+
+    private final PublishQueue.Sink batchSink = new PublishQueue.Sink() {
+        @Override
+        public void onReading(final Sample sample, final long timestampMillis) {
+            batchWriter.add(sample, timestampMillis);
+        }
+
+        @Override
+        public void onSummary(final ReadingAggregator.Summary summary, final long timestampMillis) {
+            batchWriter.add(summary, timestampMillis);
+        }
+    };
+
+    /**
+     * Keeps the device subscribed to what the server offers while binary batches are asked for, through the shared
+     * publisher that would carry them. The server's retained answer comes again after every reconnect.
+     */
+    private void watchFormats() {
+        if (payloadFormat != PayloadFormat.BINARY) {
+            stopWatchingFormats();
+        } else if (formatsPublisher == null || formatsPublisher.isClosed()) {
+            formatsPublisher = service.getBatchPublisher();
+            formatsPublisher.subscribe(formatsTopic, formatsListener);
+        }
+    }
+
+    private void stopWatchingFormats() {
+        if (formatsPublisher != null) {
+            formatsPublisher.unsubscribe(formatsTopic);
+            formatsPublisher = null;
+            binaryOffered = false;
+        }
+    }
+
+    private final MqttPublisher.MessageListener formatsListener = new MqttPublisher.MessageListener() {
+        @Override
+        public void onMessage(final String topic, final byte[] payload) {
+            boolean offered = false;
+            for (String format : new String(payload, ASCII).split(",")) {
+                offered |= format.trim().equalsIgnoreCase(BINARY_OFFER);
+            }
+            if (offered != binaryOffered) {
+                Log.i(TAG, formatsTopic + (offered ? " offers " : " no longer offers ") + BINARY_OFFER);
+            }
+            binaryOffered = offered;
+        }
+    };
+
+    /**
+     * @return the format asked for, but text while the server hasn't offered to read binary batches of this version.
+     */
+    private PayloadFormat getPublishedFormat() {
+        return payloadFormat == PayloadFormat.BINARY && !binaryOffered ? PayloadFormat.TEXT : payloadFormat;
+    }
+
+    private void sendBatch() {
+        if (batchWriter.isEmpty()) {
+            return;
+        }
+
+        // Asked every time, the service opens a new one when the account's credentials change.
+        batchPublisher = service.getBatchPublisher();
+        batchOutcome = BATCH_PENDING;
+        if (batchPublisher.publish(batchTopic, batchWriter.getBuffer(), 0, batchWriter.getLength(), batchListener)) {
+            batchInFlight = true;
+            batchEndPosition = publishQueue.getReadPosition();
+        } else {
+            // The publisher's queue is full, the readings are read again at the next boundary.
+            publishQueue.rewind();
+        }
+        batchWriter.clear();
+    }
+
+    /**
+     * @return true once the broker acknowledged the batch in flight or it was dropped.
+     */
+    private boolean onBatchOutcome(final long nowNanos) {
+        final int outcome = batchOutcome;
+        if (outcome == BATCH_PENDING) {
+            return false;
+        }
+
+        batchInFlight = false;
+        if (outcome == BATCH_DELIVERED) {
+            publishQueue.acknowledge(batchEndPosition);
+            if (publishQueue.isEmpty()) {
+                batchDueAt = 0;
+            }
+        } else {
+            publishQueue.rewind();
+            batchDueAt = getNextBatchBoundary(nowNanos);
+        }
+        return true;
+    }
+
+    /**
+     * Gives the batch in flight the time the closing publisher has to get it through, so its readings don't go again
+     * with the next session.
+     */
+    private void awaitBatchOutcome() {
+        final long deadline = SystemClock.elapsedRealtimeNanos() + TimeUnit.MILLISECONDS.toNanos(MqttPublisher.CLOSE_FLUSH_MILLIS);
+        while (batchInFlight && batchOutcome == BATCH_PENDING && SystemClock.elapsedRealtimeNanos() < deadline) {
+            LockSupport.parkNanos(INGEST_PARK_NANOS);
+        }
+        if (batchInFlight) {
+            onBatchOutcome(SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    private long getNextBatchBoundary(final long nowNanos) {
+        return (nowNanos / aggregationWindowNanos + 1) * aggregationWindowNanos;
+    }
+
+    private final MqttPublisher.DeliveryListener batchListener = new MqttPublisher.DeliveryListener() {
+        @Override
+        public void onDelivered(final String topic) {
+            batchOutcome = BATCH_DELIVERED;
+            LockSupport.unpark(ingestThread);
+        }
+
+        @Override
+        public void onDropped(final String topic) {
+            batchOutcome = BATCH_DROPPED;
+            LockSupport.unpark(ingestThread);
+        }
+    };
+
+    private static ReadingOutbox openOutbox(final BluetoothService service, final String deviceAddress) {
+        final File directory = new File(new File(service.getFilesDir(), OUTBOX_DIRECTORY), deviceAddress.replace(":", ""));
+        try {
+            return new ReadingOutbox(directory);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't open the outbox in " + directory + ", readings will only be kept in memory.", e);
+            return null;
+        }
+    }
+
+    void onNetworkAvailabilityChanged(final boolean available) {
+        networkAvailable = available;
+        if (available) {
+            LockSupport.unpark(ingestThread);
+        }
+    }
+
+    private void dispatch(final Sample sample) {
+        lastSamples[sample.getCharacteristicOrdinal()].copyFrom(sample);
+        for (SampleListener listener : sampleListeners) {
+            listener.onSample(sample);
+        }
+    }
+
+    private static ReadingType findReadingType(final String name) {
+        for (ReadingType readingType : ReadingType.values()) {
+            if (readingType.name().equals(name)) {
+                return readingType;
+            }
+        }
+        Log.i(TAG, "Wolk has no " + name + " reading, it won't be published.");
+        return null;
+    }
+
+    /**
+     * The listener first gets the last sample of every reading seen so far, then the new ones as they arrive.
+     */
+    public void addSampleListener(final SampleListener listener) {
+        synchronized (newSampleListeners) {
+            newSampleListeners.add(listener);
+            hasNewSampleListeners = true;
+        }
+        LockSupport.unpark(ingestThread);
+    }
+
+    public void removeSampleListener(final SampleListener listener) {
+        synchronized (newSampleListeners) {
+            newSampleListeners.remove(listener);
+            sampleListeners.remove(listener);
+        }
+    }
+
+    private void addNewSampleListeners() {
+        synchronized (newSampleListeners) {
+            for (SampleListener listener : newSampleListeners) {
+                for (Sample lastSample : lastSamples) {
+                    if (lastSample.getCharacteristicOrdinal() >= 0) {
+                        listener.onSample(lastSample);
+                    }
+                }
+                sampleListeners.add(listener);
+            }
+            newSampleListeners.clear();
+            hasNewSampleListeners = false;
+        }
+    }
+
+    public void setTime() {
+        Log.d(TAG, "Setting time...");
+        connection.setTime();
+    }
+
+    public void setTracking(final boolean enabled) {
+        if (wolk == null) {
+            return;
+        }
+
+        shouldPublish = enabled;
+        if (wolkPublishing) {
+            wolk.stopAutoPublishing();
+            wolkPublishing = false;
+        }
+        // Idle while the device publishes binary batches, Wolk publishes only what it's handed.
+        if (enabled) {
+            final int publishInterval = hexiwearDevices.getPublishInterval(hexiwearDevice);
+            wolk.startAutoPublishing(publishInterval);
+            wolkPublishing = true;
+        }
+    }
+
+    private void sendBroadcast(final Intent intent) {
+        intent.putExtra(BluetoothService.DEVICE_ADDRESS, bluetoothDevice.getAddress());
+        service.sendBroadcast(intent);
+    }
+
+    public BluetoothDevice getDevice() {
+        return bluetoothDevice;
+    }
+
+    public HexiwearDevice getHexiwearDevice() {
+        return hexiwearDevice;
+    }
+
+    public boolean isConnected() {
+        return connection.isConnected();
+    }
+
+    public Mode getCurrentMode() {
+        return connection.getMode();
+    }
+
+    public ManufacturerInfo getManufacturerInfo() {
+        manufacturerInfo.manufacturer = connection.getManufacturer();
+        manufacturerInfo.firmwareRevision = connection.getFirmwareRevision();
+        return manufacturerInfo;
+    }
+
+    public float getSamplesPerSecond(final Characteristic characteristic) {
+        return sampleRateMeter.getSamplesPerSecond(characteristic);
+    }
+
+    /**
+     * @return samples per second received from this device over all readings.
+     */
+    public float getSamplesPerSecond() {
+        float total = 0;
+        for (Characteristic characteristic : Characteristic.getReadings()) {
+            total += sampleRateMeter.getSamplesPerSecond(characteristic);
+        }
+        return total;
+    }
+
+    public float getEffectivePollingRate(final Characteristic characteristic) {
+        return connection.getEffectivePollingRate(characteristic);
+    }
+
+    public SampleRing getSampleRing() {
+        return sampleRing;
+    }
+
+    public long getSuppressedCount(final Characteristic characteristic) {
+        return changeFilter.getSuppressedCount(characteristic);
+    }
+
+    /**
+     * @return samples dropped because they didn't change, over all readings.
+     */
+    public long getSuppressedCount() {
+        return changeFilter.getSuppressedCount();
+    }
+
+    /**
+     * Lets the next sample of every reading through, even if it didn't change.
+     */
+    public void requestFreshReadings() {
+        changeFilter.clear();
+    }
+
+    /**
+     * Changes how far the reading may move before it's published again.
+     */
+    public void setDeadband(final Characteristic characteristic, final float deadband) {
+        hexiwearDevices.setDeadband(hexiwearDevice, characteristic, deadband);
+        changeFilter.setDeadband(characteristic, deadband);
+    }
+
+    public boolean isStreaming(final Characteristic characteristic) {
+        return connection.isStreaming(characteristic);
+    }
+
+    /**
+     * @return profile the link is tuned for or null if it's left at the system defaults.
+     */
+    public LinkProfile getLinkProfile() {
+        return connection.getLinkProfile();
+    }
+
+    /**
+     * @return MTU negotiated for the current connection.
+     */
+    public int getMtu() {
+        return connection.getMtu();
+    }
+
+    public GattOperationScheduler getScheduler() {
+        return connection.getScheduler();
+    }
+
+    public LinkMetrics getMetrics() {
+        return connection.getMetrics();
+    }
+
+    /**
+     * @return plain text report of the link and its metrics, detailed enough to compare phones and firmware versions.
+     */
+    public String getMetricsReport() {
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ENGLISH, "%s, firmware %s, %s %s on Android %s%n",
+                bluetoothDevice.getAddress(), connection.getFirmwareRevision(), Build.MANUFACTURER, Build.MODEL, Build.VERSION.RELEASE));
+        report.append(String.format(Locale.ENGLISH, "%s, mode %s, link %s, MTU %d, %d unchanged samples suppressed%n",
+                connection.isConnected() ? "connected" : "disconnected", connection.getMode(), connection.getLinkProfile(),
+                connection.getMtu(), changeFilter.getSuppressedCount()));
+        report.append(String.format(Locale.ENGLISH, "Ring %d/%d, max %d, %d dropped, max lag %d us%n",
+                sampleRing.getOccupancy(), sampleRing.getCapacity(), sampleRing.getMaxOccupancy(), sampleRing.getDroppedCount(),
+                TimeUnit.NANOSECONDS.toMicros(sampleRing.getMaxLagNanos())));
+        final ReadingAggregator.Statistic aggregation = this.aggregation;
+        if (aggregation != null) {
+            report.append(String.format(Locale.ENGLISH, "Publishing the %s every %d s, %d samples published as %d readings%n",
+                    getPublishedFormat() == PayloadFormat.BINARY ? "count, minimum, maximum, mean and last value" : aggregation,
+                    TimeUnit.NANOSECONDS.toSeconds(aggregationWindowNanos), aggregator.getAggregatedSamples(),
+                    aggregator.getAggregatedReadings()));
+        }
+        report.append(String.format(Locale.ENGLISH, "Publishing %s%s, queue %d/%d, max %d, %s, %d dropped, %d replaced, full for %d ms%n",
+                getPublishedFormat(), getPublishedFormat() == payloadFormat ? "" : " until the server offers " + BINARY_OFFER,
+                publishQueue.size(), publishQueue.getCapacity(), publishQueue.getMaxSize(), publishQueue.getPolicy(),
+                publishQueue.getDroppedReadings(), publishQueue.getReplacedReadings(), publishQueue.getFullMillis()));
+        if (outbox != null) {
+            final long oldestMillis = outbox.getOldestPendingMillis();
+            report.append(String.format(Locale.ENGLISH, "Outbox %d readings (%d of %d bytes) waiting%s, %d forwarded, %d dropped, network %s%n",
+                    outbox.getPendingRecords(), outbox.getPendingBytes(), outbox.getMaxBytes(),
+                    oldestMillis == 0 ? "" : ", oldest " + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - oldestMillis) + " s old",
+                    outbox.getForwardedRecords(), outbox.getDroppedRecords(), networkAvailable ? "up" : "down"));
+        }
+        if (wolk != null) {
+            report.append(String.format(Locale.ENGLISH, "Wolk %d handoffs waiting to be confirmed, %d errors%n",
+                    wolkHandoffCount, wolkErrors.get()));
+        }
+        final MqttPublisher batchPublisher = this.batchPublisher;
+        if (batchPublisher != null) {
+            report.append(String.format(Locale.ENGLISH, "Shared batch publisher %d sent (%d bytes) in %d writes, %d queued, %d dropped, "
+                            + "%d failed connects, last ack in %d ms, %s%n",
+                    batchPublisher.getPublishedMessages(), batchPublisher.getPublishedBytes(), batchPublisher.getGroupCount(),
+                    batchPublisher.getQueuedMessages(),
+                    batchPublisher.getDroppedMessages(), batchPublisher.getFailedConnects(),
+                    TimeUnit.MICROSECONDS.toMillis(batchPublisher.getLastAckMicros()),
+                    batchPublisher.isConnected() ? "connected" : "not connected"));
+        }
+        report.append(connection.getScheduler()).append('\n');
+        intervalEstimator.appendTo(report);
+        connection.getMetrics().appendTo(report);
+        return report.toString();
+    }
+
+    /**
+     * Receives the last known samples and then every sample that made it past the change filter,
+     * on the session's ingest thread.
+     * The sample is reused for the next one, copy whatever is needed after returning.
+     */
+    public interface SampleListener {
+
+        void onSample(Sample sample);
+    }
+}
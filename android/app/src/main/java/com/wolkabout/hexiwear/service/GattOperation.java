@@ -0,0 +1,70 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+/**
+ * Single GATT request executed by {@link GattOperationScheduler}.
+ * The target is the object reported back by the GATT callback once the request completes.
+ */
+public abstract class GattOperation {
+
+    private final Priority priority;
+    private final String description;
+    private final Object target;
+
+    int attempts;
+    long enqueuedAt;
+
+    protected GattOperation(final Priority priority, final String description, final Object target) {
+        this.priority = priority;
+        this.description = description;
+        this.target = target;
+    }
+
+    /**
+     * Issues the GATT request.
+     *
+     * @return false if the request couldn't be issued.
+     */
+    public abstract boolean execute();
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public Object getTarget() {
+        return target;
+    }
+
+    @Override
+    public String toString() {
+        return priority + " " + description;
+    }
+
+    /**
+     * Ordered from the most to the least important.
+     */
+    public enum Priority {
+        CONTROL, // Time sync, alerts and subscriptions.
+        READING,
+        INFO
+    }
+}
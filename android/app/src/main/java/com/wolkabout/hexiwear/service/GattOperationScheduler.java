@@ -0,0 +1,376 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs GATT operations one at a time, most important first.
+ * <p>
+ * Android allows only one outstanding GATT request per connection. Every operation is guarded by a timeout
+ * so a lost callback is retried instead of stalling the connection. When nothing is queued, the idle source
+ * is asked for the next sensor poll and, if none is due yet, the scheduler wakes up again when it will be.
+ * With several devices connected, the schedulers take turns through a shared {@link RadioArbiter}.
+ */
+public class GattOperationScheduler {
+
+    private static final GattOperation.Priority[] PRIORITIES = GattOperation.Priority.values();
+    private static final long DEFAULT_TIMEOUT_MILLIS = 3000;
+    private static final int DEFAULT_MAX_RETRIES = 2;
+    private static final long RETRY_DELAY_MILLIS = 50;
+    private static final long STARVATION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ArrayDeque<GattOperation>[] queues;
+    private final int[] maxQueueDepths = new int[PRIORITIES.length];
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final long timeoutMillis;
+    private final int maxRetries;
+    private final RadioArbiter arbiter;
+
+    private IdleOperationSource idleSource;
+    private GattOperation current;
+    private ScheduledFuture<?> pendingTimeout;
+    private ScheduledFuture<?> pendingWakeUp;
+    private long deadline;
+    private boolean running;
+    private boolean holdsSlot;
+
+    private long executed;
+    private long completed;
+    private long retries;
+    private long timeouts;
+    private long failures;
+    private long staleCompletions;
+
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            wakeUp();
+        }
+    };
+
+    public GattOperationScheduler() {
+        this(null);
+    }
+
+    public GattOperationScheduler(final RadioArbiter arbiter) {
+        this(DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_RETRIES, arbiter);
+    }
+
+    @SuppressWarnings("unchecked")
+    public GattOperationScheduler(final long timeoutMillis, final int maxRetries, final RadioArbiter arbiter) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxRetries = maxRetries;
+        this.arbiter = arbiter;
+        queues = new ArrayDeque[PRIORITIES.length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    public synchronized void setIdleSource(final IdleOperationSource idleSource) {
+        this.idleSource = idleSource;
+    }
+
+    public synchronized void enqueue(final GattOperation operation) {
+        if (operation == null) {
+            return;
+        }
+
+        operation.attempts = 0;
+        operation.enqueuedAt = System.nanoTime();
+        final int index = operation.getPriority().ordinal();
+        queues[index].addLast(operation);
+        maxQueueDepths[index] = Math.max(maxQueueDepths[index], queues[index].size());
+        dispatch();
+    }
+
+    public synchronized void start() {
+        running = true;
+        dispatch();
+    }
+
+    /**
+     * Drops the operation in flight and everything queued.
+     */
+    public synchronized void stop() {
+        running = false;
+        cancelTimeout();
+        cancelWakeUp();
+        current = null;
+        releaseSlot();
+        if (arbiter != null) {
+            arbiter.cancel(this);
+        }
+        for (ArrayDeque<GattOperation> queue : queues) {
+            queue.clear();
+        }
+    }
+
+    public void shutdown() {
+        stop();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Lets the scheduler know the idle source might have work again.
+     */
+    public synchronized void wakeUp() {
+        dispatch();
+    }
+
+    /**
+     * Called from the GATT callback of the request with the given target.
+     */
+    public synchronized void onOperationCompleted(final Object target, final boolean success) {
+        if (current == null || current.getTarget() != target) {
+            staleCompletions++;
+            return;
+        }
+
+        cancelTimeout();
+        final GattOperation operation = current;
+        current = null;
+        releaseSlot();
+        if (success) {
+            completed++;
+        } else {
+            retry(operation);
+        }
+        dispatch();
+    }
+
+    private synchronized void onTimeout() {
+        if (current == null || System.nanoTime() < deadline) {
+            return;
+        }
+
+        timeouts++;
+        final GattOperation operation = current;
+        current = null;
+        releaseSlot();
+        retry(operation);
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (running && current == null) {
+            if (!acquireSlot()) {
+                // The arbiter wakes us up once it's our turn.
+                return;
+            }
+
+            final GattOperation operation = nextOperation();
+            if (operation == null) {
+                releaseSlot();
+                scheduleWakeUp();
+                return;
+            }
+
+            current = operation;
+            operation.attempts++;
+            executed++;
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            pendingTimeout = timer.schedule(timeoutTask, timeoutMillis, TimeUnit.MILLISECONDS);
+
+            boolean started;
+            try {
+                started = operation.execute();
+            } catch (RuntimeException e) {
+                started = false;
+            }
+
+            if (!started) {
+                // The stack is busy or the link is gone, back off instead of spinning.
+                cancelTimeout();
+                current = null;
+                releaseSlot();
+                retry(operation);
+                timer.schedule(dispatchTask, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+    }
+
+    private GattOperation nextOperation() {
+        final ArrayDeque<GattOperation> control = queues[GattOperation.Priority.CONTROL.ordinal()];
+        if (!control.isEmpty()) {
+            return control.pollFirst();
+        }
+
+        // Lower priorities waiting for too long are served first so polling can't starve them.
+        final long now = System.nanoTime();
+        for (int i = queues.length - 1; i > 0; i--) {
+            final GattOperation head = queues[i].peekFirst();
+            if (head != null && now - head.enqueuedAt > STARVATION_NANOS) {
+                return queues[i].pollFirst();
+            }
+        }
+
+        final ArrayDeque<GattOperation> readings = queues[GattOperation.Priority.READING.ordinal()];
+        if (!readings.isEmpty()) {
+            return readings.pollFirst();
+        }
+
+        if (idleSource != null) {
+            final GattOperation idleOperation = idleSource.nextIdleOperation();
+            if (idleOperation != null) {
+                idleOperation.attempts = 0;
+                idleOperation.enqueuedAt = now;
+                return idleOperation;
+            }
+        }
+
+        return queues[GattOperation.Priority.INFO.ordinal()].pollFirst();
+    }
+
+    private boolean acquireSlot() {
+        if (arbiter != null && !holdsSlot) {
+            holdsSlot = arbiter.tryAcquire(this);
+            return holdsSlot;
+        }
+        return true;
+    }
+
+    private void releaseSlot() {
+        if (holdsSlot) {
+            holdsSlot = false;
+            arbiter.release();
+        }
+    }
+
+    /**
+     * Called by the arbiter while holding its lock, so the dispatch is handed over to the timer thread.
+     */
+    void onSlotAvailable() {
+        try {
+            timer.execute(dispatchTask);
+        } catch (RejectedExecutionException e) {
+            // Already shut down.
+        }
+    }
+
+    private void retry(final GattOperation operation) {
+        if (operation.attempts > maxRetries) {
+            failures++;
+            return;
+        }
+
+        retries++;
+        queues[operation.getPriority().ordinal()].addFirst(operation);
+    }
+
+    private void scheduleWakeUp() {
+        cancelWakeUp();
+        if (idleSource == null) {
+            return;
+        }
+
+        final long delay = idleSource.getNextIdleDelayMillis();
+        if (delay >= 0) {
+            pendingWakeUp = timer.schedule(dispatchTask, Math.max(delay, 1), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelWakeUp() {
+        if (pendingWakeUp != null) {
+            pendingWakeUp.cancel(false);
+            pendingWakeUp = null;
+        }
+    }
+
+    private void cancelTimeout() {
+        if (pendingTimeout != null) {
+            pendingTimeout.cancel(false);
+            pendingTimeout = null;
+        }
+    }
+
+    public synchronized int getQueueDepth(final GattOperation.Priority priority) {
+        return queues[priority.ordinal()].size();
+    }
+
+    public synchronized int getMaxQueueDepth(final GattOperation.Priority priority) {
+        return maxQueueDepths[priority.ordinal()];
+    }
+
+    public synchronized long getExecutedCount() {
+        return executed;
+    }
+
+    public synchronized long getCompletedCount() {
+        return completed;
+    }
+
+    public synchronized long getRetryCount() {
+        return retries;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return timeouts;
+    }
+
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    public synchronized long getStaleCompletionCount() {
+        return staleCompletions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GattOperationScheduler{" +
+                "queued=" + queues[0].size() + "/" + queues[1].size() + "/" + queues[2].size() +
+                ", executed=" + executed +
+                ", completed=" + completed +
+                ", retries=" + retries +
+                ", timeouts=" + timeouts +
+                ", failures=" + failures +
+                ", stale=" + staleCompletions +
+                '}';
+    }
+
+    public interface IdleOperationSource {
+
+        /**
+         * @return the next operation to run when nothing is queued or null if there is nothing to do.
+         */
+        GattOperation nextIdleOperation();
+
+        /**
+         * @return milliseconds until the next idle operation is due or -1 if there is nothing to wait for.
+         */
+        long getNextIdleDelayMillis();
+    }
+}
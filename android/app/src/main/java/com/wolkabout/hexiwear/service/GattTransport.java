@@ -0,0 +1,100 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+
+/**
+ * GATT client connection to a single device, addressed by {@link Characteristic} instead of platform handles.
+ * <p>
+ * Requests return false if they couldn't be issued, otherwise their result arrives through the callback.
+ * Callbacks of one connection are delivered one at a time. Status codes are the ATT ones Android reports.
+ */
+public interface GattTransport {
+
+    int STATUS_SUCCESS = 0;
+    int STATUS_INVALID_HANDLE = 0x01;
+    int STATUS_INSUFFICIENT_AUTHENTICATION = 0x05;
+    int STATUS_FAILURE = 0x101;
+
+    /**
+     * Starts connecting. The transport keeps reconnecting on its own until it is closed.
+     */
+    void connect(Callback callback);
+
+    /**
+     * Asks for the link to be reestablished right away after a disconnect.
+     */
+    void reconnect();
+
+    void close();
+
+    boolean discoverServices();
+
+    /**
+     * @return true if the services of a previous discovery on this connection can still be used.
+     */
+    boolean hasServices();
+
+    boolean hasCharacteristic(Characteristic characteristic);
+
+    boolean supportsNotifications(Characteristic characteristic);
+
+    boolean read(Characteristic characteristic);
+
+    boolean write(Characteristic characteristic, byte[] value);
+
+    boolean subscribe(Characteristic characteristic, Subscription subscription);
+
+    boolean requestMtu(int mtu);
+
+    /**
+     * @return false if the connection priority can't be changed on this platform.
+     */
+    boolean requestConnectionPriority(int connectionPriority);
+
+    enum Subscription {
+        NONE, NOTIFICATIONS, INDICATIONS
+    }
+
+    interface Callback {
+
+        void onConnectionStateChanged(boolean connected);
+
+        void onServicesDiscovered(int status);
+
+        /**
+         * @param timestampNanos monotonic time the value arrived at, elapsedRealtimeNanos on Android.
+         */
+        void onRead(Characteristic characteristic, byte[] value, int status, long timestampNanos);
+
+        void onWrite(Characteristic characteristic, byte[] value, int status);
+
+        void onSubscribed(Characteristic characteristic, int status);
+
+        /**
+         * @param timestampNanos monotonic time the value arrived at, elapsedRealtimeNanos on Android.
+         */
+        void onChanged(Characteristic characteristic, byte[] value, long timestampNanos);
+
+        void onMtuChanged(int mtu, int status);
+    }
+}
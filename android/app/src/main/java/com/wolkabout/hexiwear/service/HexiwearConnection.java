@@ -0,0 +1,576 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.LinkProfile;
+import com.wolkabout.hexiwear.model.Mode;
+import com.wolkabout.hexiwear.util.ByteUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hexiwear protocol over a {@link GattTransport}: service discovery, mode tracking, subscriptions and polling,
+ * link tuning and ALERT_IN commands. Settings and results go through the {@link Host}.
+ * <p>
+ * Only plain Java is used here so the protocol runs against a simulated device as well.
+ */
+public class HexiwearConnection {
+
+    // Notification types
+    static final byte MISSED_CALLS = 2;
+    static final byte UNREAD_MESSAGES = 4;
+    static final byte UNREAD_EMAILS = 6;
+
+    // Alert In commands
+    private static final byte WRITE_NOTIFICATION = 1;
+    private static final byte WRITE_TIME = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final GattTransport transport;
+    private final Host host;
+    private final GattOperationScheduler scheduler;
+    private final PollingScheduler pollingScheduler = new PollingScheduler();
+    private final Set<Characteristic> streamingCharacteristics = Collections.synchronizedSet(EnumSet.noneOf(Characteristic.class));
+    private final Object[] subscriptionRequests = new Object[Characteristic.values().length];
+    private final Object mtuRequest = new Object();
+    private final LinkMetrics metrics = new LinkMetrics();
+
+    private volatile boolean shouldUpdateReadings;
+    private volatile boolean isConnected;
+    // Set while the services of the previous connection are used without discovering them again.
+    private volatile boolean servicesReused;
+    private volatile boolean hasAlertIn;
+    private volatile LinkProfile linkProfile;
+    private volatile int mtu = LinkProfile.DEFAULT_MTU;
+    private volatile String manufacturer;
+    private volatile String firmwareRevision;
+    private volatile Mode mode;
+
+    public HexiwearConnection(final GattTransport transport, final Host host, final GattOperationScheduler scheduler) {
+        this.transport = transport;
+        this.host = host;
+        this.scheduler = scheduler;
+        scheduler.setIdleSource(pollingSource);
+        for (int i = 0; i < subscriptionRequests.length; i++) {
+            subscriptionRequests[i] = new Object();
+        }
+    }
+
+    public void connect() {
+        transport.connect(callback);
+    }
+
+    /**
+     * Disconnects for good, the connection can't be used afterwards.
+     */
+    public void close() {
+        isConnected = false;
+        scheduler.shutdown();
+        transport.close();
+    }
+
+    private final GattTransport.Callback callback = new GattTransport.Callback() {
+        @Override
+        public void onConnectionStateChanged(final boolean connected) {
+            isConnected = connected;
+            if (connected) {
+                host.log("Connected.");
+                if (transport.hasServices() && firmwareRevision != null) {
+                    host.log("Reusing the services of the last connection, skipping service discovery.");
+                    servicesReused = true;
+                    onServicesAvailable();
+                } else {
+                    servicesReused = false;
+                    transport.discoverServices();
+                }
+            } else {
+                host.log("Disconnected. " + scheduler);
+                metrics.onDisconnected(System.nanoTime());
+                scheduler.stop();
+                // Subscriptions don't survive the connection, they are written again once the mode is read.
+                streamingCharacteristics.clear();
+                shouldUpdateReadings = true;
+                // Link parameters are renegotiated on every connection.
+                linkProfile = null;
+                mtu = LinkProfile.DEFAULT_MTU;
+                transport.reconnect();
+            }
+
+            host.onConnectionStateChanged(connected);
+        }
+
+        @Override
+        public void onServicesDiscovered(final int status) {
+            host.log("Services discovered.");
+            metrics.onStatus(status);
+            if (status == GattTransport.STATUS_INSUFFICIENT_AUTHENTICATION) {
+                handleAuthenticationError();
+                return;
+            }
+
+            onServicesAvailable();
+        }
+
+        @Override
+        public void onWrite(final Characteristic characteristic, final byte[] value, final int status) {
+            host.log("Characteristic written: " + status);
+            metrics.onStatus(status);
+            if (status == GattTransport.STATUS_INSUFFICIENT_AUTHENTICATION) {
+                handleAuthenticationError();
+                return;
+            } else if (isLayoutStale(status)) {
+                rediscoverServices();
+                return;
+            }
+
+            final byte command = value[0];
+            switch (command) {
+                case WRITE_TIME:
+                    host.log("Time written.");
+                    host.onTimeWritten();
+                    break;
+                case WRITE_NOTIFICATION:
+                    host.log("Notification sent.");
+                    break;
+                default:
+                    host.log("No such ALERT IN command: " + command);
+                    break;
+            }
+
+            scheduler.onOperationCompleted(characteristic, status == GattTransport.STATUS_SUCCESS);
+        }
+
+        @Override
+        public void onSubscribed(final Characteristic characteristic, final int status) {
+            metrics.onStatus(status);
+            if (isLayoutStale(status)) {
+                rediscoverServices();
+                return;
+            }
+
+            if (status != GattTransport.STATUS_SUCCESS && streamingCharacteristics.remove(characteristic)) {
+                host.log("Couldn't subscribe to " + characteristic + ", falling back to polling.");
+                pollingScheduler.setPolling(characteristic, host.getPollingRate(mode, characteristic));
+            }
+
+            // A failed subscription is already handled by polling, there is no point in retrying it.
+            scheduler.onOperationCompleted(subscriptionRequests[characteristic.ordinal()], true);
+        }
+
+        @Override
+        public void onRead(final Characteristic characteristic, final byte[] value, final int status, final long timestampNanos) {
+            metrics.onReadCompleted(characteristic, status, System.nanoTime());
+            if (status == GattTransport.STATUS_INSUFFICIENT_AUTHENTICATION) {
+                handleAuthenticationError();
+                return;
+            } else if (isLayoutStale(status)) {
+                rediscoverServices();
+                return;
+            }
+
+            if (status != GattTransport.STATUS_SUCCESS) {
+                host.log("Reading " + characteristic + " failed with status: " + status);
+                scheduler.onOperationCompleted(characteristic, false);
+                return;
+            }
+
+            switch (characteristic) {
+                case MANUFACTURER:
+                    manufacturer = new String(value, UTF_8);
+                    break;
+                case FW_REVISION:
+                    final String knownRevision = firmwareRevision;
+                    firmwareRevision = new String(value, UTF_8);
+                    if (servicesReused && !firmwareRevision.equals(knownRevision)) {
+                        host.log("Firmware changed from " + knownRevision + " to " + firmwareRevision);
+                        rediscoverServices();
+                        return;
+                    }
+                    break;
+                case MODE:
+                    final Mode newMode = Mode.bySymbol(value[0]);
+                    if (mode != newMode) {
+                        onModeChanged(newMode);
+                    } else if (shouldUpdateReadings) {
+                        updateReadings();
+                    }
+                    break;
+                default:
+                    metrics.onSample(characteristic);
+                    host.onSample(characteristic, value, timestampNanos);
+                    break;
+            }
+
+            scheduler.onOperationCompleted(characteristic, true);
+        }
+
+        @Override
+        public void onMtuChanged(final int newMtu, final int status) {
+            host.log("MTU changed to " + newMtu + " with status: " + status);
+            metrics.onStatus(status);
+            if (status == GattTransport.STATUS_SUCCESS) {
+                mtu = newMtu;
+            }
+
+            // The peer may settle for less, asking again won't change its mind.
+            scheduler.onOperationCompleted(mtuRequest, true);
+        }
+
+        @Override
+        public void onChanged(final Characteristic characteristic, final byte[] value, final long timestampNanos) {
+            if (characteristic.getType() == Characteristic.Type.READING) {
+                metrics.onSample(characteristic);
+                host.onSample(characteristic, value, timestampNanos);
+            }
+        }
+    };
+
+    private boolean isLayoutStale(final int status) {
+        return servicesReused && status == GattTransport.STATUS_INVALID_HANDLE;
+    }
+
+    private void rediscoverServices() {
+        host.log("Services of the last connection are stale, discovering services.");
+        servicesReused = false;
+        scheduler.stop();
+        streamingCharacteristics.clear();
+        hasAlertIn = false;
+        shouldUpdateReadings = true;
+        transport.discoverServices();
+    }
+
+    private void onServicesAvailable() {
+        if (transport.hasCharacteristic(Characteristic.ALERT_IN)) {
+            hasAlertIn = true;
+            updateTime();
+            host.onAlertInDiscovered();
+        }
+
+        scheduler.enqueue(batteryIndicationOperation());
+        scheduler.enqueue(readOperation(Characteristic.MANUFACTURER, GattOperation.Priority.INFO));
+        scheduler.enqueue(readOperation(Characteristic.FW_REVISION, GattOperation.Priority.INFO));
+        scheduler.start();
+
+        metrics.onReady(System.nanoTime());
+        host.onServicesAvailable();
+    }
+
+    private void onModeChanged(final Mode newMode) {
+        host.log("Mode changed. New mode is: " + newMode);
+        mode = newMode;
+        host.onModeChanged(newMode);
+        updateReadings();
+    }
+
+    private void updateReadings() {
+        shouldUpdateReadings = false;
+        pollingScheduler.clear();
+        pollingScheduler.setPolling(Characteristic.MODE, host.getPollingRate(mode, Characteristic.MODE));
+        setLinkProfile(LinkProfile.forMode(mode));
+        host.onReadingsUpdated();
+
+        final boolean shouldStream = host.shouldStream();
+        final Set<Characteristic> streamed = EnumSet.noneOf(Characteristic.class);
+        for (Characteristic characteristic : host.getEnabledReadings()) {
+            if (!mode.hasCharacteristic(characteristic)) {
+                continue;
+            }
+
+            if (shouldStream && transport.supportsNotifications(characteristic)) {
+                streamed.add(characteristic);
+            } else {
+                pollingScheduler.setPolling(characteristic, host.getPollingRate(mode, characteristic));
+            }
+        }
+
+        for (Characteristic characteristic : Characteristic.getReadings()) {
+            setStreaming(characteristic, streamed.contains(characteristic));
+        }
+        scheduler.wakeUp();
+    }
+
+    private void setLinkProfile(final LinkProfile profile) {
+        if (profile == linkProfile) {
+            return;
+        }
+
+        // Not an ATT request, so it doesn't have to wait for the scheduler.
+        if (!transport.requestConnectionPriority(profile.getConnectionPriority())) {
+            host.log("Link profile " + profile + " couldn't be requested.");
+            return;
+        }
+
+        host.log("Link profile " + profile + " requested.");
+        linkProfile = profile;
+        if (profile.shouldRequestMtu() && mtu < profile.getMtu()) {
+            scheduler.enqueue(mtuOperation(profile.getMtu()));
+        }
+    }
+
+    private void setStreaming(final Characteristic characteristic, final boolean enabled) {
+        final boolean changed = enabled ? streamingCharacteristics.add(characteristic) : streamingCharacteristics.remove(characteristic);
+        if (changed) {
+            scheduler.enqueue(subscriptionOperation(characteristic));
+        }
+    }
+
+    /**
+     * Reloads the readings to poll or stream, once the mode is read next.
+     */
+    public void requestReadingsUpdate() {
+        shouldUpdateReadings = true;
+    }
+
+    /**
+     * Feeds a handled sample back so polling can slow down for readings that don't change.
+     */
+    public void onSampleHandled(final Characteristic characteristic, final byte[] value) {
+        pollingScheduler.onValue(characteristic, value, System.nanoTime());
+    }
+
+    public void queueNotification(final byte type, final int amount) {
+        final byte[] notification = new byte[20];
+        notification[0] = WRITE_NOTIFICATION;
+        notification[1] = type;
+        notification[2] = ByteUtils.intToByte(amount);
+        scheduler.enqueue(alertOperation(notification, "notification"));
+    }
+
+    public void setTime() {
+        if (!isConnected || !hasAlertIn) {
+            host.log("Time not set.");
+            return;
+        }
+
+        updateTime();
+    }
+
+    private void updateTime() {
+        final byte[] time = new byte[20];
+        final long currentTime = System.currentTimeMillis();
+        final long currentTimeWithTimeZoneOffset = (currentTime + TimeZone.getDefault().getOffset(currentTime)) / 1000;
+
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(currentTimeWithTimeZoneOffset);
+        final byte[] utcBytes = buffer.array();
+
+        final byte length = 0x04;
+
+        time[0] = WRITE_TIME;
+        time[1] = length;
+        time[2] = utcBytes[0];
+        time[3] = utcBytes[1];
+        time[4] = utcBytes[2];
+        time[5] = utcBytes[3];
+
+        scheduler.enqueue(alertOperation(time, "time"));
+        host.onTimeWriteQueued();
+    }
+
+    private void handleAuthenticationError() {
+        scheduler.stop();
+        transport.close();
+        host.onAuthenticationRequired();
+    }
+
+    private final GattOperationScheduler.IdleOperationSource pollingSource = new GattOperationScheduler.IdleOperationSource() {
+        @Override
+        public GattOperation nextIdleOperation() {
+            if (mode == null) {
+                return readOperation(Characteristic.MODE, GattOperation.Priority.READING);
+            }
+
+            final Characteristic characteristic = pollingScheduler.next(System.nanoTime());
+            return characteristic == null ? null : readOperation(characteristic, GattOperation.Priority.READING);
+        }
+
+        @Override
+        public long getNextIdleDelayMillis() {
+            if (mode == null) {
+                return -1;
+            }
+
+            final long delay = pollingScheduler.getNanosUntilNext(System.nanoTime());
+            return delay < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(delay);
+        }
+    };
+
+    private GattOperation readOperation(final Characteristic characteristic, final GattOperation.Priority priority) {
+        if (!transport.hasCharacteristic(characteristic)) {
+            return null;
+        }
+
+        return new GattOperation(priority, characteristic.name(), characteristic) {
+            @Override
+            public boolean execute() {
+                metrics.onReadIssued(characteristic, System.nanoTime());
+                return isConnected && transport.read(characteristic);
+            }
+        };
+    }
+
+    private GattOperation mtuOperation(final int requestedMtu) {
+        return new GattOperation(GattOperation.Priority.CONTROL, "MTU " + requestedMtu, mtuRequest) {
+            @Override
+            public boolean execute() {
+                return isConnected && transport.requestMtu(requestedMtu);
+            }
+        };
+    }
+
+    private GattOperation alertOperation(final byte[] value, final String description) {
+        if (!hasAlertIn) {
+            host.log("ALERT_IN not discovered, dropping " + description);
+            return null;
+        }
+
+        return new GattOperation(GattOperation.Priority.CONTROL, description, Characteristic.ALERT_IN) {
+            @Override
+            public boolean execute() {
+                return isConnected && transport.write(Characteristic.ALERT_IN, value);
+            }
+        };
+    }
+
+    private GattOperation subscriptionOperation(final Characteristic characteristic) {
+        return new GattOperation(GattOperation.Priority.CONTROL, "subscription " + characteristic,
+                subscriptionRequests[characteristic.ordinal()]) {
+            @Override
+            public boolean execute() {
+                final boolean enable = streamingCharacteristics.contains(characteristic);
+                host.log((enable ? "Subscribing to " : "Unsubscribing from ") + characteristic);
+                return isConnected && transport.subscribe(characteristic,
+                        enable ? GattTransport.Subscription.NOTIFICATIONS : GattTransport.Subscription.NONE);
+            }
+        };
+    }
+
+    private GattOperation batteryIndicationOperation() {
+        if (!transport.hasCharacteristic(Characteristic.BATTERY)) {
+            return null;
+        }
+
+        return new GattOperation(GattOperation.Priority.CONTROL, "battery indication",
+                subscriptionRequests[Characteristic.BATTERY.ordinal()]) {
+            @Override
+            public boolean execute() {
+                return isConnected && transport.subscribe(Characteristic.BATTERY, GattTransport.Subscription.INDICATIONS);
+            }
+        };
+    }
+
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public String getManufacturer() {
+        return manufacturer;
+    }
+
+    public String getFirmwareRevision() {
+        return firmwareRevision;
+    }
+
+    public boolean isStreaming(final Characteristic characteristic) {
+        return streamingCharacteristics.contains(characteristic);
+    }
+
+    public float getEffectivePollingRate(final Characteristic characteristic) {
+        return pollingScheduler.getEffectiveRate(characteristic);
+    }
+
+    /**
+     * @return profile the link is tuned for or null if it's left at the system defaults.
+     */
+    public LinkProfile getLinkProfile() {
+        return linkProfile;
+    }
+
+    /**
+     * @return MTU negotiated for the current connection.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public GattOperationScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public LinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Settings the connection reads and events it reports. Called from the transport's callback thread.
+     */
+    public interface Host {
+
+        List<Characteristic> getEnabledReadings();
+
+        float getPollingRate(Mode mode, Characteristic characteristic);
+
+        boolean shouldStream();
+
+        void onConnectionStateChanged(boolean connected);
+
+        void onServicesAvailable();
+
+        void onAlertInDiscovered();
+
+        void onModeChanged(Mode mode);
+
+        /**
+         * Called whenever the readings to poll or stream are chosen again.
+         */
+        void onReadingsUpdated();
+
+        /**
+         * @param timestampNanos when the transport received the value.
+         */
+        void onSample(Characteristic characteristic, byte[] value, long timestampNanos);
+
+        void onTimeWriteQueued();
+
+        void onTimeWritten();
+
+        /**
+         * The transport is closed by then, {@link #connect()} again once the device is bonded.
+         */
+        void onAuthenticationRequired();
+
+        void log(String message);
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read latency, sample counts, GATT status codes and reconnect durations of one connection.
+ * <p>
+ * Latencies are kept in power of two buckets: bucket 0 holds everything under a millisecond and bucket i
+ * the range [2^(i-1), 2^i) ms, the last one is open ended. Everything is counted in plain arrays written from
+ * the GATT callback thread, readers may see values a sample or two behind.
+ */
+public class LinkMetrics {
+
+    public static final int BUCKETS = 16;
+
+    private static final Characteristic[] CHARACTERISTICS = Characteristic.values();
+    // Every ATT error plus GATT_FAILURE (0x101), anything else is counted in the last slot.
+    private static final int STATUS_SLOTS = 0x103;
+
+    private final long[] readIssuedAt = new long[CHARACTERISTICS.length];
+    private final long[][] latencyHistograms = new long[CHARACTERISTICS.length][BUCKETS];
+    private final long[] latencySumsMicros = new long[CHARACTERISTICS.length];
+    private final long[] maxLatenciesMicros = new long[CHARACTERISTICS.length];
+    private final long[] reads = new long[CHARACTERISTICS.length];
+    private final long[] failedReads = new long[CHARACTERISTICS.length];
+    private final long[] samples = new long[CHARACTERISTICS.length];
+    private final long[] statusCounts = new long[STATUS_SLOTS];
+    private final long[] reconnectHistogram = new long[BUCKETS];
+
+    private long reconnects;
+    private long reconnectSumMillis;
+    private long maxReconnectMillis;
+    private long lastReconnectMillis;
+    private long disconnectedAt;
+    private long startedAt = System.nanoTime();
+
+    void onReadIssued(final Characteristic characteristic, final long nowNanos) {
+        readIssuedAt[characteristic.ordinal()] = nowNanos;
+    }
+
+    void onReadCompleted(final Characteristic characteristic, final int status, final long nowNanos) {
+        onStatus(status);
+        final int index = characteristic.ordinal();
+        final long issuedAt = readIssuedAt[index];
+        if (issuedAt == 0) {
+            return;
+        }
+
+        readIssuedAt[index] = 0;
+        if (status != GattTransport.STATUS_SUCCESS) {
+            failedReads[index]++;
+            return;
+        }
+
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nowNanos - issuedAt);
+        reads[index]++;
+        latencySumsMicros[index] += micros;
+        maxLatenciesMicros[index] = Math.max(maxLatenciesMicros[index], micros);
+        latencyHistograms[index][getBucket(micros / 1000)]++;
+    }
+
+    void onStatus(final int status) {
+        statusCounts[status >= 0 && status < STATUS_SLOTS - 1 ? status : STATUS_SLOTS - 1]++;
+    }
+
+    void onSample(final Characteristic characteristic) {
+        samples[characteristic.ordinal()]++;
+    }
+
+    void onDisconnected(final long nowNanos) {
+        // Drops while reconnecting count towards the same reconnect.
+        if (disconnectedAt == 0) {
+            disconnectedAt = nowNanos;
+        }
+    }
+
+    /**
+     * Called once the services are usable again.
+     */
+    void onReady(final long nowNanos) {
+        if (disconnectedAt == 0) {
+            return;
+        }
+
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nowNanos - disconnectedAt);
+        disconnectedAt = 0;
+        reconnects++;
+        reconnectSumMillis += millis;
+        maxReconnectMillis = Math.max(maxReconnectMillis, millis);
+        lastReconnectMillis = millis;
+        reconnectHistogram[getBucket(millis)]++;
+    }
+
+    public void reset() {
+        for (int i = 0; i < CHARACTERISTICS.length; i++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                latencyHistograms[i][bucket] = 0;
+            }
+            latencySumsMicros[i] = 0;
+            maxLatenciesMicros[i] = 0;
+            reads[i] = 0;
+            failedReads[i] = 0;
+            samples[i] = 0;
+        }
+        for (int i = 0; i < STATUS_SLOTS; i++) {
+            statusCounts[i] = 0;
+        }
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            reconnectHistogram[bucket] = 0;
+        }
+        reconnects = 0;
+        reconnectSumMillis = 0;
+        maxReconnectMillis = 0;
+        lastReconnectMillis = 0;
+        startedAt = System.nanoTime();
+    }
+
+    static int getBucket(final long millis) {
+        if (millis < 1) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+    }
+
+    /**
+     * @return upper bound of the bucket in milliseconds, or -1 for the open ended one.
+     */
+    public static long getBucketLimitMillis(final int bucket) {
+        return bucket < BUCKETS - 1 ? 1L << bucket : -1;
+    }
+
+    public long[] getLatencyHistogram(final Characteristic characteristic) {
+        return latencyHistograms[characteristic.ordinal()].clone();
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. 0.9 for the 90th percentile.
+     * @return upper bound of the bucket the percentile falls into, or -1 if there were no reads.
+     */
+    public long getLatencyPercentileMillis(final Characteristic characteristic, final float fraction) {
+        final long[] histogram = latencyHistograms[characteristic.ordinal()];
+        final long count = reads[characteristic.ordinal()];
+        if (count == 0) {
+            return -1;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank) {
+                return bucket < BUCKETS - 1 ? getBucketLimitMillis(bucket) : TimeUnit.MICROSECONDS.toMillis(getMaxLatencyMicros(characteristic));
+            }
+        }
+        return TimeUnit.MICROSECONDS.toMillis(getMaxLatencyMicros(characteristic));
+    }
+
+    public float getMeanLatencyMillis(final Characteristic characteristic) {
+        final long count = reads[characteristic.ordinal()];
+        return count == 0 ? 0 : latencySumsMicros[characteristic.ordinal()] / (count * 1000f);
+    }
+
+    public long getMaxLatencyMicros(final Characteristic characteristic) {
+        return maxLatenciesMicros[characteristic.ordinal()];
+    }
+
+    public long getReadCount(final Characteristic characteristic) {
+        return reads[characteristic.ordinal()];
+    }
+
+    public long getFailedReadCount(final Characteristic characteristic) {
+        return failedReads[characteristic.ordinal()];
+    }
+
+    public long getSampleCount(final Characteristic characteristic) {
+        return samples[characteristic.ordinal()];
+    }
+
+    /**
+     * @return samples received per second since the metrics were last reset.
+     */
+    public float getSamplesPerSecond(final Characteristic characteristic) {
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        return elapsedMillis == 0 ? 0 : samples[characteristic.ordinal()] * 1000f / elapsedMillis;
+    }
+
+    /**
+     * @return how many callbacks reported the status, statuses above 0x101 are counted together under 0x102.
+     */
+    public long getStatusCount(final int status) {
+        return statusCounts[status >= 0 && status < STATUS_SLOTS - 1 ? status : STATUS_SLOTS - 1];
+    }
+
+    public long[] getReconnectHistogram() {
+        return reconnectHistogram.clone();
+    }
+
+    public long getReconnectCount() {
+        return reconnects;
+    }
+
+    public long getMeanReconnectMillis() {
+        return reconnects == 0 ? 0 : reconnectSumMillis / reconnects;
+    }
+
+    public long getMaxReconnectMillis() {
+        return maxReconnectMillis;
+    }
+
+    public long getLastReconnectMillis() {
+        return lastReconnectMillis;
+    }
+
+    /**
+     * Appends a plain text report, one line per characteristic that was read or received.
+     */
+    public void appendTo(final StringBuilder report) {
+        report.append(String.format(Locale.ENGLISH, "Over %d s:%n",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt)));
+        for (Characteristic characteristic : CHARACTERISTICS) {
+            final int index = characteristic.ordinal();
+            if (samples[index] == 0 && reads[index] == 0 && failedReads[index] == 0) {
+                continue;
+            }
+
+            report.append(String.format(Locale.ENGLISH,
+                    "%s: %.2f samples/s, %d reads (%d failed), latency mean %.1f ms, p50 <%d ms, p90 <%d ms, max %.1f ms%n",
+                    characteristic, getSamplesPerSecond(characteristic), reads[index], failedReads[index],
+                    getMeanLatencyMillis(characteristic), getLatencyPercentileMillis(characteristic, 0.5f),
+                    getLatencyPercentileMillis(characteristic, 0.9f), maxLatenciesMicros[index] / 1000f));
+            report.append("  latency buckets:");
+            appendHistogram(report, latencyHistograms[index]);
+        }
+
+        report.append("Statuses:");
+        for (int status = 0; status < STATUS_SLOTS; status++) {
+            if (statusCounts[status] != 0) {
+                report.append(String.format(Locale.ENGLISH, " 0x%02x=%d", status, statusCounts[status]));
+            }
+        }
+        report.append(String.format(Locale.ENGLISH, "%nReconnects: %d, mean %d ms, max %d ms, last %d ms%n",
+                reconnects, getMeanReconnectMillis(), maxReconnectMillis, lastReconnectMillis));
+        report.append("  reconnect buckets:");
+        appendHistogram(report, reconnectHistogram);
+    }
+
+    private static void appendHistogram(final StringBuilder report, final long[] histogram) {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (histogram[bucket] == 0) {
+                continue;
+            }
+
+            final long limit = getBucketLimitMillis(bucket);
+            report.append(' ').append(limit < 0 ? ">=" + (1L << (bucket - 1)) : "<" + limit).append("ms=").append(histogram[bucket]);
+        }
+        report.append(String.format("%n"));
+    }
+}
@@ -0,0 +1,506 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.wolk.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Publishes binary messages with QoS 1 over its own MQTT connection, for payloads Wolk can't carry. One publisher
+ * can carry the messages of any number of devices, each to its own topic. The connection is an Eclipse Paho client.
+ * <p>
+ * Messages are queued and handed to the client from a worker thread in groups: once a message is queued the worker
+ * waits {@link #LINGER_MILLIS} for others due at the same time, publishes up to {@link #MAX_IN_FLIGHT} of them and
+ * waits for the broker to acknowledge them all before taking the next group. Messages that weren't acknowledged are
+ * retried after reconnecting, the connection is retried with a growing delay. When the queue is full new messages
+ * are dropped.
+ * <p>
+ * A message can carry a {@link DeliveryListener}, told from the worker thread once the broker acknowledged it or
+ * once it was dropped, so the sender can keep what it sent until then. Closing with {@link #close(long)} gives the
+ * messages queued by then some time to get through first.
+ * <p>
+ * Topics {@link #subscribe subscribed} to keep the connection up even with nothing to publish, and are subscribed
+ * again after every reconnect, so retained messages on them arrive again each time.
+ */
+public class MqttPublisher implements Closeable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final int MAX_IN_FLIGHT = 32;
+    public static final long LINGER_MILLIS = 50;
+    public static final long CLOSE_FLUSH_MILLIS = 10000;
+
+    private static final int QOS = 1;
+    private static final int CONNECT_TIMEOUT_SECONDS = 10;
+    private static final long ACK_TIMEOUT_MILLIS = 10000;
+    private static final long DISCONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int KEEP_ALIVE_SECONDS = 60;
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60000;
+
+    // Wakes the worker waiting for a message when the publisher is closing, or when it has topics to subscribe to.
+    private static final Message WAKE = new Message(null, null, null);
+
+    private static final Logger SILENT = new Logger() {
+        @Override
+        public void info(final String message) {
+        }
+
+        @Override
+        public void error(final String message, final Throwable e) {
+        }
+    };
+
+    private final String clientId;
+    private final MqttAsyncClient client;
+    private final MqttConnectOptions options = new MqttConnectOptions();
+    private final BlockingDeque<Message> queue;
+    private final Thread worker;
+    private final AtomicLong droppedMessages = new AtomicLong();
+    // Messages queued or in flight by topic, so each device can wait for its last one.
+    private final ConcurrentHashMap<String, AtomicInteger> pendingByTopic = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MessageListener> subscriptions = new ConcurrentHashMap<>();
+    // Only touched by the worker.
+    private final List<Message> inFlight = new ArrayList<>(MAX_IN_FLIGHT);
+    private final Set<String> subscribed = new HashSet<>();
+    private final IMqttDeliveryToken[] tokens = new IMqttDeliveryToken[MAX_IN_FLIGHT];
+    private long retryMillis = MIN_RETRY_MILLIS;
+
+    private volatile Logger logger = SILENT;
+    private volatile boolean closing;
+    private volatile long flushDeadlineNanos;
+    private volatile boolean closed;
+    private volatile long publishedMessages;
+    private volatile long publishedBytes;
+    private volatile long groups;
+    private volatile long failedConnects;
+    private volatile long lastAckMicros;
+
+    /**
+     * @param serverUri ssl://host:port or tcp://host:port, like the Wolk host.
+     */
+    public MqttPublisher(final String serverUri, final String clientId, final String username, final String password,
+                         final int queueCapacity) {
+        try {
+            // Messages that weren't acknowledged are queued again, the client needn't keep them.
+            this.client = new MqttAsyncClient(serverUri, clientId, new MemoryPersistence());
+        } catch (MqttException e) {
+            throw new IllegalArgumentException("Can't publish to " + serverUri + " as " + clientId, e);
+        }
+        this.clientId = clientId;
+        options.setUserName(username);
+        options.setPassword(password.toCharArray());
+        options.setCleanSession(true);
+        options.setConnectionTimeout(CONNECT_TIMEOUT_SECONDS);
+        options.setKeepAliveInterval(KEEP_ALIVE_SECONDS);
+        // Paho frees the slots of acknowledged messages only after their tokens complete, the next group may find the
+        // last one still holding them.
+        options.setMaxInflight(2 * MAX_IN_FLIGHT);
+        options.setSSLHostnameVerifier(HttpsURLConnection.getDefaultHostnameVerifier());
+        client.setCallback(callback);
+        this.queue = new LinkedBlockingDeque<>(queueCapacity);
+        this.worker = new Thread(publishLoop, "MQTT " + clientId);
+        worker.start();
+    }
+
+    /**
+     * Nothing is logged until a logger is set, same as with Wolk.
+     */
+    public void setLogger(final Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Queues a copy of the payload.
+     *
+     * @return false if the queue is full or the publisher closed, the message is dropped then.
+     */
+    public boolean publish(final String topic, final byte[] payload, final int offset, final int length) {
+        return publish(topic, payload, offset, length, null);
+    }
+
+    /**
+     * Queues a copy of the payload.
+     *
+     * @param listener told whether the message arrived, may be null. Not told about a message refused here.
+     * @return false if the queue is full or the publisher closed, the message is dropped then.
+     */
+    public boolean publish(final String topic, final byte[] payload, final int offset, final int length,
+                           final DeliveryListener listener) {
+        final byte[] copy = new byte[length];
+        System.arraycopy(payload, offset, copy, 0, length);
+        final AtomicInteger pending = getPending(topic);
+        pending.incrementAndGet();
+        final Message message = new Message(topic, copy, listener);
+        // Taken back if the worker may have emptied the queue for the last time already.
+        if (closing || !queue.offer(message) || closing && queue.remove(message)) {
+            pending.decrementAndGet();
+            droppedMessages.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Subscribes to the topic with QoS 0 as soon as the publisher is connected, and again after every reconnect. One
+     * listener per topic, the last one given replaces the others.
+     *
+     * @param listener told on the client's thread about each message that arrives on the topic.
+     */
+    public void subscribe(final String topic, final MessageListener listener) {
+        subscriptions.put(topic, listener);
+        queue.offer(WAKE);
+    }
+
+    /**
+     * Stops telling the listener about the topic. The broker keeps sending to the topic until the next reconnect.
+     */
+    public void unsubscribe(final String topic) {
+        subscriptions.remove(topic);
+    }
+
+    /**
+     * @return true once it takes no more messages, a new publisher has to be used then.
+     */
+    public boolean isClosed() {
+        return closing;
+    }
+
+    /**
+     * @return true while a message to the topic is queued or waiting for its acknowledgement.
+     */
+    public boolean isPending(final String topic) {
+        final AtomicInteger pending = pendingByTopic.get(topic);
+        return pending != null && pending.get() > 0;
+    }
+
+    private AtomicInteger getPending(final String topic) {
+        AtomicInteger pending = pendingByTopic.get(topic);
+        if (pending == null) {
+            final AtomicInteger created = new AtomicInteger();
+            pending = pendingByTopic.putIfAbsent(topic, created);
+            if (pending == null) {
+                pending = created;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Stops the worker, messages still queued are dropped.
+     */
+    @Override
+    public void close() {
+        closing = true;
+        closed = true;
+        worker.interrupt();
+    }
+
+    /**
+     * Takes no more messages and stops the worker once the ones queued are through, or after the given time, when
+     * the rest are dropped. Returns right away.
+     */
+    public void close(final long flushMillis) {
+        if (flushMillis <= 0) {
+            close();
+            return;
+        }
+        flushDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        closing = true;
+        // No room means the worker has messages to send and doesn't wait.
+        queue.offer(WAKE);
+    }
+
+    private final Runnable publishLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    if (closing && (queue.isEmpty() || System.nanoTime() >= flushDeadlineNanos)) {
+                        break;
+                    }
+                    final Message first = queue.take();
+                    if (first != WAKE) {
+                        inFlight.add(first);
+                        if (!closing && queue.size() < MAX_IN_FLIGHT - 1) {
+                            Thread.sleep(LINGER_MILLIS);
+                        }
+                        queue.drainTo(inFlight, MAX_IN_FLIGHT - 1);
+                        inFlight.remove(WAKE);
+                    }
+                    final boolean subscribing = !closing && !subscriptions.isEmpty()
+                            && (!client.isConnected() || !subscribed.containsAll(subscriptions.keySet()));
+                    if (inFlight.isEmpty() && !subscribing) {
+                        continue;
+                    }
+                    try {
+                        if (!client.isConnected()) {
+                            connect();
+                        }
+                        if (subscribing) {
+                            subscribeAll();
+                        }
+                        if (!inFlight.isEmpty()) {
+                            send();
+                        }
+                    } catch (MqttException e) {
+                        if (closed) {
+                            break;
+                        }
+                        logger.error(clientId + " couldn't publish to " + client.getServerURI() + ", retrying "
+                                + inFlight.size() + " messages in " + retryMillis + " ms.", e);
+                        if (inFlight.isEmpty()) {
+                            // Nothing queued again to wake the worker for the subscriptions.
+                            queue.offer(WAKE);
+                        }
+                        for (int i = inFlight.size() - 1; i >= 0; i--) {
+                            if (!queue.offerFirst(inFlight.get(i))) {
+                                drop(inFlight.get(i));
+                            }
+                        }
+                        inFlight.clear();
+                        disconnect(false);
+                        Thread.sleep(closing ? Math.min(retryMillis, Math.max(0, TimeUnit.NANOSECONDS.toMillis(
+                                flushDeadlineNanos - System.nanoTime()))) : retryMillis);
+                        retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            disconnect(true);
+            try {
+                client.close();
+            } catch (MqttException e) {
+                logger.error(clientId + " couldn't release its connection.", e);
+            }
+            for (Message message : inFlight) {
+                drop(message);
+            }
+            Message message;
+            while ((message = queue.poll()) != null) {
+                if (message != WAKE) {
+                    drop(message);
+                }
+            }
+        }
+    };
+
+    private void drop(final Message message) {
+        droppedMessages.incrementAndGet();
+        getPending(message.topic).decrementAndGet();
+        if (message.listener != null) {
+            message.listener.onDropped(message.topic);
+        }
+    }
+
+    private void connect() throws MqttException {
+        // A clean session forgets them.
+        subscribed.clear();
+        try {
+            // Bounded by the connection timeout.
+            client.connect(options).waitForCompletion();
+        } catch (MqttException e) {
+            failedConnects++;
+            throw e;
+        }
+        retryMillis = MIN_RETRY_MILLIS;
+        logger.info(clientId + " connected to " + client.getServerURI());
+    }
+
+    private void subscribeAll() throws MqttException {
+        for (String topic : subscriptions.keySet()) {
+            if (!subscribed.contains(topic)) {
+                client.subscribe(topic, 0).waitForCompletion(ACK_TIMEOUT_MILLIS);
+                subscribed.add(topic);
+            }
+        }
+    }
+
+    private final MqttCallback callback = new MqttCallback() {
+        @Override
+        public void connectionLost(final Throwable cause) {
+            // Reconnects right away if there are subscriptions to keep, messages get there on their own.
+            if (!subscriptions.isEmpty()) {
+                queue.offer(WAKE);
+            }
+        }
+
+        @Override
+        public void messageArrived(final String topic, final MqttMessage message) {
+            final MessageListener listener = subscriptions.get(topic);
+            if (listener == null) {
+                return;
+            }
+            try {
+                listener.onMessage(topic, message.getPayload());
+            } catch (RuntimeException e) {
+                // Paho would drop the connection over it.
+                logger.error(clientId + " couldn't handle a message on " + topic, e);
+            }
+        }
+
+        @Override
+        public void deliveryComplete(final IMqttDeliveryToken token) {
+        }
+    };
+
+    /**
+     * Publishes every message in flight, then waits until the broker acknowledged them all. Acknowledged messages are
+     * taken out of {@link #inFlight}, whatever is left there if this throws wasn't delivered.
+     */
+    private void send() throws MqttException {
+        final int count = inFlight.size();
+        final long sentAt = System.nanoTime();
+        int acknowledged = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                final Message message = inFlight.get(i);
+                tokens[i] = client.publish(message.topic, message.payload, QOS, false);
+            }
+            groups++;
+
+            for (; acknowledged < count; acknowledged++) {
+                tokens[acknowledged].waitForCompletion(ACK_TIMEOUT_MILLIS);
+                final Message message = inFlight.get(acknowledged);
+                publishedMessages++;
+                publishedBytes += message.payload.length;
+                getPending(message.topic).decrementAndGet();
+                if (message.listener != null) {
+                    message.listener.onDelivered(message.topic);
+                }
+            }
+        } finally {
+            inFlight.subList(0, acknowledged).clear();
+            for (int i = 0; i < count; i++) {
+                tokens[i] = null;
+            }
+        }
+        lastAckMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt);
+    }
+
+    private void disconnect(final boolean graceful) {
+        try {
+            if (graceful && client.isConnected()) {
+                client.disconnect(0).waitForCompletion(DISCONNECT_TIMEOUT_MILLIS);
+            } else {
+                client.disconnectForcibly(0, DISCONNECT_TIMEOUT_MILLIS);
+            }
+        } catch (MqttException e) {
+            // Not connected, or gone already.
+        }
+    }
+
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    public int getQueuedMessages() {
+        return queue.size();
+    }
+
+    public long getPublishedMessages() {
+        return publishedMessages;
+    }
+
+    public long getPublishedBytes() {
+        return publishedBytes;
+    }
+
+    public long getFailedConnects() {
+        return failedConnects;
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * @return number of groups of messages published in one go.
+     */
+    public long getGroupCount() {
+        return groups;
+    }
+
+    /**
+     * @return time from publishing the last group of messages to the acknowledgement of all of them.
+     */
+    public long getLastAckMicros() {
+        return lastAckMicros;
+    }
+
+    /**
+     * Told on the worker thread what became of a message, once.
+     */
+    public interface DeliveryListener {
+
+        /**
+         * The broker acknowledged the message.
+         */
+        void onDelivered(String topic);
+
+        /**
+         * The message was dropped unacknowledged, because the queue had no room to retry it or the publisher closed.
+         */
+        void onDropped(String topic);
+    }
+
+    /**
+     * Told about messages on a subscribed topic.
+     */
+    public interface MessageListener {
+
+        void onMessage(String topic, byte[] payload);
+    }
+
+    private static class Message {
+
+        private final String topic;
+        private final byte[] payload;
+        private final DeliveryListener listener;
+
+        Message(final String topic, final byte[] payload, final DeliveryListener listener) {
+            this.topic = topic;
+            this.payload = payload;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.LinkProfile;
+import com.wolkabout.hexiwear.model.otap.Command;
+import com.wolkabout.hexiwear.model.otap.Image;
+import com.wolkabout.hexiwear.model.otap.ImageBlock;
+import com.wolkabout.hexiwear.model.otap.response.ErrorNotification;
+import com.wolkabout.hexiwear.model.otap.response.ImageBlockRequest;
+import com.wolkabout.hexiwear.model.otap.response.ImageTransferComplete;
+import com.wolkabout.hexiwear.util.ByteUtils;
+
+/**
+ * Over the air programming of a firmware image, driven by the requests the device sends to the control point.
+ */
+public class OtapUpdater implements GattTransport.Callback {
+
+    public static final long DEFAULT_CHUNK_DELAY_MILLIS = 50;
+
+    private final GattTransport transport;
+    private final Image image;
+    private final Listener listener;
+    private final long chunkDelayMillis;
+
+    private volatile int mtu = LinkProfile.DEFAULT_MTU;
+    private ImageBlock currentBlock;
+
+    public OtapUpdater(final GattTransport transport, final Image image, final Listener listener) {
+        this(transport, image, listener, DEFAULT_CHUNK_DELAY_MILLIS);
+    }
+
+    public OtapUpdater(final GattTransport transport, final Image image, final Listener listener, final long chunkDelayMillis) {
+        this.transport = transport;
+        this.image = image;
+        this.listener = listener;
+        this.chunkDelayMillis = chunkDelayMillis;
+    }
+
+    public void start() {
+        transport.connect(this);
+    }
+
+    public void stop() {
+        transport.close();
+    }
+
+    /**
+     * @return MTU negotiated for the update, the device picks its chunk size based on it.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public void onConnectionStateChanged(final boolean connected) {
+        if (connected) {
+            listener.log("Connected.");
+            transport.discoverServices();
+        } else {
+            listener.log("Disconnected.");
+            mtu = LinkProfile.DEFAULT_MTU;
+            transport.reconnect();
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(final int status) {
+        listener.log("Services discovered.");
+        if (status == GattTransport.STATUS_INSUFFICIENT_AUTHENTICATION) {
+            transport.close();
+            listener.onAuthenticationRequired();
+            return;
+        }
+
+        if (!transport.hasCharacteristic(Characteristic.STATE)) {
+            listener.log("OTAP service not found.");
+            listener.onError();
+            return;
+        }
+
+        // The state is read once the MTU is settled, only one request can be in flight.
+        final LinkProfile profile = LinkProfile.OTAP;
+        if (!transport.requestConnectionPriority(profile.getConnectionPriority()) || !transport.requestMtu(profile.getMtu())) {
+            transport.read(Characteristic.STATE);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(final int newMtu, final int status) {
+        listener.log("MTU changed to " + newMtu + " with status: " + status);
+        if (status == GattTransport.STATUS_SUCCESS) {
+            mtu = newMtu;
+        }
+        transport.read(Characteristic.STATE);
+    }
+
+    @Override
+    public void onRead(final Characteristic characteristic, final byte[] value, final int status, final long timestampNanos) {
+        if (characteristic != Characteristic.STATE) {
+            return;
+        }
+
+        final int state = ByteUtils.parseInt(value);
+        if (state == 0) {
+            listener.log("OTAP mode is not enabled.");
+            return;
+        }
+
+        final boolean wrongModeForMK64 = state == 1 && image.getType() == Image.Type.MK64;
+        final boolean wrongModeForKW40 = state == 2 && image.getType() == Image.Type.KW40;
+        if (wrongModeForMK64 || wrongModeForKW40) {
+            listener.log("Wrong OTAP mode for the selected image.");
+            listener.onError();
+            return;
+        }
+
+        listener.log("The device is in the correct OTAP mode. Starting communication.");
+        transport.subscribe(Characteristic.CONTROL_POINT, GattTransport.Subscription.INDICATIONS);
+    }
+
+    @Override
+    public void onSubscribed(final Characteristic characteristic, final int status) {
+        listener.log("Control point indications enabled with status: " + status);
+    }
+
+    @Override
+    public void onChanged(final Characteristic characteristic, final byte[] value, final long timestampNanos) {
+        if (characteristic != Characteristic.CONTROL_POINT) {
+            return;
+        }
+
+        final Command command = Command.byCommandByte(value[0]);
+        listener.log("Received command: " + command);
+        switch (command) {
+            case NEW_IMAGE_INFO_REQUEST:
+                transport.write(Characteristic.CONTROL_POINT, image.getNewImageInfoResponse());
+                listener.log("Writing command: NEW_IMAGE_INFO_RESPONSE");
+                listener.onInitiated();
+                break;
+            case IMAGE_BLOCK_REQUEST:
+                final ImageBlockRequest imageBlockRequest = new ImageBlockRequest(value);
+                listener.log("Block request is: " + imageBlockRequest);
+                currentBlock = image.getBlock(imageBlockRequest);
+                listener.onProgress((int) (((double) imageBlockRequest.getStartPosition() / image.getSize()) * 100));
+                writeChunk();
+                break;
+            case IMAGE_TRANSFER_COMPLETE:
+                final ImageTransferComplete imageTransferComplete = new ImageTransferComplete(value);
+                listener.log("Image transfer completed: " + imageTransferComplete);
+                listener.onFinished();
+                break;
+            case ERROR_NOTIFICATION:
+                final ErrorNotification errorNotification = new ErrorNotification(value);
+                listener.log("Error during firmware update: " + errorNotification);
+                listener.onError();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onWrite(final Characteristic characteristic, final byte[] value, final int status) {
+        if (characteristic == Characteristic.CONTROL_POINT) {
+            listener.log("Successfully written to control point.");
+        } else if (characteristic == Characteristic.DATA && !currentBlock.isCompleted()) {
+            writeChunk();
+        }
+    }
+
+    private synchronized void writeChunk() {
+        // The first block will block and stop OTAP if the chunks are sent too fast.
+        if (chunkDelayMillis > 0) {
+            try {
+                wait(chunkDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        transport.write(Characteristic.DATA, currentBlock.getNextChunk());
+    }
+
+    /**
+     * Progress of the update. Called from the transport's callback thread.
+     */
+    public interface Listener {
+
+        void onInitiated();
+
+        /**
+         * @param progress percentage of the image transferred.
+         */
+        void onProgress(int progress);
+
+        void onFinished();
+
+        void onError();
+
+        /**
+         * The transport is closed by then.
+         */
+        void onAuthenticationRequired();
+
+        void log(String message);
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+
+import java.util.Arrays;
+
+/**
+ * Decides which characteristic to poll next.
+ * <p>
+ * Every characteristic has a target rate and the most overdue one is polled first, so when the link is
+ * saturated the radio time is shared in proportion to the rates. A characteristic whose value keeps coming back
+ * unchanged is polled less and less often, down to a fraction of its target rate, until the value changes again.
+ */
+public class PollingScheduler {
+
+    private static final Characteristic[] CHARACTERISTICS = Characteristic.values();
+    private static final int DECAY_SAMPLES = 5;
+    private static final float MIN_RATE_FACTOR = 1 / 8f;
+    private static final int MAX_VALUE_LENGTH = 20;
+
+    private final boolean[] polled = new boolean[CHARACTERISTICS.length];
+    private final float[] targetRates = new float[CHARACTERISTICS.length];
+    private final float[] rateFactors = new float[CHARACTERISTICS.length];
+    private final long[] nextPolls = new long[CHARACTERISTICS.length];
+    private final int[] unchangedSamples = new int[CHARACTERISTICS.length];
+    private final byte[][] lastValues = new byte[CHARACTERISTICS.length][MAX_VALUE_LENGTH];
+    private final int[] lastValueLengths = new int[CHARACTERISTICS.length];
+
+    public synchronized void clear() {
+        Arrays.fill(polled, false);
+    }
+
+    /**
+     * Starts polling the characteristic with the given number of reads per second. Rates of zero or less stop it.
+     */
+    public synchronized void setPolling(final Characteristic characteristic, final float rate) {
+        final int index = characteristic.ordinal();
+        polled[index] = rate > 0;
+        targetRates[index] = rate;
+        rateFactors[index] = 1;
+        nextPolls[index] = 0;
+        unchangedSamples[index] = 0;
+        lastValueLengths[index] = -1;
+    }
+
+    public synchronized boolean isPolling(final Characteristic characteristic) {
+        return polled[characteristic.ordinal()];
+    }
+
+    /**
+     * @return the most overdue characteristic or null if none is due yet.
+     */
+    public synchronized Characteristic next(final long now) {
+        final int index = earliest();
+        if (index < 0 || nextPolls[index] > now) {
+            return null;
+        }
+
+        nextPolls[index] = now + period(index);
+        return CHARACTERISTICS[index];
+    }
+
+    /**
+     * @return nanoseconds until the next characteristic is due or -1 if nothing is polled.
+     */
+    public synchronized long getNanosUntilNext(final long now) {
+        final int index = earliest();
+        return index < 0 ? -1 : Math.max(0, nextPolls[index] - now);
+    }
+
+    public synchronized void onValue(final Characteristic characteristic, final byte[] value, final long now) {
+        final int index = characteristic.ordinal();
+        if (!polled[index] || value == null) {
+            return;
+        }
+
+        final byte[] lastValue = lastValues[index];
+        final int length = Math.min(value.length, MAX_VALUE_LENGTH);
+        if (length == lastValueLengths[index] && equals(lastValue, value, length)) {
+            if (++unchangedSamples[index] >= DECAY_SAMPLES && rateFactors[index] > MIN_RATE_FACTOR) {
+                rateFactors[index] /= 2;
+                unchangedSamples[index] = 0;
+            }
+            return;
+        }
+
+        System.arraycopy(value, 0, lastValue, 0, length);
+        lastValueLengths[index] = length;
+        unchangedSamples[index] = 0;
+        if (rateFactors[index] < 1) {
+            rateFactors[index] = 1;
+            nextPolls[index] = Math.min(nextPolls[index], now + period(index));
+        }
+    }
+
+    /**
+     * @return reads per second currently aimed for, after slowing down unchanged values.
+     */
+    public synchronized float getEffectiveRate(final Characteristic characteristic) {
+        final int index = characteristic.ordinal();
+        return polled[index] ? targetRates[index] * rateFactors[index] : 0;
+    }
+
+    private int earliest() {
+        int earliest = -1;
+        for (int i = 0; i < polled.length; i++) {
+            if (polled[i] && (earliest < 0 || nextPolls[i] < nextPolls[earliest])) {
+                earliest = i;
+            }
+        }
+        return earliest;
+    }
+
+    private long period(final int index) {
+        return (long) (1_000_000_000L / (targetRates[index] * rateFactors[index]));
+    }
+
+    private static boolean equals(final byte[] first, final byte[] second, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (first[i] != second[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
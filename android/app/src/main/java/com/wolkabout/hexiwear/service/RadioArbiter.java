@@ -0,0 +1,108 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import java.util.ArrayDeque;
+
+/**
+ * Shares the radio between the schedulers of all connected devices.
+ * <p>
+ * Only a limited number of GATT requests may be in flight across all connections. A scheduler that doesn't get a
+ * slot waits in line and is woken up once it's its turn, so every device gets its share of requests regardless of
+ * how much work the others have queued.
+ */
+public class RadioArbiter {
+
+    private final int slots;
+    private final ArrayDeque<GattOperationScheduler> waiting = new ArrayDeque<>();
+    private int inUse;
+    private long contentions;
+
+    public RadioArbiter(final int slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * @return true if the scheduler got a slot, otherwise it is put in line and woken up later.
+     */
+    public synchronized boolean tryAcquire(final GattOperationScheduler scheduler) {
+        final GattOperationScheduler head = waiting.peekFirst();
+        if (inUse >= slots || (head != null && head != scheduler)) {
+            if (!waiting.contains(scheduler)) {
+                waiting.addLast(scheduler);
+                contentions++;
+            }
+            return false;
+        }
+
+        if (head == scheduler) {
+            waiting.pollFirst();
+        }
+        inUse++;
+        wakeNext();
+        return true;
+    }
+
+    public synchronized void release() {
+        inUse--;
+        wakeNext();
+    }
+
+    /**
+     * Takes the scheduler out of line, used when it stops.
+     */
+    public synchronized void cancel(final GattOperationScheduler scheduler) {
+        if (waiting.peekFirst() == scheduler) {
+            waiting.pollFirst();
+            wakeNext();
+        } else {
+            waiting.remove(scheduler);
+        }
+    }
+
+    private void wakeNext() {
+        final GattOperationScheduler next = waiting.peekFirst();
+        if (next != null && inUse < slots) {
+            next.onSlotAvailable();
+        }
+    }
+
+    public synchronized int getSlotsInUse() {
+        return inUse;
+    }
+
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    public synchronized long getContentionCount() {
+        return contentions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RadioArbiter{" +
+                "inUse=" + inUse + "/" + slots +
+                ", waiting=" + waiting.size() +
+                ", contentions=" + contentions +
+                '}';
+    }
+}
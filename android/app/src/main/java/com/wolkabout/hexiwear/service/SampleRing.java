@@ -0,0 +1,181 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands raw samples from the GATT callback over to a single consumer thread without locks or allocations.
+ * <p>
+ * Every slot is allocated up front, the producer only copies the bytes and the timestamp in. When the ring
+ * is full the sample is dropped and counted, the callback never waits for the consumer.
+ */
+public class SampleRing {
+
+    public static final int MAX_VALUE_LENGTH = 20;
+
+    private final int mask;
+    private final Characteristic[] types;
+    private final byte[][] values;
+    private final int[] lengths;
+    private final long[] timestamps;
+
+    // Consumer side copies of the slots, one per length so the sink gets an array of the right size.
+    private final byte[][] exactValues = new byte[MAX_VALUE_LENGTH + 1][];
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile Thread waitingConsumer;
+
+    private volatile long dropped;
+    private volatile int maxOccupancy;
+    private volatile long lastLagNanos;
+    private volatile long maxLagNanos;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two.
+     */
+    public SampleRing(final int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        types = new Characteristic[size];
+        values = new byte[size][MAX_VALUE_LENGTH];
+        lengths = new int[size];
+        timestamps = new long[size];
+        for (int i = 0; i < exactValues.length; i++) {
+            exactValues[i] = new byte[i];
+        }
+    }
+
+    /**
+     * Called by the producer only.
+     *
+     * @return false if the ring was full or the value too long and the sample was dropped.
+     */
+    public boolean offer(final Characteristic type, final byte[] value, final long timestampNanos) {
+        final long currentTail = tail.get();
+        final int occupancy = (int) (currentTail - head.get());
+        if (value == null || value.length > MAX_VALUE_LENGTH || occupancy > mask) {
+            dropped++;
+            return false;
+        }
+
+        final int slot = (int) currentTail & mask;
+        types[slot] = type;
+        System.arraycopy(value, 0, values[slot], 0, value.length);
+        lengths[slot] = value.length;
+        timestamps[slot] = timestampNanos;
+        tail.set(currentTail + 1);
+
+        if (occupancy + 1 > maxOccupancy) {
+            maxOccupancy = occupancy + 1;
+        }
+
+        final Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Called by the consumer only. Passes every waiting sample to the sink.
+     *
+     * @param nowNanos current time on the clock the samples were stamped with, used to measure the lag.
+     * @return number of samples handled.
+     */
+    public int drain(final Sink sink, final long nowNanos) {
+        long currentHead = head.get();
+        final long currentTail = tail.get();
+        int drained = 0;
+        while (currentHead < currentTail) {
+            final int slot = (int) currentHead & mask;
+            final int length = lengths[slot];
+            final byte[] value = exactValues[length];
+            System.arraycopy(values[slot], 0, value, 0, length);
+
+            final long timestamp = timestamps[slot];
+            final Characteristic type = types[slot];
+            head.set(++currentHead);
+
+            lastLagNanos = nowNanos - timestamp;
+            if (lastLagNanos > maxLagNanos) {
+                maxLagNanos = lastLagNanos;
+            }
+            sink.onSample(type, value, timestamp);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Parks the consumer until a sample is offered or the timeout passes.
+     */
+    public void await(final long timeoutNanos) {
+        waitingConsumer = Thread.currentThread();
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        waitingConsumer = null;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int getOccupancy() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * @return time the last handled sample spent in the ring.
+     */
+    public long getLastLagNanos() {
+        return lastLagNanos;
+    }
+
+    public long getMaxLagNanos() {
+        return maxLagNanos;
+    }
+
+    public interface Sink {
+
+        /**
+         * The value array is reused, it is only valid until the method returns.
+         */
+        void onSample(Characteristic type, byte[] value, long timestampNanos);
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Codec;
+import com.wolkabout.hexiwear.model.Sample;
+
+/**
+ * Unpacks a batch written by {@link BinaryBatchWriter}.
+ */
+public class BinaryBatchReader {
+
+    private static final Characteristic[] CHARACTERISTICS = Characteristic.values();
+
+    private final int[][] lastRaw = new int[CHARACTERISTICS.length][Sample.MAX_VALUES];
+    private final Sample sample = new Sample();
+    private final ReadingAggregator.Summary summary = new ReadingAggregator.Summary();
+
+    private byte[] data;
+    private int position;
+    private int end;
+
+    /**
+     * Passes every sample and summary in the batch to the listener, stamped with its wall clock time in
+     * milliseconds. Both are reused for the next one. Batches of every version so far are read.
+     *
+     * @return number of samples and summaries read.
+     * @throws IllegalArgumentException if the batch is malformed, the entries before the error were passed on.
+     */
+    public int read(final byte[] data, final int offset, final int length, final Listener listener) {
+        if (length < BinaryBatchWriter.HEADER_BYTES || data[offset] != BinaryBatchWriter.MAGIC_0
+                || data[offset + 1] != BinaryBatchWriter.MAGIC_1 || data[offset + 2] < 1
+                || data[offset + 2] > BinaryBatchWriter.VERSION) {
+            throw new IllegalArgumentException("Not a batch of version 1 to " + BinaryBatchWriter.VERSION);
+        }
+        final boolean summaries = data[offset + 2] >= 2;
+
+        this.data = data;
+        this.position = offset + 3;
+        this.end = offset + length;
+        for (int[] last : lastRaw) {
+            for (int i = 0; i < last.length; i++) {
+                last[i] = 0;
+            }
+        }
+
+        final int count = (data[position] & 0xff) << 8 | data[position + 1] & 0xff;
+        position += 2;
+        long timestamp = 0;
+        for (int i = 0; i < 8; i++) {
+            timestamp = timestamp << 8 | data[position++] & 0xff;
+        }
+
+        for (int n = 0; n < count; n++) {
+            final int type = readByte();
+            final boolean summarized = summaries && (type & BinaryBatchWriter.SUMMARY_FLAG) != 0;
+            final int ordinal = summarized ? type & ~BinaryBatchWriter.SUMMARY_FLAG : type;
+            final Codec codec = ordinal < CHARACTERISTICS.length ? Codecs.get(ordinal) : null;
+            if (codec == null) {
+                throw new IllegalArgumentException("Unknown characteristic " + ordinal + " in entry " + n);
+            }
+
+            timestamp += readSignedVarint();
+            if (summarized) {
+                readSummary(CHARACTERISTICS[ordinal], codec);
+                listener.onSummary(summary, timestamp);
+                continue;
+            }
+
+            final boolean delta = codec.getAxes() == 3;
+            final int[] last = lastRaw[ordinal];
+            sample.set(CHARACTERISTICS[ordinal], 0, codec.getAxes());
+            for (int i = 0; i < codec.getAxes(); i++) {
+                final int raw = (int) (delta ? last[i] + readSignedVarint() : readSignedVarint());
+                last[i] = raw;
+                sample.setValue(i, codec.toValue(raw));
+            }
+            listener.onSample(sample, timestamp);
+        }
+        return count;
+    }
+
+    private void readSummary(final Characteristic characteristic, final Codec codec) {
+        summary.setCount((int) readSignedVarint());
+        for (ReadingAggregator.Statistic statistic : BinaryBatchWriter.SUMMARY_STATISTICS) {
+            final Sample values = summary.get(statistic);
+            values.set(characteristic, 0, codec.getAxes());
+            for (int i = 0; i < codec.getAxes(); i++) {
+                values.setValue(i, codec.toValue((int) readSignedVarint()));
+            }
+        }
+    }
+
+    private int readByte() {
+        if (position >= end) {
+            throw new IllegalArgumentException("Batch ends early");
+        }
+        return data[position++] & 0xff;
+    }
+
+    private long readSignedVarint() {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte();
+            zigzag |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    public interface Listener {
+
+        void onSample(Sample sample, long timestampMillis);
+
+        void onSummary(ReadingAggregator.Summary summary, long timestampMillis);
+    }
+}
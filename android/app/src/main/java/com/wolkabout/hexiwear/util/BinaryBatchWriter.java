@@ -0,0 +1,196 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Codec;
+import com.wolkabout.hexiwear.model.Sample;
+
+/**
+ * Packs samples into one compact message: fixed point integers instead of formatted text and, for the triaxial
+ * readings, only the change since the previous sample of the same characteristic. Summaries of a publish interval
+ * carry their sample count and every statistic.
+ * <p>
+ * Integers are big endian. Varints are LEB128, signed ones zigzag encoded first.
+ * <pre>
+ * header:      'H' 'X', version (byte), entry count (short), time of the first entry in ms (long)
+ * per sample:  characteristic ordinal (byte), ms since the previous entry (signed varint),
+ *              one signed varint per axis with the raw value, or its change for triaxial readings
+ * per summary: characteristic ordinal with the top bit set (byte), ms since the previous entry (signed varint),
+ *              sample count (signed varint), then the raw minimum, maximum, mean and last value of every axis
+ *              (signed varints, all axes of one statistic before the next)
+ * </pre>
+ * Raw values are the ones the device sends, the value times the divisor of the characteristic's {@link Codec}.
+ * Version 1 batches are the same without summaries. Not thread safe, the buffer is reused after {@link #clear()}.
+ */
+public class BinaryBatchWriter {
+
+    public static final byte MAGIC_0 = 'H';
+    public static final byte MAGIC_1 = 'X';
+    public static final byte VERSION = 2;
+    public static final int HEADER_BYTES = 2 + 1 + 2 + 8;
+    public static final int SUMMARY_FLAG = 0x80;
+    // The order statistics of a summary are written in.
+    public static final ReadingAggregator.Statistic[] SUMMARY_STATISTICS = {ReadingAggregator.Statistic.MIN,
+            ReadingAggregator.Statistic.MAX, ReadingAggregator.Statistic.MEAN, ReadingAggregator.Statistic.LAST};
+
+    private static final int MAX_SAMPLES = 0xffff;
+    private static final int MAX_SAMPLE_BYTES = 1 + 10 + Sample.MAX_VALUES * 5;
+    private static final int MAX_SUMMARY_BYTES = 1 + 10 + 5 + SUMMARY_STATISTICS.length * Sample.MAX_VALUES * 5;
+    private static final int CHARACTERISTIC_COUNT = Characteristic.values().length;
+
+    private final byte[] buffer;
+    private final int[][] lastRaw = new int[CHARACTERISTIC_COUNT][Sample.MAX_VALUES];
+    private int position;
+    private int count;
+    private long lastMillis;
+
+    public BinaryBatchWriter(final int capacityBytes) {
+        if (capacityBytes < HEADER_BYTES + MAX_SUMMARY_BYTES) {
+            throw new IllegalArgumentException("A batch of " + capacityBytes + " bytes can't hold a summary.");
+        }
+        buffer = new byte[capacityBytes];
+        clear();
+    }
+
+    /**
+     * @return false if the batch is full or the characteristic has no codec, the sample isn't added then.
+     */
+    public boolean add(final Sample sample, final long timestampMillis) {
+        final int ordinal = sample.getCharacteristicOrdinal();
+        final Codec codec = ordinal < 0 ? null : Codecs.get(ordinal);
+        if (codec == null || count == MAX_SAMPLES || position + MAX_SAMPLE_BYTES > buffer.length) {
+            return false;
+        }
+
+        writeEntryHeader(ordinal, timestampMillis);
+        final boolean delta = codec.getAxes() == 3;
+        final int[] last = lastRaw[ordinal];
+        final int axes = Math.min(codec.getAxes(), sample.size());
+        for (int i = 0; i < axes; i++) {
+            final int raw = codec.toRaw(sample.get(i));
+            writeSignedVarint(delta ? (long) raw - last[i] : raw);
+            last[i] = raw;
+        }
+        count++;
+        return true;
+    }
+
+    /**
+     * @return false if the batch is full or the characteristic has no codec, the summary isn't added then.
+     */
+    public boolean add(final ReadingAggregator.Summary summary, final long timestampMillis) {
+        final int ordinal = summary.getCharacteristicOrdinal();
+        final Codec codec = ordinal < 0 ? null : Codecs.get(ordinal);
+        if (codec == null || count == MAX_SAMPLES || position + MAX_SUMMARY_BYTES > buffer.length) {
+            return false;
+        }
+
+        writeEntryHeader(ordinal | SUMMARY_FLAG, timestampMillis);
+        writeSignedVarint(summary.getCount());
+        final int axes = Math.min(codec.getAxes(), summary.size());
+        for (ReadingAggregator.Statistic statistic : SUMMARY_STATISTICS) {
+            final Sample values = summary.get(statistic);
+            for (int i = 0; i < axes; i++) {
+                writeSignedVarint(codec.toRaw(values.get(i)));
+            }
+        }
+        count++;
+        return true;
+    }
+
+    private void writeEntryHeader(final int type, final long timestampMillis) {
+        if (count == 0) {
+            writeLong(HEADER_BYTES - 8, timestampMillis);
+            lastMillis = timestampMillis;
+        }
+        buffer[position++] = (byte) type;
+        writeSignedVarint(timestampMillis - lastMillis);
+        lastMillis = timestampMillis;
+    }
+
+    /**
+     * @return how many more samples are sure to fit.
+     */
+    public int getFreeSamples() {
+        return Math.min((buffer.length - position) / MAX_SAMPLE_BYTES, MAX_SAMPLES - count);
+    }
+
+    /**
+     * @return how many more samples or summaries, in any mix, are sure to fit.
+     */
+    public int getFreeEntries() {
+        return Math.min((buffer.length - position) / MAX_SUMMARY_BYTES, MAX_SAMPLES - count);
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * @return bytes the batch takes so far, header included.
+     */
+    public int getLength() {
+        return position;
+    }
+
+    /**
+     * @return the batch, valid up to {@link #getLength()} until the writer is cleared or added to.
+     */
+    public byte[] getBuffer() {
+        buffer[3] = (byte) (count >>> 8);
+        buffer[4] = (byte) count;
+        return buffer;
+    }
+
+    public void clear() {
+        buffer[0] = MAGIC_0;
+        buffer[1] = MAGIC_1;
+        buffer[2] = VERSION;
+        position = HEADER_BYTES;
+        count = 0;
+        lastMillis = 0;
+        for (int[] last : lastRaw) {
+            for (int i = 0; i < last.length; i++) {
+                last[i] = 0;
+            }
+        }
+    }
+
+    private void writeLong(final int offset, final long value) {
+        for (int i = 0; i < 8; i++) {
+            buffer[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private void writeSignedVarint(final long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            buffer[position++] = (byte) ((zigzag & 0x7f) | 0x80);
+            zigzag >>>= 7;
+        }
+        buffer[position++] = (byte) zigzag;
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Codec;
+
+/**
+ * Drops samples that didn't change since the last one let through, before anything is formatted or sent.
+ * <p>
+ * Samples are compared on the raw bytes. With a deadband set, every component is decoded and the sample is
+ * dropped while none of them moved further than the deadband. An unchanged value is still let through every
+ * now and then so listeners can tell a steady reading from a dead link.
+ */
+public class ChangeFilter {
+
+    private static final Characteristic[] CHARACTERISTICS = Characteristic.values();
+    private static final long DEFAULT_REFRESH_MILLIS = 30000;
+    private static final int MAX_VALUE_LENGTH = 20;
+
+    private final int[] deadbands = new int[CHARACTERISTICS.length];
+    private final byte[][] lastValues = new byte[CHARACTERISTICS.length][MAX_VALUE_LENGTH];
+    private final int[] lastValueLengths = new int[CHARACTERISTICS.length];
+    private final long[] lastAccepted = new long[CHARACTERISTICS.length];
+    private final long[] accepted = new long[CHARACTERISTICS.length];
+    private final long[] suppressed = new long[CHARACTERISTICS.length];
+    private final long refreshMillis;
+
+    public ChangeFilter() {
+        this(DEFAULT_REFRESH_MILLIS);
+    }
+
+    public ChangeFilter(final long refreshMillis) {
+        this.refreshMillis = refreshMillis;
+        clear();
+    }
+
+    /**
+     * Sets how far a value may move, in the units it's displayed in, before it counts as changed.
+     */
+    public synchronized void setDeadband(final Characteristic characteristic, final float deadband) {
+        final Codec codec = Codecs.get(characteristic);
+        deadbands[characteristic.ordinal()] = codec == null ? 0 : Math.max(0, Math.round(deadband * codec.getDivisor()));
+    }
+
+    /**
+     * @return false if the sample should be dropped.
+     */
+    public synchronized boolean accept(final Characteristic characteristic, final byte[] value, final long timestampMillis) {
+        final int index = characteristic.ordinal();
+        if (value == null || value.length > MAX_VALUE_LENGTH) {
+            return true;
+        }
+
+        final byte[] lastValue = lastValues[index];
+        final boolean refreshDue = timestampMillis - lastAccepted[index] >= refreshMillis;
+        if (!refreshDue && value.length == lastValueLengths[index] && isWithinDeadband(characteristic, lastValue, value)) {
+            suppressed[index]++;
+            return false;
+        }
+
+        System.arraycopy(value, 0, lastValue, 0, value.length);
+        lastValueLengths[index] = value.length;
+        lastAccepted[index] = timestampMillis;
+        accepted[index]++;
+        return true;
+    }
+
+    /**
+     * Forgets the last values so the next sample of every characteristic is let through.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < lastValueLengths.length; i++) {
+            lastValueLengths[i] = -1;
+            lastAccepted[i] = Long.MIN_VALUE / 2;
+        }
+    }
+
+    public synchronized long getAcceptedCount(final Characteristic characteristic) {
+        return accepted[characteristic.ordinal()];
+    }
+
+    public synchronized long getSuppressedCount(final Characteristic characteristic) {
+        return suppressed[characteristic.ordinal()];
+    }
+
+    public synchronized long getSuppressedCount() {
+        long total = 0;
+        for (long count : suppressed) {
+            total += count;
+        }
+        return total;
+    }
+
+    private boolean isWithinDeadband(final Characteristic characteristic, final byte[] lastValue, final byte[] value) {
+        final int deadband = deadbands[characteristic.ordinal()];
+        if (deadband == 0) {
+            for (int i = 0; i < value.length; i++) {
+                if (lastValue[i] != value[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        final Codec codec = Codecs.get(characteristic);
+        final int axes = Math.min(codec.getAxes(), value.length / codec.getWidth());
+        for (int axis = 0; axis < axes; axis++) {
+            if (Math.abs(codec.readRaw(value, axis) - codec.readRaw(lastValue, axis)) > deadband) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return deadband used unless the user picked another one.
+     */
+    public static float getDefaultDeadband(final Characteristic characteristic) {
+        switch (characteristic) {
+            case TEMPERATURE:
+                return 0.1f;
+            case HUMIDITY:
+                return 0.5f;
+            case PRESSURE:
+                return 0.05f;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Codec;
+
+/**
+ * Codecs of the reading characteristics. Everything that decodes, formats or compares readings goes through
+ * this table, a new sensor or a changed payload only needs a row here.
+ */
+public final class Codecs {
+
+    private static final Codec[] CODECS = new Codec[Characteristic.values().length];
+
+    static {
+        //                                 width  signed  little endian  axes  divisor  decimals  publish x  publish /
+        put(Characteristic.ACCELERATION,   2,     true,   true,          3,    100,     2,        1,         10);
+        put(Characteristic.GYRO,           2,     true,   true,          3,    1,       2,        10,        1);
+        put(Characteristic.MAGNET,         2,     true,   true,          3,    100,     2,        1,         10);
+        put(Characteristic.LIGHT,          1,     false,  true,          1,    1,       0,        1,         1);
+        put(Characteristic.TEMPERATURE,    2,     false,  true,          1,    100,     2,        1,         10);
+        put(Characteristic.HUMIDITY,       2,     false,  true,          1,    100,     2,        1,         10);
+        put(Characteristic.PRESSURE,       2,     false,  true,          1,    100,     2,        1,         1);
+        put(Characteristic.BATTERY,        1,     false,  true,          1,    1,       0,        1,         1);
+        put(Characteristic.HEARTRATE,      1,     false,  true,          1,    1,       0,        1,         1);
+        // Steps have always been published in tens.
+        put(Characteristic.STEPS,          2,     false,  true,          1,    1,       0,        1,         10);
+        put(Characteristic.CALORIES,       1,     false,  true,          1,    1,       0,        1,         1);
+        // Roll, pitch and yaw in tenths of a degree, for the payloads the app builds itself.
+        put(Characteristic.ORIENTATION,    2,     true,   true,          3,    10,      1,        1,         1);
+    }
+
+    private Codecs() {
+        // Not meant to be instantiated.
+    }
+
+    private static void put(final Characteristic characteristic, final int width, final boolean signed,
+                            final boolean littleEndian, final int axes, final int divisor, final int decimals,
+                            final int publishMultiplier, final int publishDivisor) {
+        CODECS[characteristic.ordinal()] = new Codec(width, signed, littleEndian, axes, divisor, decimals,
+                publishMultiplier, publishDivisor, characteristic.getUnit());
+    }
+
+    /**
+     * @return codec of the characteristic, or null if it doesn't carry a reading.
+     */
+    public static Codec get(final Characteristic characteristic) {
+        return CODECS[characteristic.ordinal()];
+    }
+
+    public static Codec get(final int ordinal) {
+        return CODECS[ordinal];
+    }
+}
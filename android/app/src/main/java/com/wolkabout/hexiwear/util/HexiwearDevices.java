@@ -26,6 +26,8 @@ import android.content.SharedPreferences;
 
 import com.wolkabout.hexiwear.model.Characteristic;
 import com.wolkabout.hexiwear.model.HexiwearDevice;
+import com.wolkabout.hexiwear.model.Mode;
+import com.wolkabout.hexiwear.model.PayloadFormat;
 import com.wolkabout.wolkrestandroid.Credentials_;
 import com.wolkabout.wolkrestandroid.dto.PointWithFeedsResponse;
 
@@ -35,11 +37,10 @@ import org.androidannotations.annotations.RootContext;
 import org.androidannotations.annotations.sharedpreferences.Pref;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
 @EBean(scope = EBean.Scope.Singleton)
 public class HexiwearDevices {
@@ -51,6 +52,16 @@ public class HexiwearDevices {
     private static final String SHOULD_TRANSMIT_SUFFIX = "_shouldTransmit";
     private static final String PUBLISH_INTERVAL_SUFFIX = "_publishInterval";
     private static final String KEEP_ALIVE_SUFFIX = "_keepAlive";
+    private static final String STREAMING_SUFFIX = "_streaming";
+    private static final String POLLING_RATE_SUFFIX = "_pollingRate_";
+    private static final String DEADBAND_SUFFIX = "_deadband_";
+    private static final String PUBLISH_ORIENTATION_SUFFIX = "_publishOrientation";
+    private static final String AGGREGATION_SUFFIX = "_aggregation";
+    private static final String PAYLOAD_FORMAT_SUFFIX = "_payloadFormat";
+    private static final String OVERFLOW_POLICY_SUFFIX = "_overflowPolicy";
+    private static final String GATEWAY_ID_KEY = "gatewayId";
+    // Client ids of more than 23 characters may be refused by MQTT 3.1.1 brokers.
+    private static final int GATEWAY_ID_LENGTH = 14;
 
     private SharedPreferences preferences;
     private String account;
@@ -109,36 +120,30 @@ public class HexiwearDevices {
         editor.apply();
     }
 
-    public Map<String, Boolean> getDisplayPreferences(String deviceAddress) {
-        final Map<String, Boolean> displayPrefs = new HashMap<>();
-
-        final List<Characteristic> readings = Characteristic.getReadings();
-        for (Characteristic reading : readings) {
-            displayPrefs.put(reading.name(), preferences.getBoolean(deviceAddress + reading.name(), true));
+    /**
+     * @return whether each reading is shown and read, indexed by the characteristic's ordinal.
+     */
+    public boolean[] getDisplayPreferences(String deviceAddress) {
+        final boolean[] displayPrefs = new boolean[Characteristic.values().length];
+        for (Characteristic reading : Characteristic.getDisplayedReadings()) {
+            displayPrefs[reading.ordinal()] = preferences.getBoolean(deviceAddress + reading.name(), true);
         }
-
         return displayPrefs;
     }
 
-    public List<String> getEnabledPreferences(String deviceAddress) {
-        final List<String> enabledPrefs = new ArrayList<>();
-
-        final Map<String, Boolean> displayPreferences = getDisplayPreferences(deviceAddress);
-        for (Map.Entry<String, Boolean> entry : displayPreferences.entrySet()) {
-            if (entry.getValue()) {
-                enabledPrefs.add(entry.getKey());
+    public List<Characteristic> getEnabledReadings(String deviceAddress) {
+        final List<Characteristic> enabledReadings = new ArrayList<>();
+        final boolean[] displayPreferences = getDisplayPreferences(deviceAddress);
+        for (Characteristic reading : Characteristic.getReadings()) {
+            if (displayPreferences[reading.ordinal()]) {
+                enabledReadings.add(reading);
             }
         }
-
-        return enabledPrefs;
+        return enabledReadings;
     }
 
-    public void setDisplayPreferences(String deviceAddress, Map<String, Boolean> displayPrefs) {
-        final SharedPreferences.Editor editor = preferences.edit();
-        for (Map.Entry<String, Boolean> entry : displayPrefs.entrySet()) {
-            editor.putBoolean(deviceAddress + entry.getKey(), entry.getValue());
-        }
-        editor.apply();
+    public void setDisplayPreference(String deviceAddress, Characteristic reading, boolean enabled) {
+        preferences.edit().putBoolean(deviceAddress + reading.name(), enabled).apply();
     }
 
     public static List<HexiwearDevice> getDevices(List<PointWithFeedsResponse> response) {
@@ -187,4 +192,96 @@ public class HexiwearDevices {
         return preferences.getBoolean(device.getDeviceAddress() + KEEP_ALIVE_SUFFIX, true);
     }
 
+    public void setStreaming(final HexiwearDevice device, final boolean streaming) {
+        preferences.edit().putBoolean(device.getDeviceAddress() + STREAMING_SUFFIX, streaming).apply();
+    }
+
+    public boolean shouldStream(final HexiwearDevice device) {
+        return preferences.getBoolean(device.getDeviceAddress() + STREAMING_SUFFIX, false);
+    }
+
+    public void setPublishOrientation(final HexiwearDevice device, final boolean publish) {
+        preferences.edit().putBoolean(device.getDeviceAddress() + PUBLISH_ORIENTATION_SUFFIX, publish).apply();
+    }
+
+    public boolean shouldPublishOrientation(final HexiwearDevice device) {
+        return preferences.getBoolean(device.getDeviceAddress() + PUBLISH_ORIENTATION_SUFFIX, false);
+    }
+
+    public void setAggregation(final HexiwearDevice device, final ReadingAggregator.Statistic statistic) {
+        preferences.edit().putString(device.getDeviceAddress() + AGGREGATION_SUFFIX, statistic == null ? null : statistic.name()).apply();
+    }
+
+    /**
+     * @return statistic published once per publish interval, or null if every sample is published.
+     */
+    public ReadingAggregator.Statistic getAggregation(final HexiwearDevice device) {
+        final String name = preferences.getString(device.getDeviceAddress() + AGGREGATION_SUFFIX, null);
+        for (ReadingAggregator.Statistic statistic : ReadingAggregator.Statistic.values()) {
+            if (statistic.name().equals(name)) {
+                return statistic;
+            }
+        }
+        return null;
+    }
+
+    public void setPayloadFormat(final HexiwearDevice device, final PayloadFormat format) {
+        preferences.edit().putString(device.getDeviceAddress() + PAYLOAD_FORMAT_SUFFIX, format.name()).apply();
+    }
+
+    public PayloadFormat getPayloadFormat(final HexiwearDevice device) {
+        final String name = preferences.getString(device.getDeviceAddress() + PAYLOAD_FORMAT_SUFFIX, null);
+        for (PayloadFormat format : PayloadFormat.values()) {
+            if (format.name().equals(name)) {
+                return format;
+            }
+        }
+        return PayloadFormat.TEXT;
+    }
+
+    public void setOverflowPolicy(final HexiwearDevice device, final PublishQueue.Policy policy) {
+        preferences.edit().putString(device.getDeviceAddress() + OVERFLOW_POLICY_SUFFIX, policy.name()).apply();
+    }
+
+    /**
+     * @return what happens to readings the publisher can't keep up with, they're stored on the phone by default.
+     */
+    public PublishQueue.Policy getOverflowPolicy(final HexiwearDevice device) {
+        final String name = preferences.getString(device.getDeviceAddress() + OVERFLOW_POLICY_SUFFIX, null);
+        for (PublishQueue.Policy policy : PublishQueue.Policy.values()) {
+            if (policy.name().equals(name)) {
+                return policy;
+            }
+        }
+        return PublishQueue.Policy.SPILL_TO_DISK;
+    }
+
+    /**
+     * @return id the phone publishes under for the account's devices, made up the first time it's needed.
+     */
+    public String getGatewayId() {
+        String gatewayId = preferences.getString(GATEWAY_ID_KEY, null);
+        if (gatewayId == null) {
+            gatewayId = UUID.randomUUID().toString().replace("-", "").substring(0, GATEWAY_ID_LENGTH);
+            preferences.edit().putString(GATEWAY_ID_KEY, gatewayId).apply();
+        }
+        return gatewayId;
+    }
+
+    public void setPollingRate(final HexiwearDevice device, final Mode mode, final Characteristic characteristic, final float rate) {
+        preferences.edit().putFloat(device.getDeviceAddress() + POLLING_RATE_SUFFIX + mode.name() + "_" + characteristic.name(), rate).apply();
+    }
+
+    public float getPollingRate(final HexiwearDevice device, final Mode mode, final Characteristic characteristic) {
+        return preferences.getFloat(device.getDeviceAddress() + POLLING_RATE_SUFFIX + mode.name() + "_" + characteristic.name(), mode.getPollingRate(characteristic));
+    }
+
+    public void setDeadband(final HexiwearDevice device, final Characteristic characteristic, final float deadband) {
+        preferences.edit().putFloat(device.getDeviceAddress() + DEADBAND_SUFFIX + characteristic.name(), deadband).apply();
+    }
+
+    public float getDeadband(final HexiwearDevice device, final Characteristic characteristic) {
+        return preferences.getFloat(device.getDeviceAddress() + DEADBAND_SUFFIX + characteristic.name(), ChangeFilter.getDefaultDeadband(characteristic));
+    }
+
 }
@@ -0,0 +1,340 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Sample;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the orientation of the device from the acceleration, gyro and magnet samples, one step per sample.
+ * <p>
+ * This is Madgwick's gradient descent filter: the gyro rate is integrated into a quaternion and corrected towards
+ * gravity and magnetic north. The streams arrive at their own rates, so every step uses the latest value of each
+ * and the time since the previous step. A gyro or magnet stream that went quiet is left out rather than integrated
+ * with an old value. All three sensors are assumed to share the device's axes.
+ * <p>
+ * The state is a handful of floats, nothing is allocated. Not thread safe.
+ */
+public class OrientationFilter {
+
+    public static final float DEFAULT_BETA = 0.1f;
+
+    private static final long STALE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Longer gaps are a paused stream or a reconnect, not something to integrate over.
+    private static final float MAX_STEP_SECONDS = 0.25f;
+    private static final float DEGREES_TO_RADIANS = (float) (Math.PI / 180);
+    // Starting from level and facing north, a high gain for the first seconds gets to the real orientation quickly.
+    private static final long WARM_UP_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final float WARM_UP_BETA = 2.5f;
+
+    private final float beta;
+
+    private float q0 = 1;
+    private float q1;
+    private float q2;
+    private float q3;
+
+    private float ax, ay, az;
+    private float gx, gy, gz;
+    private float mx, my, mz;
+    private long accelerationAt;
+    private long gyroAt;
+    private long magnetAt;
+    private long firstStepAt;
+    private long lastStepAt;
+    private boolean hasAcceleration;
+    private long steps;
+
+    public OrientationFilter() {
+        this(DEFAULT_BETA);
+    }
+
+    /**
+     * @param beta how strongly gravity and north pull on the integrated gyro rate, higher settles faster but is noisier.
+     */
+    public OrientationFilter(final float beta) {
+        this.beta = beta;
+    }
+
+    /**
+     * Takes the sample into account and advances the estimate.
+     *
+     * @return true if the orientation was updated, false if the sample isn't a motion reading or there's no
+     * acceleration yet to anchor it.
+     */
+    public boolean update(final Sample sample) {
+        final long timestamp = sample.getTimestampNanos();
+        switch (sample.getCharacteristic()) {
+            case ACCELERATION:
+                ax = sample.get(0);
+                ay = sample.get(1);
+                az = sample.get(2);
+                accelerationAt = timestamp;
+                hasAcceleration = true;
+                break;
+            case GYRO:
+                gx = sample.get(0) * DEGREES_TO_RADIANS;
+                gy = sample.get(1) * DEGREES_TO_RADIANS;
+                gz = sample.get(2) * DEGREES_TO_RADIANS;
+                gyroAt = timestamp;
+                break;
+            case MAGNET:
+                mx = sample.get(0);
+                my = sample.get(1);
+                mz = sample.get(2);
+                magnetAt = timestamp;
+                break;
+            default:
+                return false;
+        }
+
+        if (!hasAcceleration) {
+            return false;
+        }
+
+        final float dt = lastStepAt == 0 ? 0 : Math.min(Math.max(timestamp - lastStepAt, 0) / 1e9f, MAX_STEP_SECONDS);
+        if (lastStepAt == 0) {
+            firstStepAt = timestamp;
+        }
+        lastStepAt = timestamp;
+        final float gain = timestamp - firstStepAt < WARM_UP_NANOS ? Math.max(beta, WARM_UP_BETA) : beta;
+        final boolean gyroFresh = gyroAt != 0 && timestamp - gyroAt < STALE_NANOS;
+        final boolean magnetFresh = magnetAt != 0 && timestamp - magnetAt < STALE_NANOS
+                && timestamp - accelerationAt < STALE_NANOS;
+        if (magnetFresh) {
+            step(gyroFresh ? gx : 0, gyroFresh ? gy : 0, gyroFresh ? gz : 0, dt, gain);
+        } else {
+            stepWithoutMagnet(gyroFresh ? gx : 0, gyroFresh ? gy : 0, gyroFresh ? gz : 0, dt, gain);
+        }
+        steps++;
+        return true;
+    }
+
+    /**
+     * Forgets the estimate and every sample seen.
+     */
+    public void reset() {
+        q0 = 1;
+        q1 = q2 = q3 = 0;
+        accelerationAt = gyroAt = magnetAt = firstStepAt = lastStepAt = 0;
+        hasAcceleration = false;
+    }
+
+    private void step(final float gx, final float gy, final float gz, final float dt, final float beta) {
+        float qDot0 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot1 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot2 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot3 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        float norm = length(ax, ay, az);
+        final float mNorm = length(mx, my, mz);
+        if (norm > 0 && mNorm > 0) {
+            final float ax = this.ax / norm;
+            final float ay = this.ay / norm;
+            final float az = this.az / norm;
+            final float mx = this.mx / mNorm;
+            final float my = this.my / mNorm;
+            final float mz = this.mz / mNorm;
+
+            final float _2q0mx = 2f * q0 * mx;
+            final float _2q0my = 2f * q0 * my;
+            final float _2q0mz = 2f * q0 * mz;
+            final float _2q1mx = 2f * q1 * mx;
+            final float _2q0 = 2f * q0;
+            final float _2q1 = 2f * q1;
+            final float _2q2 = 2f * q2;
+            final float _2q3 = 2f * q3;
+            final float _2q0q2 = 2f * q0 * q2;
+            final float _2q2q3 = 2f * q2 * q3;
+            final float q0q0 = q0 * q0;
+            final float q0q1 = q0 * q1;
+            final float q0q2 = q0 * q2;
+            final float q0q3 = q0 * q3;
+            final float q1q1 = q1 * q1;
+            final float q1q2 = q1 * q2;
+            final float q1q3 = q1 * q3;
+            final float q2q2 = q2 * q2;
+            final float q2q3 = q2 * q3;
+            final float q3q3 = q3 * q3;
+
+            // Direction of the magnetic field in the earth frame, rotated onto the x-z plane.
+            final float hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2 + _2q1 * mz * q3
+                    - mx * q2q2 - mx * q3q3;
+            final float hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1 + my * q2q2
+                    + _2q2 * mz * q3 - my * q3q3;
+            final float _2bx = (float) Math.sqrt(hx * hx + hy * hy);
+            final float _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1 + _2q2 * my * q3
+                    - mz * q2q2 + mz * q3q3;
+            final float _4bx = 2f * _2bx;
+            final float _4bz = 2f * _2bz;
+
+            // Errors against gravity and the magnetic field, shared by the gradient terms.
+            final float gravityX = 2f * q1q3 - _2q0q2 - ax;
+            final float gravityY = 2f * q0q1 + _2q2q3 - ay;
+            final float gravityZ = 1f - 2f * q1q1 - 2f * q2q2 - az;
+            final float fieldX = _2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx;
+            final float fieldY = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my;
+            final float fieldZ = _2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz;
+
+            final float s0 = -_2q2 * gravityX + _2q1 * gravityY - _2bz * q2 * fieldX
+                    + (-_2bx * q3 + _2bz * q1) * fieldY + _2bx * q2 * fieldZ;
+            final float s1 = _2q3 * gravityX + _2q0 * gravityY - 4f * q1 * gravityZ + _2bz * q3 * fieldX
+                    + (_2bx * q2 + _2bz * q0) * fieldY + (_2bx * q3 - _4bz * q1) * fieldZ;
+            final float s2 = -_2q0 * gravityX + _2q3 * gravityY - 4f * q2 * gravityZ + (-_4bx * q2 - _2bz * q0) * fieldX
+                    + (_2bx * q1 + _2bz * q3) * fieldY + (_2bx * q0 - _4bz * q2) * fieldZ;
+            final float s3 = _2q1 * gravityX + _2q2 * gravityY + (-_4bx * q3 + _2bz * q1) * fieldX
+                    + (-_2bx * q0 + _2bz * q2) * fieldY + _2bx * q1 * fieldZ;
+
+            norm = length(s0, s1, s2, s3);
+            if (norm > 0) {
+                qDot0 -= beta * s0 / norm;
+                qDot1 -= beta * s1 / norm;
+                qDot2 -= beta * s2 / norm;
+                qDot3 -= beta * s3 / norm;
+            }
+        }
+
+        integrate(qDot0, qDot1, qDot2, qDot3, dt);
+    }
+
+    private void stepWithoutMagnet(final float gx, final float gy, final float gz, final float dt, final float beta) {
+        float qDot0 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot1 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot2 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot3 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        float norm = length(ax, ay, az);
+        if (norm > 0) {
+            final float ax = this.ax / norm;
+            final float ay = this.ay / norm;
+            final float az = this.az / norm;
+
+            final float _2q0 = 2f * q0;
+            final float _2q1 = 2f * q1;
+            final float _2q2 = 2f * q2;
+            final float _2q3 = 2f * q3;
+            final float _4q0 = 4f * q0;
+            final float _4q1 = 4f * q1;
+            final float _4q2 = 4f * q2;
+            final float _8q1 = 8f * q1;
+            final float _8q2 = 8f * q2;
+            final float q0q0 = q0 * q0;
+            final float q1q1 = q1 * q1;
+            final float q2q2 = q2 * q2;
+            final float q3q3 = q3 * q3;
+
+            final float s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+            final float s1 = _4q1 * q3q3 - _2q3 * ax + 4f * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1 + _8q1 * q2q2
+                    + _4q1 * az;
+            final float s2 = 4f * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1 + _8q2 * q2q2
+                    + _4q2 * az;
+            final float s3 = 4f * q1q1 * q3 - _2q1 * ax + 4f * q2q2 * q3 - _2q2 * ay;
+
+            norm = length(s0, s1, s2, s3);
+            if (norm > 0) {
+                qDot0 -= beta * s0 / norm;
+                qDot1 -= beta * s1 / norm;
+                qDot2 -= beta * s2 / norm;
+                qDot3 -= beta * s3 / norm;
+            }
+        }
+
+        integrate(qDot0, qDot1, qDot2, qDot3, dt);
+    }
+
+    private void integrate(final float qDot0, final float qDot1, final float qDot2, final float qDot3, final float dt) {
+        q0 += qDot0 * dt;
+        q1 += qDot1 * dt;
+        q2 += qDot2 * dt;
+        q3 += qDot3 * dt;
+
+        final float norm = length(q0, q1, q2, q3);
+        q0 /= norm;
+        q1 /= norm;
+        q2 /= norm;
+        q3 /= norm;
+    }
+
+    private static float length(final float x, final float y, final float z) {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    private static float length(final float w, final float x, final float y, final float z) {
+        return (float) Math.sqrt(w * w + x * x + y * y + z * z);
+    }
+
+    public float getQuaternionW() {
+        return q0;
+    }
+
+    public float getQuaternionX() {
+        return q1;
+    }
+
+    public float getQuaternionY() {
+        return q2;
+    }
+
+    public float getQuaternionZ() {
+        return q3;
+    }
+
+    /**
+     * @return rotation around the X axis in degrees, -180 to 180.
+     */
+    public float getRoll() {
+        return (float) Math.toDegrees(Math.atan2(2 * (q0 * q1 + q2 * q3), 1 - 2 * (q1 * q1 + q2 * q2)));
+    }
+
+    /**
+     * @return rotation around the Y axis in degrees, -90 to 90.
+     */
+    public float getPitch() {
+        final float sine = 2 * (q0 * q2 - q3 * q1);
+        return (float) Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, sine))));
+    }
+
+    /**
+     * @return rotation around the Z axis in degrees, -180 to 180. Only meaningful while the magnet is read.
+     */
+    public float getYaw() {
+        return (float) Math.toDegrees(Math.atan2(2 * (q0 * q3 + q1 * q2), 1 - 2 * (q2 * q2 + q3 * q3)));
+    }
+
+    /**
+     * Writes roll, pitch and yaw into the sample as an {@link Characteristic#ORIENTATION} reading.
+     */
+    public void getOrientation(final long timestampNanos, final Sample sample) {
+        sample.set(Characteristic.ORIENTATION, timestampNanos, 3);
+        sample.setValue(0, getRoll());
+        sample.setValue(1, getPitch());
+        sample.setValue(2, getYaw());
+    }
+
+    /**
+     * @return number of steps taken since the filter was created.
+     */
+    public long getStepCount() {
+        return steps;
+    }
+}
@@ -0,0 +1,451 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Codec;
+import com.wolkabout.hexiwear.model.Sample;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of readings between the ingest thread and the publisher, so a slow or unreachable broker can't make
+ * readings pile up without limit. What happens to a reading that doesn't fit is up to the {@link Policy}. The
+ * summary of a publish interval is queued as one reading.
+ * <p>
+ * With a {@link ReadingOutbox} every reading is written to it as it's offered and the publisher takes readings from
+ * there, so readings waiting to be published outlive the process. The policies bound the readings waiting in the
+ * outbox to the capacity, except for {@link Policy#SPILL_TO_DISK} which is only bound by the outbox's space.
+ * Readings are stored as the raw integers the device sent, lossless whatever the payload format, and read back into a
+ * reused sample without allocating. A publisher told when readings arrived can {@link #read(Sink, int)} them and
+ * {@link #acknowledge(long)} them once they did, so nothing is taken out of the outbox before that.
+ * <p>
+ * Without an outbox readings are kept in plain arrays sized once and are lost with the process. Nothing is allocated
+ * per reading then, and readings that would be spilled make room by dropping the oldest one instead. Reading them
+ * takes them off the queue then, same as draining.
+ * <p>
+ * Not thread safe apart from {@link #setPolicy(Policy)}, the counters may be read from other threads a reading or
+ * two behind.
+ */
+public class PublishQueue {
+
+    public enum Policy {
+        /**
+         * The oldest reading makes room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Readings that don't fit are dropped.
+         */
+        DROP_NEWEST,
+        /**
+         * A reading that doesn't fit drops the oldest waiting one of the same characteristic where it sits and goes
+         * at the end, so the latest reading of every characteristic is kept and readings stay in the order they were
+         * taken. The oldest reading goes if there's nothing of the characteristic waiting.
+         */
+        KEEP_LATEST,
+        /**
+         * Readings are kept on disk until the outbox is full, then the oldest ones are dropped.
+         */
+        SPILL_TO_DISK
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final Characteristic[] CHARACTERISTICS = Characteristic.values();
+    private static final ReadingAggregator.Statistic[] STATISTICS = ReadingAggregator.Statistic.values();
+    // A summary is its sample count followed by every statistic, a reading only its values.
+    private static final int MAX_RAW_VALUES = 1 + STATISTICS.length * Sample.MAX_VALUES;
+
+    private final int capacity;
+    private final byte[] ordinals;
+    private final byte[] sizes;
+    private final long[] timestamps;
+    private final int[] values;
+    // Readings of each characteristic kept in memory.
+    private final int[] counts = new int[CHARACTERISTICS.length];
+    // Where readings wait, null if they're kept in memory.
+    private final ReadingOutbox outbox;
+    private final int[] rawValues = new int[MAX_RAW_VALUES];
+    private final Sample sample = new Sample();
+    private final ReadingAggregator.Summary summary = new ReadingAggregator.Summary();
+    private final StoredSink storedSink = new StoredSink();
+
+    private volatile Policy policy = Policy.SPILL_TO_DISK;
+    private long head;
+    private long tail;
+    private int maxSize;
+    private long fullSince;
+    private long fullNanos;
+    private long droppedReadings;
+    private long replacedReadings;
+    private long unreadableReadings;
+
+    /**
+     * @param outbox where readings wait, or null to keep them in memory.
+     */
+    public PublishQueue(final int capacity, final ReadingOutbox outbox) {
+        final boolean inMemory = outbox == null;
+        this.capacity = capacity;
+        this.ordinals = new byte[inMemory ? capacity : 0];
+        this.sizes = new byte[inMemory ? capacity : 0];
+        this.timestamps = new long[inMemory ? capacity : 0];
+        this.values = new int[inMemory ? capacity * MAX_RAW_VALUES : 0];
+        this.outbox = outbox;
+    }
+
+    public void setPolicy(final Policy policy) {
+        this.policy = policy;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return false if the reading was dropped.
+     */
+    public boolean offer(final Sample sample, final long timestampMillis) {
+        final int ordinal = sample.getCharacteristicOrdinal();
+        final Codec codec = ordinal < 0 ? null : Codecs.get(ordinal);
+        if (codec == null) {
+            return false;
+        }
+
+        final int size = Math.min(sample.size(), Sample.MAX_VALUES);
+        for (int i = 0; i < size; i++) {
+            rawValues[i] = codec.toRaw(sample.get(i));
+        }
+        return offer(ordinal, timestampMillis, size);
+    }
+
+    /**
+     * @return false if the summary was dropped.
+     */
+    public boolean offer(final ReadingAggregator.Summary summary, final long timestampMillis) {
+        final int ordinal = summary.getCharacteristicOrdinal();
+        final Codec codec = ordinal < 0 ? null : Codecs.get(ordinal);
+        if (codec == null) {
+            return false;
+        }
+
+        final int size = Math.min(summary.size(), Sample.MAX_VALUES);
+        rawValues[0] = summary.getCount();
+        int count = 1;
+        for (ReadingAggregator.Statistic statistic : STATISTICS) {
+            final Sample values = summary.get(statistic);
+            for (int i = 0; i < size; i++) {
+                rawValues[count++] = codec.toRaw(values.get(i));
+            }
+        }
+        return offer(ordinal, timestampMillis, count);
+    }
+
+    /**
+     * Queues the first count of {@link #rawValues}.
+     */
+    private boolean offer(final int ordinal, final long timestampMillis, final int count) {
+        if (outbox == null) {
+            return offerToMemory(ordinal, timestampMillis, count);
+        }
+
+        final Policy policy = this.policy;
+        if (policy != Policy.SPILL_TO_DISK && outbox.getPendingRecords() >= capacity) {
+            onFull();
+            switch (policy) {
+                case DROP_NEWEST:
+                    droppedReadings++;
+                    return false;
+                case KEEP_LATEST:
+                    if (outbox.supersede(CHARACTERISTICS[ordinal])) {
+                        replacedReadings++;
+                    }
+                    // Falls through to drop what's still over.
+                default:
+                    // Readings left from the last run or kept under SPILL_TO_DISK may be more than the capacity.
+                    final long excess = outbox.getPendingRecords() - capacity + 1;
+                    if (excess > 0) {
+                        droppedReadings += outbox.skip(null, (int) Math.min(excess, Integer.MAX_VALUE));
+                    }
+                    break;
+            }
+        }
+
+        if (!append(CHARACTERISTICS[ordinal], timestampMillis, rawValues, count)) {
+            return false;
+        }
+        maxSize = Math.max(maxSize, size());
+        return true;
+    }
+
+    private boolean append(final Characteristic characteristic, final long timestampMillis, final int[] values,
+                           final int count) {
+        try {
+            outbox.append(characteristic, timestampMillis, values, count);
+            return true;
+        } catch (IOException e) {
+            droppedReadings++;
+            return false;
+        }
+    }
+
+    private boolean offerToMemory(final int ordinal, final long timestampMillis, final int count) {
+        if (size() == capacity) {
+            onFull();
+            switch (policy) {
+                case DROP_NEWEST:
+                    droppedReadings++;
+                    return false;
+                case KEEP_LATEST:
+                    if (counts[ordinal] > 0) {
+                        removeOldest(ordinal);
+                        replacedReadings++;
+                        break;
+                    }
+                    // Falls through, nothing of the characteristic to replace.
+                default:
+                    removeOldest();
+                    droppedReadings++;
+                    break;
+            }
+        }
+
+        store(tail, ordinal, timestampMillis, count);
+        counts[ordinal]++;
+        tail++;
+        maxSize = Math.max(maxSize, size());
+        return true;
+    }
+
+    /**
+     * Passes up to the given number of readings to the sink, oldest first, and removes them from the queue.
+     * Stored readings that can't be read back are counted as dropped.
+     *
+     * @return number of readings taken off the queue.
+     */
+    public int drain(final Sink sink, final int maxReadings) {
+        int drained = 0;
+        if (outbox != null) {
+            storedSink.sink = sink;
+            drained = outbox.forward(storedSink, maxReadings);
+            storedSink.sink = null;
+        }
+        while (drained < maxReadings && head < tail) {
+            final int slot = (int) (head % capacity);
+            removeOldest();
+            // The slot isn't reused before the next offer.
+            deliver(CHARACTERISTICS[ordinals[slot]], timestamps[slot], values, slot * MAX_RAW_VALUES, sizes[slot], sink);
+            drained++;
+        }
+        updateFull();
+        return drained;
+    }
+
+    private void updateFull() {
+        if (fullSince != 0 && size() < capacity) {
+            fullNanos += System.nanoTime() - fullSince;
+            fullSince = 0;
+        }
+    }
+
+    /**
+     * Passes up to the given number of readings after the ones read so far to the sink, oldest first, leaving them
+     * in the outbox until they're acknowledged.
+     *
+     * @return number of readings read.
+     */
+    public int read(final Sink sink, final int maxReadings) {
+        if (outbox == null) {
+            return drain(sink, maxReadings);
+        }
+
+        storedSink.sink = sink;
+        final int read = outbox.readAhead(storedSink, maxReadings);
+        storedSink.sink = null;
+        return read;
+    }
+
+    /**
+     * @return position after the last reading read, for {@link #acknowledge(long)}.
+     */
+    public long getReadPosition() {
+        return outbox == null ? 0 : outbox.getReadPosition();
+    }
+
+    /**
+     * Takes the readings read up to the position off the queue, they arrived.
+     */
+    public void acknowledge(final long position) {
+        if (outbox != null) {
+            outbox.acknowledge(position);
+            updateFull();
+        }
+    }
+
+    /**
+     * Reads the readings that weren't acknowledged again, they didn't arrive.
+     */
+    public void rewind() {
+        if (outbox != null) {
+            outbox.rewind();
+        }
+    }
+
+    private void onFull() {
+        if (fullSince == 0) {
+            fullSince = System.nanoTime();
+        }
+    }
+
+    private void store(final long sequence, final int ordinal, final long timestampMillis, final int count) {
+        final int slot = (int) (sequence % capacity);
+        ordinals[slot] = (byte) ordinal;
+        sizes[slot] = (byte) count;
+        timestamps[slot] = timestampMillis;
+        System.arraycopy(rawValues, 0, values, slot * MAX_RAW_VALUES, count);
+    }
+
+    /**
+     * Passes stored raw values to the sink as the reading or summary they were, stored values that are neither are
+     * counted as dropped.
+     */
+    private void deliver(final Characteristic characteristic, final long timestampMillis, final int[] values,
+                         final int offset, final int count, final Sink sink) {
+        final Codec codec = Codecs.get(characteristic.ordinal());
+        if (codec != null && count == codec.getAxes()) {
+            sample.set(characteristic, 0, count);
+            for (int i = 0; i < count; i++) {
+                sample.setValue(i, codec.toValue(values[offset + i]));
+            }
+            sink.onReading(sample, timestampMillis);
+        } else if (codec != null && count == 1 + STATISTICS.length * codec.getAxes()) {
+            summary.setCount(values[offset]);
+            int index = offset + 1;
+            for (ReadingAggregator.Statistic statistic : STATISTICS) {
+                final Sample statisticValues = summary.get(statistic);
+                statisticValues.set(characteristic, 0, codec.getAxes());
+                for (int i = 0; i < codec.getAxes(); i++) {
+                    statisticValues.setValue(i, codec.toValue(values[index++]));
+                }
+            }
+            sink.onSummary(summary, timestampMillis);
+        } else {
+            unreadableReadings++;
+        }
+    }
+
+    private void removeOldest() {
+        counts[ordinals[(int) (head % capacity)]]--;
+        head++;
+    }
+
+    /**
+     * Removes the oldest reading of the characteristic, moving the ones before it up a slot.
+     */
+    private void removeOldest(final int ordinal) {
+        long sequence = head;
+        while (ordinals[(int) (sequence % capacity)] != ordinal) {
+            sequence++;
+        }
+        for (; sequence > head; sequence--) {
+            copy((int) ((sequence - 1) % capacity), (int) (sequence % capacity));
+        }
+        counts[ordinal]--;
+        head++;
+    }
+
+    private void copy(final int from, final int to) {
+        ordinals[to] = ordinals[from];
+        sizes[to] = sizes[from];
+        timestamps[to] = timestamps[from];
+        System.arraycopy(values, from * MAX_RAW_VALUES, values, to * MAX_RAW_VALUES, sizes[from]);
+    }
+
+    public void clear() {
+        if (outbox != null) {
+            outbox.skip(null, Integer.MAX_VALUE);
+        }
+        while (head < tail) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * @return readings waiting.
+     */
+    public int size() {
+        return outbox == null ? (int) (tail - head) : (int) Math.min(outbox.getPendingRecords(), Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getDroppedReadings() {
+        return droppedReadings + unreadableReadings;
+    }
+
+    public long getReplacedReadings() {
+        return replacedReadings;
+    }
+
+    /**
+     * @return how long the queue was full, the time the publisher held the readings back.
+     */
+    public long getFullMillis() {
+        final long since = fullSince;
+        return TimeUnit.NANOSECONDS.toMillis(fullNanos + (since == 0 ? 0 : System.nanoTime() - since));
+    }
+
+    /**
+     * Turns stored raw values back into samples and summaries.
+     */
+    private class StoredSink implements ReadingOutbox.Sink {
+
+        private Sink sink;
+
+        @Override
+        public void onReading(final Characteristic characteristic, final long timestampMillis, final int[] values,
+                              final int count) {
+            deliver(characteristic, timestampMillis, values, 0, count, sink);
+        }
+    }
+
+    /**
+     * Receives readings leaving the queue. The sample and summary are reused for the next one, their timestamps
+     * aren't set.
+     */
+    public interface Sink {
+
+        void onReading(Sample sample, long timestampMillis);
+
+        void onSummary(ReadingAggregator.Summary summary, long timestampMillis);
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Sample;
+
+/**
+ * Reduces the samples of each characteristic received during a publish interval to their minimum, maximum, mean,
+ * last value and count, so one reading per characteristic is published however fast the device is read. Text
+ * payloads carry one of the statistics, binary batches all of them as a {@link Summary}.
+ * <p>
+ * Every axis is reduced on its own. The accumulators are plain arrays indexed by characteristic ordinal,
+ * nothing is allocated per sample. Not thread safe.
+ */
+public class ReadingAggregator {
+
+    public enum Statistic {
+        LAST, MEAN, MIN, MAX
+    }
+
+    private static final Characteristic[] CHARACTERISTICS = Characteristic.values();
+    private static final Statistic[] STATISTICS = Statistic.values();
+
+    private final int[] counts = new int[CHARACTERISTICS.length];
+    private final int[] sizes = new int[CHARACTERISTICS.length];
+    private final long[] lastTimestamps = new long[CHARACTERISTICS.length];
+    private final float[][] minimums = new float[CHARACTERISTICS.length][Sample.MAX_VALUES];
+    private final float[][] maximums = new float[CHARACTERISTICS.length][Sample.MAX_VALUES];
+    private final double[][] sums = new double[CHARACTERISTICS.length][Sample.MAX_VALUES];
+    private final float[][] lastValues = new float[CHARACTERISTICS.length][Sample.MAX_VALUES];
+
+    private int pending;
+    private long aggregatedSamples;
+    private long aggregatedReadings;
+
+    public void add(final Sample sample) {
+        final int index = sample.getCharacteristicOrdinal();
+        if (index < 0) {
+            return;
+        }
+
+        final int size = sample.size();
+        final float[] min = minimums[index];
+        final float[] max = maximums[index];
+        final double[] sum = sums[index];
+        final float[] last = lastValues[index];
+        if (counts[index] == 0 || sizes[index] != size) {
+            for (int i = 0; i < size; i++) {
+                min[i] = Float.POSITIVE_INFINITY;
+                max[i] = Float.NEGATIVE_INFINITY;
+                sum[i] = 0;
+            }
+            if (counts[index] == 0) {
+                pending++;
+            }
+            counts[index] = 0;
+            sizes[index] = size;
+        }
+
+        for (int i = 0; i < size; i++) {
+            final float value = sample.get(i);
+            min[i] = Math.min(min[i], value);
+            max[i] = Math.max(max[i], value);
+            sum[i] += value;
+            last[i] = value;
+        }
+        counts[index]++;
+        lastTimestamps[index] = sample.getTimestampNanos();
+        aggregatedSamples++;
+    }
+
+    /**
+     * @return number of samples in the current window of the characteristic.
+     */
+    public int getCount(final Characteristic characteristic) {
+        return counts[characteristic.ordinal()];
+    }
+
+    /**
+     * @return true if no characteristic has samples waiting.
+     */
+    public boolean isEmpty() {
+        return pending == 0;
+    }
+
+    /**
+     * Writes the statistic of the current window into the sample, stamped with the time of the last sample.
+     *
+     * @return false if there were no samples of the characteristic since the window was last cleared.
+     */
+    public boolean get(final Characteristic characteristic, final Statistic statistic, final Sample out) {
+        final int index = characteristic.ordinal();
+        final int count = counts[index];
+        if (count == 0) {
+            return false;
+        }
+
+        final int size = sizes[index];
+        out.set(characteristic, lastTimestamps[index], size);
+        for (int i = 0; i < size; i++) {
+            switch (statistic) {
+                case MEAN:
+                    out.setValue(i, (float) (sums[index][i] / count));
+                    break;
+                case MIN:
+                    out.setValue(i, minimums[index][i]);
+                    break;
+                case MAX:
+                    out.setValue(i, maximums[index][i]);
+                    break;
+                default:
+                    out.setValue(i, lastValues[index][i]);
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #get(Characteristic, Statistic, Sample)}, but starts a new window for the characteristic.
+     */
+    public boolean take(final Characteristic characteristic, final Statistic statistic, final Sample out) {
+        if (!get(characteristic, statistic, out)) {
+            return false;
+        }
+
+        counts[characteristic.ordinal()] = 0;
+        pending--;
+        aggregatedReadings++;
+        return true;
+    }
+
+    /**
+     * Same as {@link #take(Characteristic, Statistic, Sample)} for every statistic at once.
+     */
+    public boolean take(final Characteristic characteristic, final Summary out) {
+        final int count = counts[characteristic.ordinal()];
+        if (count == 0) {
+            return false;
+        }
+
+        for (Statistic statistic : STATISTICS) {
+            get(characteristic, statistic, out.get(statistic));
+        }
+        out.setCount(count);
+
+        counts[characteristic.ordinal()] = 0;
+        pending--;
+        aggregatedReadings++;
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        pending = 0;
+    }
+
+    /**
+     * @return samples added since the aggregator was created.
+     */
+    public long getAggregatedSamples() {
+        return aggregatedSamples;
+    }
+
+    /**
+     * @return windows taken since the aggregator was created, each one a single published reading.
+     */
+    public long getAggregatedReadings() {
+        return aggregatedReadings;
+    }
+
+    /**
+     * Every statistic of a characteristic's window along with the number of samples in it, each statistic a sample
+     * stamped with the time of the last one. Meant to be reused, same as {@link Sample}.
+     */
+    public static class Summary {
+
+        private final Sample[] statistics = new Sample[STATISTICS.length];
+        private int count;
+
+        public Summary() {
+            for (int i = 0; i < statistics.length; i++) {
+                statistics[i] = new Sample();
+            }
+        }
+
+        public Sample get(final Statistic statistic) {
+            return statistics[statistic.ordinal()];
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void setCount(final int count) {
+            this.count = count;
+        }
+
+        public Characteristic getCharacteristic() {
+            return statistics[0].getCharacteristic();
+        }
+
+        public int getCharacteristicOrdinal() {
+            return statistics[0].getCharacteristicOrdinal();
+        }
+
+        /**
+         * @return number of values of each statistic.
+         */
+        public int size() {
+            return statistics[0].size();
+        }
+    }
+}
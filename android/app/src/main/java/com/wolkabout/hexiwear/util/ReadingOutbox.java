@@ -0,0 +1,672 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of readings on their way to the cloud, so they outlive a lost connection and a killed process.
+ * <p>
+ * Readings are appended to fixed size, memory mapped segment files and forwarded in order from a cursor kept in
+ * its own mapped file. A segment is deleted once everything in it was forwarded. When a new segment would take
+ * more than the allowed space, the oldest one is dropped along with whatever in it wasn't forwarded yet.
+ * <p>
+ * A publisher that only knows later whether readings arrived reads ahead of the cursor with
+ * {@link #readAhead(Sink, int)} and moves the cursor with {@link #acknowledge(long)} once they did, or goes back
+ * to it with {@link #rewind()}. Readings read ahead are still waiting until then, and are read again after a
+ * restart.
+ * <p>
+ * A record is the length of its values in bytes (short, 0 ends the segment), the characteristic ordinal (byte), the
+ * wall clock time in milliseconds (long), up to {@link #MAX_VALUES} integers and a CRC32 of everything after the
+ * length. A record failing the check, such as one cut short when the process died, ends the segment too. The values
+ * are read back into an array reused for every record, nothing is allocated per reading.
+ * <p>
+ * A reading can be dropped where it sits with {@link #supersede(Characteristic)}, which sets the top bit of its
+ * length. It stays in the segment but is never forwarded.
+ * <p>
+ * The cursor file also holds the version of the record layout. Segments written with another one are deleted on
+ * open, their readings are lost.
+ * <p>
+ * Mapped pages survive the process dying but not the device losing power, so appended readings and the cursor are
+ * written to the storage device every {@link #SYNC_RECORDS} readings appended or taken out, at least once a second
+ * while that goes on and whenever a segment fills up. A power loss may lose readings appended since the last sync
+ * and bring back ones forwarded since then.
+ * <p>
+ * Not thread safe, only the counters may be read from other threads, apart from the waiting readings of each
+ * characteristic.
+ */
+public class ReadingOutbox implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 256 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    public static final int MAX_VALUES = 16;
+    public static final int SYNC_RECORDS = 256;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "cursor";
+    // Segment index (long), offset in it (int) and the record layout version (int).
+    private static final int CURSOR_BYTES = 16;
+    private static final int VERSION_OFFSET = 12;
+    // Version 1 kept the values as ASCII text.
+    private static final int FORMAT_VERSION = 2;
+    private static final int LENGTH_BYTES = 2;
+    private static final int SUPERSEDED = 0x8000;
+    private static final int HEADER_BYTES = 1 + 8;
+    private static final int VALUE_BYTES = 4;
+    private static final int CRC_BYTES = 4;
+    private static final long SYNC_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Characteristic[] CHARACTERISTICS = Characteristic.values();
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final MappedByteBuffer cursor;
+    private final CRC32 crc = new CRC32();
+    private final byte[] record = new byte[HEADER_BYTES + MAX_VALUES * VALUE_BYTES + CRC_BYTES];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+    private final int[] values = new int[MAX_VALUES];
+    private final int[] pendingByCharacteristic = new int[CHARACTERISTICS.length];
+    // Where to look for the oldest waiting reading of each characteristic, nothing of it is waiting before there.
+    private final long[] supersedeIndexes = new long[CHARACTERISTICS.length];
+    private final int[] supersedeOffsets = new int[CHARACTERISTICS.length];
+
+    // The cursor is always in the first segment, the ones before it are deleted as soon as they're forwarded.
+    private int readOffset;
+    // Where reading ahead goes on, never behind the cursor.
+    private long aheadIndex;
+    private int aheadOffset;
+
+    private int unsyncedRecords;
+    private long syncedAtNanos = System.nanoTime();
+
+    private volatile long pendingRecords;
+    private volatile long pendingBytes;
+    private volatile long forwardedRecords;
+    private volatile long droppedRecords;
+    private volatile long oldestPendingMillis;
+
+    public ReadingOutbox(final File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Opens the outbox in the directory, picking up where the last one left off.
+     *
+     * @param maxBytes space the segments may take, at least two segments are always kept.
+     */
+    public ReadingOutbox(final File directory, final int segmentBytes, final long maxBytes) throws IOException {
+        if (segmentBytes < LENGTH_BYTES + record.length + LENGTH_BYTES) {
+            throw new IllegalArgumentException("Segments of " + segmentBytes + " bytes can't hold a reading.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+        final File cursorFile = new File(directory, CURSOR_FILE);
+        final boolean current = cursorFile.length() == CURSOR_BYTES;
+        this.cursor = map(cursorFile, CURSOR_BYTES);
+        if (!current || cursor.getInt(VERSION_OFFSET) != FORMAT_VERSION) {
+            discardSegments();
+        }
+        open();
+    }
+
+    /**
+     * Deletes the segments of an outbox with another record layout, or of none at all, and starts the cursor over.
+     */
+    private void discardSegments() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+                    delete(file);
+                }
+            }
+        }
+        cursor.putLong(0, 0);
+        cursor.putInt(8, 0);
+        cursor.putInt(VERSION_OFFSET, FORMAT_VERSION);
+        cursor.force();
+    }
+
+    private void open() throws IOException {
+        final File[] files = directory.listFiles();
+        final long[] indexes = new long[files == null ? 0 : files.length];
+        int count = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            final String name = files[i].getName();
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    indexes[count++] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+                } catch (NumberFormatException e) {
+                    count--;
+                }
+            }
+        }
+        Arrays.sort(indexes, 0, count);
+
+        final long cursorIndex = cursor.getLong(0);
+        final int cursorOffset = cursor.getInt(8);
+        long records = 0;
+        for (int i = 0; i < count; i++) {
+            final File file = getSegmentFile(indexes[i]);
+            if (indexes[i] < cursorIndex || file.length() != segmentBytes) {
+                // Forwarded before the process died, or never fully created.
+                delete(file);
+                continue;
+            }
+
+            final Segment segment = new Segment(indexes[i], file, map(file, segmentBytes));
+            int offset = 0;
+            int next;
+            while ((next = next(segment, offset)) > 0) {
+                if (segment.index == cursorIndex && offset < cursorOffset) {
+                    readOffset = next;
+                } else if (!isSuperseded(segment, offset)) {
+                    pendingByCharacteristic[record[0] & 0xff]++;
+                    records++;
+                }
+                offset = next;
+            }
+            segment.end = offset;
+            segments.addLast(segment);
+        }
+
+        if (segments.isEmpty()) {
+            addSegment(cursorIndex + 1);
+        }
+        if (segments.peekFirst().index != cursorIndex) {
+            readOffset = 0;
+        }
+        saveCursor();
+
+        long bytes = -readOffset;
+        for (Segment segment : segments) {
+            bytes += segment.end;
+        }
+        pendingRecords = records;
+        pendingBytes = bytes;
+        updateOldestPending();
+    }
+
+    /**
+     * @param values the first count of them are stored.
+     */
+    public void append(final Characteristic characteristic, final long timestampMillis, final int[] values,
+                       final int count) throws IOException {
+        if (count < 1 || count > MAX_VALUES) {
+            throw new IllegalArgumentException("Can't store " + count + " values.");
+        }
+        final int length = count * VALUE_BYTES;
+
+        // Picked first, dropping a segment reads the next oldest reading into the record buffer.
+        final int size = LENGTH_BYTES + HEADER_BYTES + length + CRC_BYTES;
+        Segment segment = segments.peekLast();
+        if (segment.end + size > segmentBytes) {
+            segment.buffer.force();
+            segment = addSegment(segment.index + 1);
+        }
+
+        record[0] = (byte) characteristic.ordinal();
+        recordBuffer.putLong(1, timestampMillis);
+        for (int i = 0; i < count; i++) {
+            recordBuffer.putInt(HEADER_BYTES + i * VALUE_BYTES, values[i]);
+        }
+        crc.reset();
+        crc.update(record, 0, HEADER_BYTES + length);
+
+        // The length goes in last, a record cut short by a crash fails the check instead of ending mid value.
+        final MappedByteBuffer buffer = segment.buffer;
+        buffer.position(segment.end + LENGTH_BYTES);
+        buffer.put(record, 0, HEADER_BYTES + length);
+        buffer.putInt((int) crc.getValue());
+        if (segment.end + size + LENGTH_BYTES <= segmentBytes) {
+            buffer.putShort(segment.end + size, (short) 0);
+        }
+        buffer.putShort(segment.end, (short) length);
+
+        segment.end += size;
+        pendingByCharacteristic[characteristic.ordinal()]++;
+        if (pendingRecords == 0) {
+            oldestPendingMillis = timestampMillis;
+        }
+        pendingRecords++;
+        pendingBytes += size;
+
+        onChanged(1);
+    }
+
+    /**
+     * Passes waiting readings to the sink in the order they were appended. The cursor moves past a reading once the
+     * sink returns, a reading the sink throws on is offered again next time.
+     *
+     * @return number of readings forwarded.
+     */
+    public int forward(final Sink sink, final int maxRecords) {
+        final int forwarded = take(sink, maxRecords, Long.MAX_VALUE);
+        forwardedRecords += forwarded;
+        return forwarded;
+    }
+
+    /**
+     * Passes the readings after the ones read ahead so far to the sink, leaving the cursor where it is.
+     *
+     * @return number of readings read.
+     */
+    public int readAhead(final Sink sink, final int maxRecords) {
+        catchUpAhead();
+        int read = 0;
+        for (Segment segment : segments) {
+            if (segment.index < aheadIndex) {
+                continue;
+            }
+            if (segment.index > aheadIndex) {
+                aheadIndex = segment.index;
+                aheadOffset = 0;
+            }
+
+            while (read < maxRecords && aheadOffset < segment.end) {
+                final int offset = aheadOffset;
+                final int length = read(segment.buffer, offset);
+                aheadOffset += LENGTH_BYTES + HEADER_BYTES + length + CRC_BYTES;
+                if (!isSuperseded(segment, offset)) {
+                    final int count = length / VALUE_BYTES;
+                    for (int i = 0; i < count; i++) {
+                        values[i] = recordBuffer.getInt(HEADER_BYTES + i * VALUE_BYTES);
+                    }
+                    sink.onReading(CHARACTERISTICS[record[0] & 0xff], getTimestamp(), values, count);
+                    read++;
+                }
+            }
+            if (read == maxRecords) {
+                break;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * @return position after the last reading read ahead, for {@link #acknowledge(long)}.
+     */
+    public long getReadPosition() {
+        catchUpAhead();
+        return getPosition(aheadIndex, aheadOffset);
+    }
+
+    /**
+     * Moves the cursor up to the position, the readings before it are forwarded. Readings taken out since they were
+     * read are only counted once.
+     */
+    public void acknowledge(final long position) {
+        forwardedRecords += take(NO_SINK, Integer.MAX_VALUE, position);
+    }
+
+    /**
+     * Reads ahead from the cursor again, the readings read ahead so far weren't delivered.
+     */
+    public void rewind() {
+        aheadIndex = segments.peekFirst().index;
+        aheadOffset = readOffset;
+    }
+
+    private void catchUpAhead() {
+        final long cursorIndex = segments.peekFirst().index;
+        if (aheadIndex < cursorIndex || aheadIndex == cursorIndex && aheadOffset < readOffset) {
+            rewind();
+        }
+    }
+
+    private static long getPosition(final long index, final int offset) {
+        return index << 32 | offset;
+    }
+
+    /**
+     * Takes up to the given number of the oldest waiting readings out unforwarded, they're counted by the caller.
+     *
+     * @param sink gets the readings taken out, may be null.
+     * @return number of readings taken out.
+     */
+    public int skip(final Sink sink, final int maxRecords) {
+        return take(sink == null ? NO_SINK : sink, maxRecords, Long.MAX_VALUE);
+    }
+
+    private int take(final Sink sink, final int maxRecords, final long endPosition) {
+        int taken = 0;
+        while (taken < maxRecords) {
+            final Segment segment = segments.peekFirst();
+            if (getPosition(segment.index, readOffset) >= endPosition) {
+                break;
+            }
+            if (readOffset >= segment.end) {
+                if (segment == segments.peekLast()) {
+                    break;
+                }
+
+                segments.removeFirst();
+                delete(segment.file);
+                readOffset = 0;
+                saveCursor();
+                continue;
+            }
+
+            final int length = read(segment.buffer, readOffset);
+            final int size = LENGTH_BYTES + HEADER_BYTES + length + CRC_BYTES;
+            if (isSuperseded(segment, readOffset)) {
+                // Counted out when it was superseded.
+                readOffset += size;
+                pendingBytes -= size;
+                saveCursor();
+                continue;
+            }
+
+            final Characteristic characteristic = CHARACTERISTICS[record[0] & 0xff];
+            final int count = length / VALUE_BYTES;
+            for (int i = 0; i < count; i++) {
+                values[i] = recordBuffer.getInt(HEADER_BYTES + i * VALUE_BYTES);
+            }
+            sink.onReading(characteristic, getTimestamp(), values, count);
+
+            readOffset += size;
+            saveCursor();
+            pendingRecords--;
+            pendingBytes -= size;
+            pendingByCharacteristic[characteristic.ordinal()]--;
+            taken++;
+        }
+        if (taken > 0) {
+            onChanged(taken);
+        }
+        updateOldestPending();
+        return taken;
+    }
+
+    /**
+     * Drops the oldest waiting reading of the characteristic, leaving the readings around it where they are.
+     *
+     * @return false if no reading of the characteristic is waiting.
+     */
+    public boolean supersede(final Characteristic characteristic) {
+        final int ordinal = characteristic.ordinal();
+        if (pendingByCharacteristic[ordinal] == 0) {
+            return false;
+        }
+
+        final Segment first = segments.peekFirst();
+        long index = supersedeIndexes[ordinal];
+        int offset = supersedeOffsets[ordinal];
+        if (index < first.index || index == first.index && offset < readOffset) {
+            index = first.index;
+            offset = readOffset;
+        }
+        for (Segment segment : segments) {
+            if (segment.index < index) {
+                continue;
+            }
+            if (segment.index > index) {
+                offset = 0;
+            }
+
+            while (offset < segment.end) {
+                final int length = read(segment.buffer, offset);
+                final int size = LENGTH_BYTES + HEADER_BYTES + length + CRC_BYTES;
+                if ((record[0] & 0xff) == ordinal && !isSuperseded(segment, offset)) {
+                    segment.buffer.putShort(offset, (short) (length | SUPERSEDED));
+                    supersedeIndexes[ordinal] = segment.index;
+                    supersedeOffsets[ordinal] = offset + size;
+                    pendingByCharacteristic[ordinal]--;
+                    pendingRecords--;
+                    if (segment == first && offset == readOffset) {
+                        updateOldestPending();
+                    }
+                    onChanged(1);
+                    return true;
+                }
+                offset += size;
+            }
+        }
+        // The counts said otherwise, they're kept right however the readings go.
+        return false;
+    }
+
+    private void onChanged(final int records) {
+        unsyncedRecords += records;
+        if (unsyncedRecords >= SYNC_RECORDS || System.nanoTime() - syncedAtNanos >= SYNC_NANOS) {
+            sync();
+        }
+    }
+
+    /**
+     * Writes everything appended so far to the storage device, not only to the page cache.
+     */
+    public void sync() {
+        segments.peekLast().buffer.force();
+        cursor.force();
+        unsyncedRecords = 0;
+        syncedAtNanos = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+        sync();
+    }
+
+    public long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    /**
+     * @return readings of the characteristic waiting, only up to date on the thread using the outbox.
+     */
+    public int getPendingRecords(final Characteristic characteristic) {
+        return pendingByCharacteristic[characteristic.ordinal()];
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return wall clock time of the oldest reading waiting, 0 if there are none.
+     */
+    public long getOldestPendingMillis() {
+        return oldestPendingMillis;
+    }
+
+    public long getForwardedRecords() {
+        return forwardedRecords;
+    }
+
+    /**
+     * @return readings dropped unforwarded to stay within the allowed space.
+     */
+    public long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    public long getMaxBytes() {
+        return (long) maxSegments * segmentBytes;
+    }
+
+    private Segment addSegment(final long index) throws IOException {
+        if (segments.size() >= maxSegments) {
+            dropOldestSegment();
+        }
+
+        final File file = getSegmentFile(index);
+        final Segment segment = new Segment(index, file, map(file, segmentBytes));
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private void dropOldestSegment() {
+        final Segment oldest = segments.removeFirst();
+        int unforwarded = 0;
+        for (int offset = readOffset; offset < oldest.end; ) {
+            final int length = read(oldest.buffer, offset);
+            if (!isSuperseded(oldest, offset)) {
+                pendingByCharacteristic[record[0] & 0xff]--;
+                unforwarded++;
+            }
+            offset += LENGTH_BYTES + HEADER_BYTES + length + CRC_BYTES;
+        }
+        droppedRecords += unforwarded;
+        pendingRecords -= unforwarded;
+        pendingBytes -= oldest.end - readOffset;
+        delete(oldest.file);
+
+        readOffset = 0;
+        if (!segments.isEmpty()) {
+            saveCursor();
+            updateOldestPending();
+        }
+    }
+
+    /**
+     * @return offset of the record after the one at the offset, or -1 if there's no valid record there.
+     */
+    private int next(final Segment segment, final int offset) {
+        if (offset + LENGTH_BYTES > segmentBytes) {
+            return -1;
+        }
+
+        final int length = segment.buffer.getShort(offset) & ~SUPERSEDED & 0xffff;
+        final int size = LENGTH_BYTES + HEADER_BYTES + length + CRC_BYTES;
+        if (length == 0 || length > MAX_VALUES * VALUE_BYTES || length % VALUE_BYTES != 0 || offset + size > segmentBytes) {
+            return -1;
+        }
+
+        read(segment.buffer, offset);
+        crc.reset();
+        crc.update(record, 0, HEADER_BYTES + length);
+        final int expected = segment.buffer.getInt(offset + LENGTH_BYTES + HEADER_BYTES + length);
+        final boolean valid = (int) crc.getValue() == expected && (record[0] & 0xff) < CHARACTERISTICS.length;
+        return valid ? offset + size : -1;
+    }
+
+    /**
+     * Copies the record at the offset, without its length, into {@link #record}.
+     *
+     * @return length of the value.
+     */
+    private int read(final MappedByteBuffer buffer, final int offset) {
+        final int length = buffer.getShort(offset) & ~SUPERSEDED & 0xffff;
+        buffer.position(offset + LENGTH_BYTES);
+        buffer.get(record, 0, HEADER_BYTES + length);
+        return length;
+    }
+
+    private long getTimestamp() {
+        return recordBuffer.getLong(1);
+    }
+
+    private boolean isSuperseded(final Segment segment, final int offset) {
+        return (segment.buffer.getShort(offset) & SUPERSEDED) != 0;
+    }
+
+    private void updateOldestPending() {
+        if (pendingRecords > 0) {
+            int offset = readOffset;
+            for (Segment segment : segments) {
+                while (offset < segment.end) {
+                    final int length = read(segment.buffer, offset);
+                    if (!isSuperseded(segment, offset)) {
+                        oldestPendingMillis = getTimestamp();
+                        return;
+                    }
+                    offset += LENGTH_BYTES + HEADER_BYTES + length + CRC_BYTES;
+                }
+                offset = 0;
+            }
+        }
+        oldestPendingMillis = 0;
+    }
+
+    private void saveCursor() {
+        cursor.putLong(0, segments.peekFirst().index);
+        cursor.putInt(8, readOffset);
+    }
+
+    private File getSegmentFile(final long index) {
+        return new File(directory, String.format("%016x%s", index, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(final File file, final int size) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() != size) {
+                randomAccessFile.setLength(size);
+            }
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void delete(final File file) {
+        // One left behind is deleted on the next open, it's before the cursor by then.
+        file.delete();
+    }
+
+    private static final Sink NO_SINK = new Sink() {
+        @Override
+        public void onReading(final Characteristic characteristic, final long timestampMillis, final int[] values,
+                              final int count) {
+        }
+    };
+
+    public interface Sink {
+
+        /**
+         * @param values holds count values, reused for the next reading.
+         */
+        void onReading(Characteristic characteristic, long timestampMillis, int[] values, int count);
+    }
+
+    private static class Segment {
+
+        private final long index;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int end;
+
+        Segment(final long index, final File file, final MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Codec;
+import com.wolkabout.hexiwear.model.Sample;
+
+/**
+ * Decodes the payloads of the reading characteristics straight into a {@link Sample}, as described by {@link Codecs}.
+ * Nothing is allocated, so it's safe to call for every sample.
+ */
+public final class SampleDecoder {
+
+    private SampleDecoder() {
+        // Not meant to be instantiated.
+    }
+
+    /**
+     * @return false if the characteristic isn't a reading or the payload is too short, the sample is left as it was.
+     */
+    public static boolean decode(final Characteristic characteristic, final byte[] data, final long timestampNanos,
+                                 final Sample sample) {
+        final Codec codec = Codecs.get(characteristic);
+        if (codec == null || data == null || data.length < codec.getLength()) {
+            return false;
+        }
+
+        final int axes = codec.getAxes();
+        sample.set(characteristic, timestampNanos, axes);
+        for (int axis = 0; axis < axes; axis++) {
+            sample.setValue(axis, codec.toValue(codec.readRaw(data, axis)));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Codec;
+import com.wolkabout.hexiwear.model.Sample;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Turns decoded samples into the text shown on screen and sent to the cloud, without going through
+ * {@link String#format}. Values are formatted from fixed point integers, with halves rounded up like
+ * "%.2f" and "%.0f" do.
+ * <p>
+ * Keeps a scratch buffer, use one instance per thread.
+ */
+public class SampleFormatter {
+
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+    private final StringBuilder builder = new StringBuilder(64);
+    private final char decimalSeparator;
+    private final char zeroDigit;
+
+    /**
+     * Displayed values follow the default locale, published ones are always in English.
+     */
+    public SampleFormatter() {
+        this(Locale.getDefault());
+    }
+
+    public SampleFormatter(final Locale displayLocale) {
+        final DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(displayLocale);
+        decimalSeparator = symbols.getDecimalSeparator();
+        zeroDigit = symbols.getZeroDigit();
+    }
+
+    /**
+     * @return values with the unit, separated by ';' for the motion sensors, e.g. "23.50 %" for humidity.
+     */
+    public String formatForDisplay(final Sample sample) {
+        builder.setLength(0);
+        appendForDisplay(sample, builder);
+        return builder.toString();
+    }
+
+    public void appendForDisplay(final Sample sample, final StringBuilder out) {
+        for (int i = 0; i < sample.size(); i++) {
+            if (i > 0) {
+                out.append(';');
+            }
+            appendForDisplay(sample, i, out);
+        }
+    }
+
+    /**
+     * @return one value of the sample with its unit, e.g. the X axis of the acceleration.
+     */
+    public String formatForDisplay(final Sample sample, final int index) {
+        builder.setLength(0);
+        appendForDisplay(sample, index, builder);
+        return builder.toString();
+    }
+
+    public void appendForDisplay(final Sample sample, final int index, final StringBuilder out) {
+        final Codec codec = Codecs.get(sample.getCharacteristicOrdinal());
+        final int decimals = Math.min(codec.getDecimals(), POWERS_OF_TEN.length - 1);
+        final long scaled = Math.round((double) sample.get(index) * POWERS_OF_TEN[decimals]);
+        if (scaled < 0) {
+            out.append('-');
+        }
+        final long magnitude = Math.abs(scaled);
+        appendDigits(out, magnitude / POWERS_OF_TEN[decimals], zeroDigit);
+        if (decimals > 0) {
+            out.append(decimalSeparator);
+            for (int i = decimals - 1; i >= 0; i--) {
+                out.append((char) (zeroDigit + magnitude / POWERS_OF_TEN[i] % 10));
+            }
+        }
+        out.append(' ').append(codec.getUnit());
+    }
+
+    /**
+     * @return the value in the units and resolution the WolkSense platform expects, e.g. "235" for 23.50 %.
+     */
+    public String formatForPublishing(final Sample sample) {
+        builder.setLength(0);
+        appendForPublishing(sample, builder);
+        return builder.toString();
+    }
+
+    /**
+     * Axes of multi axis readings are concatenated, each with its sign.
+     */
+    public void appendForPublishing(final Sample sample, final StringBuilder out) {
+        final Codec codec = Codecs.get(sample.getCharacteristicOrdinal());
+        final boolean explicitSign = sample.size() > 1;
+        for (int i = 0; i < sample.size(); i++) {
+            final int raw = codec.toRaw(sample.get(i));
+            if (raw < 0) {
+                out.append('-');
+            } else if (explicitSign) {
+                out.append('+');
+            }
+            appendDigits(out, codec.toPublished(Math.abs(raw)), '0');
+        }
+    }
+
+    private static void appendDigits(final StringBuilder out, final long value, final char zeroDigit) {
+        if (value >= 10) {
+            appendDigits(out, value / 10, zeroDigit);
+        }
+        out.append((char) (zeroDigit + value % 10));
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the interval between samples of each characteristic and how much it jitters, from the time the
+ * samples arrived.
+ * <p>
+ * The interval is an exponentially weighted mean with a gain of 1/8. The jitter is the mean deviation from it
+ * with a gain of 1/16, the way RFC 3550 smooths packet interarrival jitter. The first sample after a reset only
+ * marks the start.
+ */
+public class SampleIntervalEstimator {
+
+    private static final float INTERVAL_GAIN = 1 / 8f;
+    private static final float JITTER_GAIN = 1 / 16f;
+    private static final Characteristic[] CHARACTERISTICS = Characteristic.values();
+
+    private final long[] lastTimestamps = new long[CHARACTERISTICS.length];
+    private final long[] intervalCounts = new long[CHARACTERISTICS.length];
+    private final float[] intervalsNanos = new float[CHARACTERISTICS.length];
+    private final float[] jittersNanos = new float[CHARACTERISTICS.length];
+    private final long[] maxIntervalsNanos = new long[CHARACTERISTICS.length];
+
+    public synchronized void onSample(final Characteristic characteristic, final long timestampNanos) {
+        final int index = characteristic.ordinal();
+        final long last = lastTimestamps[index];
+        lastTimestamps[index] = timestampNanos;
+        if (last == 0 || timestampNanos <= last) {
+            return;
+        }
+
+        final long interval = timestampNanos - last;
+        if (intervalCounts[index] == 0) {
+            intervalsNanos[index] = interval;
+        } else {
+            final float deviation = Math.abs(interval - intervalsNanos[index]);
+            jittersNanos[index] += (deviation - jittersNanos[index]) * JITTER_GAIN;
+            intervalsNanos[index] += (interval - intervalsNanos[index]) * INTERVAL_GAIN;
+        }
+        maxIntervalsNanos[index] = Math.max(maxIntervalsNanos[index], interval);
+        intervalCounts[index]++;
+    }
+
+    /**
+     * @return smoothed time between samples in milliseconds, 0 until two samples were seen.
+     */
+    public synchronized float getIntervalMillis(final Characteristic characteristic) {
+        return intervalsNanos[characteristic.ordinal()] / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized float getJitterMillis(final Characteristic characteristic) {
+        return jittersNanos[characteristic.ordinal()] / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized float getMaxIntervalMillis(final Characteristic characteristic) {
+        return maxIntervalsNanos[characteristic.ordinal()] / (float) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return samples per second the smoothed interval amounts to, 0 until two samples were seen.
+     */
+    public synchronized float getSamplesPerSecond(final Characteristic characteristic) {
+        final float interval = intervalsNanos[characteristic.ordinal()];
+        return interval == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / interval;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < CHARACTERISTICS.length; i++) {
+            lastTimestamps[i] = 0;
+            intervalCounts[i] = 0;
+            intervalsNanos[i] = 0;
+            jittersNanos[i] = 0;
+            maxIntervalsNanos[i] = 0;
+        }
+    }
+
+    /**
+     * Appends one line per characteristic with at least one interval measured.
+     */
+    public synchronized void appendTo(final StringBuilder report) {
+        for (Characteristic characteristic : CHARACTERISTICS) {
+            final int index = characteristic.ordinal();
+            if (intervalCounts[index] == 0) {
+                continue;
+            }
+
+            report.append(String.format(Locale.ENGLISH, "%s: every %.1f ms, jitter %.1f ms, longest gap %.1f ms over %d intervals%n",
+                    characteristic, getIntervalMillis(characteristic), getJitterMillis(characteristic),
+                    getMaxIntervalMillis(characteristic), intervalCounts[index]));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+
+/**
+ * Counts received samples per characteristic and reports the effective rate over a fixed window.
+ */
+public class SampleRateMeter {
+
+    private static final long WINDOW_MILLIS = 5000;
+
+    private final int[] counts = new int[Characteristic.values().length];
+    private final long[] windowStarts = new long[counts.length];
+    private final float[] rates = new float[counts.length];
+
+    /**
+     * @return true if the window for this characteristic has just been closed and a new rate is available.
+     */
+    public synchronized boolean onSample(final Characteristic characteristic, final long timestampMillis) {
+        final int index = characteristic.ordinal();
+        if (windowStarts[index] == 0) {
+            windowStarts[index] = timestampMillis;
+            return false;
+        }
+
+        counts[index]++;
+        final long elapsed = timestampMillis - windowStarts[index];
+        if (elapsed < WINDOW_MILLIS) {
+            return false;
+        }
+
+        rates[index] = counts[index] * 1000f / elapsed;
+        counts[index] = 0;
+        windowStarts[index] = timestampMillis;
+        return true;
+    }
+
+    public synchronized float getSamplesPerSecond(final Characteristic characteristic) {
+        return rates[characteristic.ordinal()];
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+            windowStarts[i] = 0;
+            rates[i] = 0;
+        }
+    }
+
+}
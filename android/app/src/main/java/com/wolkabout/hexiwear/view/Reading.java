@@ -25,9 +25,12 @@ import android.content.res.TypedArray;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.TextView;
 
 import com.wolkabout.hexiwear.R;
 import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Sample;
+import com.wolkabout.hexiwear.util.SampleFormatter;
 
 import org.androidannotations.annotations.AfterViews;
 import org.androidannotations.annotations.EViewGroup;
@@ -39,13 +42,26 @@ public class Reading extends LinearLayout {
     @ViewById
     ImageView image;
 
+    // Only in layouts whose readings share an image with another.
+    @ViewById
+    TextView label;
+
+    private final SampleFormatter formatter = new SampleFormatter();
+    private final StringBuilder text = new StringBuilder(32);
+
     private Characteristic characteristic;
     private int drawable;
+    private String labelText;
+    private TextView[] valueViews = new TextView[0];
+    // Text each value view displays, the views show these buffers directly.
+    private char[][] shownTexts;
+    private int[] shownLengths;
 
     public Reading(final Context context, final AttributeSet attrs) {
         super(context, attrs);
         final TypedArray typedArray = context.obtainStyledAttributes(attrs, R.styleable.Reading);
         drawable = typedArray.getResourceId(R.styleable.Reading_image, 0);
+        labelText = typedArray.getString(R.styleable.Reading_label);
         final int readingTypeOrdinal = typedArray.getInt(R.styleable.Reading_readingType, 0);
         characteristic = Characteristic.byOrdinal(readingTypeOrdinal);
         typedArray.recycle();
@@ -54,9 +70,59 @@ public class Reading extends LinearLayout {
     @AfterViews
     void init() {
         image.setImageResource(drawable);
+        if (label != null && labelText != null) {
+            label.setText(labelText);
+            label.setVisibility(VISIBLE);
+        }
     }
 
     public Characteristic getReadingType() {
         return characteristic;
     }
+
+    /**
+     * @param views one text view per value of the reading, in the order of the sample's values.
+     */
+    protected void setValueViews(final TextView... views) {
+        valueViews = views;
+        shownTexts = new char[views.length][16];
+        shownLengths = new int[views.length];
+    }
+
+    /**
+     * Shows the values of the sample. Views whose text didn't change aren't touched.
+     */
+    public void setSample(final Sample sample) {
+        final int count = Math.min(sample.size(), valueViews.length);
+        for (int i = 0; i < count; i++) {
+            text.setLength(0);
+            formatter.appendForDisplay(sample, i, text);
+            setText(i, text);
+        }
+    }
+
+    private void setText(final int index, final StringBuilder newText) {
+        final int length = newText.length();
+        char[] shownText = shownTexts[index];
+        if (length == shownLengths[index] && isShown(shownText, newText)) {
+            return;
+        }
+
+        if (shownText.length < length) {
+            shownText = new char[length * 2];
+            shownTexts[index] = shownText;
+        }
+        newText.getChars(0, length, shownText, 0);
+        shownLengths[index] = length;
+        valueViews[index].setText(shownText, 0, length);
+    }
+
+    private static boolean isShown(final char[] shownText, final StringBuilder newText) {
+        for (int i = 0; i < newText.length(); i++) {
+            if (shownText[i] != newText.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -26,6 +26,7 @@ import android.widget.TextView;
 
 import com.wolkabout.hexiwear.R;
 
+import org.androidannotations.annotations.AfterViews;
 import org.androidannotations.annotations.EViewGroup;
 import org.androidannotations.annotations.ViewById;
 
@@ -39,8 +40,9 @@ public class SingleReading extends Reading {
         super(context, attrs);
     }
 
-    public void setValue(String value) {
-        text.setText(value);
+    @AfterViews
+    void initValueViews() {
+        setValueViews(text);
     }
 
 }
@@ -26,6 +26,7 @@ import android.widget.TextView;
 
 import com.wolkabout.hexiwear.R;
 
+import org.androidannotations.annotations.AfterViews;
 import org.androidannotations.annotations.EViewGroup;
 import org.androidannotations.annotations.ViewById;
 
@@ -45,15 +46,8 @@ public class TripleReading extends Reading {
         super(context, attrs);
     }
 
-    public void setFirstValue(String value) {
-        firstValue.setText(value);
-    }
-
-    public void setSecondValue(String value) {
-        secondValue.setText(value);
-    }
-
-    public void setThirdValue(String value) {
-        thirdValue.setText(value);
+    @AfterViews
+    void initValueViews() {
+        setValueViews(firstValue, secondValue, thirdValue);
     }
 }
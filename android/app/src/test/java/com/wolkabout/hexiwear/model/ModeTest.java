@@ -0,0 +1,54 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ModeTest {
+
+    @Test
+    public void showsOrientationWhereMotionIsRead() {
+        assertTrue(Mode.SENSOR_TAG.hasReading(Characteristic.ORIENTATION));
+        assertFalse(Mode.SENSOR_TAG.hasCharacteristic(Characteristic.ORIENTATION));
+        assertFalse(Mode.SENSOR_TAG.getCharacteristics().contains(Characteristic.ORIENTATION));
+    }
+
+    @Test
+    public void hidesOrientationWithoutMotionReadings() {
+        for (Mode mode : Mode.values()) {
+            if (mode != Mode.SENSOR_TAG) {
+                assertFalse(mode.toString(), mode.hasReading(Characteristic.ORIENTATION));
+            }
+        }
+    }
+
+    @Test
+    public void showsEveryCharacteristicTheDeviceExposes() {
+        for (Mode mode : Mode.values()) {
+            for (Characteristic characteristic : mode.getCharacteristics()) {
+                assertTrue(mode + " " + characteristic, mode.hasReading(characteristic));
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Mode;
+import com.wolkabout.hexiwear.simulator.SimulatedHexiwear;
+import com.wolkabout.hexiwear.util.SampleIntervalEstimator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link HexiwearConnection} against {@link SimulatedHexiwear}. Each scenario waits for the callbacks it expects
+ * rather than for a fixed time, the timeout only bounds a scenario that went wrong.
+ * Set -Dsimulator.verbose=true to see the protocol log.
+ */
+public class HexiwearConnectionTest {
+
+    private static final boolean VERBOSE = Boolean.getBoolean("simulator.verbose");
+    private static final long TIMEOUT_MILLIS = 20000;
+    private static final int SAMPLES = 4;
+    private static final int RECONNECTS = 3;
+    private static final long SEED = 1;
+
+    private final List<SimulatedHexiwear> devices = new ArrayList<>();
+    private final List<HexiwearConnection> connections = new ArrayList<>();
+
+    @After
+    public void shutdown() {
+        for (HexiwearConnection connection : connections) {
+            connection.close();
+        }
+        for (SimulatedHexiwear device : devices) {
+            device.shutdown();
+        }
+    }
+
+    @Test
+    public void pollsEveryReadingAtItsRate() throws InterruptedException {
+        final SimulatedHexiwear device = device().setLatency(0, 5);
+        final TestHost host = start(device, false);
+        host.awaitSamples(SAMPLES);
+
+        for (Characteristic characteristic : getPolledReadings()) {
+            final float rate = Mode.SENSOR_TAG.getPollingRate(characteristic);
+            final float samplesPerSecond = host.intervals.getSamplesPerSecond(characteristic);
+            assertTrue(characteristic + " read at " + samplesPerSecond + "/s instead of " + rate + "/s",
+                    samplesPerSecond >= rate / 2);
+            assertTrue(characteristic + " never read", device.getReadCount(characteristic) >= SAMPLES);
+            assertEquals(characteristic + " notified", 0, device.getNotificationCount(characteristic));
+        }
+    }
+
+    @Test
+    public void keepsPollingThroughLatencyAndLoss() throws InterruptedException {
+        final SimulatedHexiwear device = device().setLatency(20, 10).setLossRate(0.01f);
+        final TestHost host = start(device, false);
+        host.awaitSamples(SAMPLES);
+
+        for (Characteristic characteristic : getPolledReadings()) {
+            assertTrue(characteristic + " never read", device.getReadCount(characteristic) >= SAMPLES);
+        }
+    }
+
+    @Test
+    public void streamsMotionReadings() throws InterruptedException {
+        final SimulatedHexiwear device = device().setLatency(0, 5);
+        final TestHost host = start(device, true);
+        host.awaitSamples(SAMPLES);
+
+        for (Characteristic characteristic : getPolledReadings()) {
+            assertTrue(characteristic + " isn't streamed", host.connection.isStreaming(characteristic));
+            assertTrue(characteristic + " notified " + device.getNotificationCount(characteristic) + " times",
+                    device.getNotificationCount(characteristic) >= SAMPLES);
+            assertEquals(characteristic + " was polled", 0, device.getReadCount(characteristic));
+        }
+        // The simulator can't notify the battery level, it's still polled.
+        assertTrue("battery isn't polled", !host.connection.isStreaming(Characteristic.BATTERY));
+    }
+
+    @Test
+    public void reusesRetainedServicesAfterLinkDrops() throws InterruptedException {
+        final SimulatedHexiwear retainingDevice = device().setRetainServices(true);
+        final TestHost retained = reconnect(retainingDevice, RECONNECTS);
+        final SimulatedHexiwear forgettingDevice = device().setRetainServices(false);
+        final TestHost discovered = reconnect(forgettingDevice, RECONNECTS);
+
+        assertEquals(1, retainingDevice.getDiscoveryCount());
+        assertEquals(1 + RECONNECTS, forgettingDevice.getDiscoveryCount());
+        assertTrue("retained services took " + retained.getMeanReconnectMillis() + " ms to resume, discovering them "
+                        + discovered.getMeanReconnectMillis() + " ms",
+                retained.getMeanReconnectMillis() < discovered.getMeanReconnectMillis());
+    }
+
+    @Test
+    public void discoversServicesAgainAfterFirmwareChange() throws InterruptedException {
+        final SimulatedHexiwear device = device().setRetainServices(true);
+        final TestHost host = start(device, false);
+        host.awaitFirmwareRevision("1.0.0");
+        assertEquals(1, device.getDiscoveryCount());
+
+        device.setFirmwareRevision("1.0.1");
+        device.disconnect();
+        host.awaitReconnects(1);
+        host.awaitFirmwareRevision("1.0.1");
+
+        assertEquals(2, device.getDiscoveryCount());
+    }
+
+    private SimulatedHexiwear device() {
+        final SimulatedHexiwear device = new SimulatedHexiwear(SEED);
+        devices.add(device);
+        return device;
+    }
+
+    private TestHost start(final SimulatedHexiwear device, final boolean stream) {
+        final TestHost host = new TestHost(stream);
+        host.connection = new HexiwearConnection(device, host, new GattOperationScheduler());
+        connections.add(host.connection);
+        host.connection.connect();
+        return host;
+    }
+
+    /**
+     * Drops the link each time samples flow again, until the device was reconnected the given number of times.
+     */
+    private TestHost reconnect(final SimulatedHexiwear device, final int reconnects) throws InterruptedException {
+        final TestHost host = start(device, false);
+        host.awaitSamples(1);
+        // Services are only reused once the firmware revision they were discovered with is known.
+        host.awaitFirmwareRevision("1.0.0");
+        for (int i = 1; i <= reconnects; i++) {
+            device.disconnect();
+            host.awaitReconnects(i);
+        }
+        host.connection.close();
+        return host;
+    }
+
+    /**
+     * @return readings of the sensor tag polled at least once a second, all of which the simulator can notify.
+     */
+    private static List<Characteristic> getPolledReadings() {
+        final List<Characteristic> readings = new ArrayList<>();
+        for (Characteristic characteristic : Mode.SENSOR_TAG.getCharacteristics()) {
+            if (characteristic != Characteristic.BATTERY && Mode.SENSOR_TAG.getPollingRate(characteristic) >= 1) {
+                readings.add(characteristic);
+            }
+        }
+        return readings;
+    }
+
+    private interface Expectation {
+
+        boolean isMet();
+    }
+
+    /**
+     * Callbacks come from the simulator's thread, each one wakes whoever waits for an {@link Expectation}.
+     */
+    private static class TestHost implements HexiwearConnection.Host {
+
+        private final long[] samples = new long[Characteristic.values().length];
+        private final List<Long> reconnectMillis = new ArrayList<>();
+        private final SampleIntervalEstimator intervals = new SampleIntervalEstimator();
+        private final boolean stream;
+
+        private volatile HexiwearConnection connection;
+        private long disconnectedAt;
+
+        TestHost(final boolean stream) {
+            this.stream = stream;
+        }
+
+        synchronized void await(final String what, final Expectation expectation) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+            while (!expectation.isMet()) {
+                final long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    fail("Timed out waiting for " + what);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        }
+
+        void awaitSamples(final int count) throws InterruptedException {
+            await(count + " samples of every reading", new Expectation() {
+                @Override
+                public boolean isMet() {
+                    for (Characteristic characteristic : getPolledReadings()) {
+                        if (samples[characteristic.ordinal()] < count) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+
+        void awaitReconnects(final int count) throws InterruptedException {
+            await(count + " reconnects", new Expectation() {
+                @Override
+                public boolean isMet() {
+                    return reconnectMillis.size() >= count;
+                }
+            });
+        }
+
+        /**
+         * The revision is read after the services are available, samples may come first.
+         */
+        void awaitFirmwareRevision(final String revision) throws InterruptedException {
+            await("firmware revision " + revision, new Expectation() {
+                @Override
+                public boolean isMet() {
+                    return revision.equals(connection.getFirmwareRevision());
+                }
+            });
+        }
+
+        synchronized long getMeanReconnectMillis() {
+            long total = 0;
+            for (long millis : reconnectMillis) {
+                total += millis;
+            }
+            return reconnectMillis.isEmpty() ? 0 : total / reconnectMillis.size();
+        }
+
+        @Override
+        public List<Characteristic> getEnabledReadings() {
+            return Characteristic.getReadings();
+        }
+
+        @Override
+        public float getPollingRate(final Mode mode, final Characteristic characteristic) {
+            return mode.getPollingRate(characteristic);
+        }
+
+        @Override
+        public boolean shouldStream() {
+            return stream;
+        }
+
+        @Override
+        public synchronized void onConnectionStateChanged(final boolean connected) {
+            if (!connected) {
+                disconnectedAt = System.nanoTime();
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void onServicesAvailable() {
+        }
+
+        @Override
+        public void onAlertInDiscovered() {
+        }
+
+        @Override
+        public void onModeChanged(final Mode mode) {
+        }
+
+        @Override
+        public void onReadingsUpdated() {
+        }
+
+        @Override
+        public void onSample(final Characteristic characteristic, final byte[] value, final long timestampNanos) {
+            intervals.onSample(characteristic, timestampNanos);
+            connection.onSampleHandled(characteristic, value);
+            synchronized (this) {
+                samples[characteristic.ordinal()]++;
+                if (disconnectedAt != 0) {
+                    reconnectMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - disconnectedAt));
+                    disconnectedAt = 0;
+                }
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onTimeWriteQueued() {
+        }
+
+        @Override
+        public void onTimeWritten() {
+        }
+
+        @Override
+        public void onAuthenticationRequired() {
+        }
+
+        @Override
+        public void log(final String message) {
+            if (VERBOSE) {
+                System.out.println(message);
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Sample;
+import com.wolkabout.hexiwear.simulator.LocalMqttBroker;
+import com.wolkabout.hexiwear.util.BinaryBatchReader;
+import com.wolkabout.hexiwear.util.BinaryBatchWriter;
+import com.wolkabout.hexiwear.util.ReadingAggregator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes binary batches through {@link MqttPublisher} to a {@link LocalMqttBroker} and reads them back as the
+ * broker receives them.
+ */
+public class MqttPublisherTest {
+
+    private static final String TOPIC = "readings/TEST/binary";
+    private static final int BATCH_BYTES = 16 * 1024;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final List<Long> received = new ArrayList<>();
+    private final Map<String, List<Long>> receivedByTopic = new HashMap<>();
+    private LocalMqttBroker broker;
+    private MqttPublisher publisher;
+
+    @Before
+    public void setUp() throws IOException {
+        final BinaryBatchReader reader = new BinaryBatchReader();
+        broker = new LocalMqttBroker(new LocalMqttBroker.Listener() {
+            @Override
+            public void onPublish(final String clientId, final String topic, final byte[] payload, final long receivedAtNanos) {
+                synchronized (received) {
+                    if (!receivedByTopic.containsKey(topic)) {
+                        receivedByTopic.put(topic, new ArrayList<Long>());
+                    }
+                    final List<Long> topicReceived = receivedByTopic.get(topic);
+                    reader.read(payload, 0, payload.length, new BinaryBatchReader.Listener() {
+                        @Override
+                        public void onSample(final Sample sample, final long timestampMillis) {
+                            received.add(timestampMillis);
+                            topicReceived.add(timestampMillis);
+                        }
+
+                        @Override
+                        public void onSummary(final ReadingAggregator.Summary summary, final long timestampMillis) {
+                            received.add(timestampMillis);
+                            topicReceived.add(timestampMillis);
+                        }
+                    });
+                }
+            }
+        });
+        publisher = new MqttPublisher(broker.getServerUri(), "TEST-batch", "TEST", "test",
+                MqttPublisher.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    @After
+    public void tearDown() {
+        publisher.close();
+        broker.close();
+    }
+
+    @Test
+    public void deliversBatchesInOrder() throws InterruptedException {
+        publishBatches(0, 50, 20);
+        awaitAcknowledged(50);
+
+        assertReceived(0, 50 * 20);
+        assertEquals(1, broker.getConnectionCount());
+        assertEquals(0, publisher.getDroppedMessages());
+    }
+
+    @Test
+    public void waitsForSlowAcknowledgements() throws InterruptedException {
+        broker.setAckDelayMillis(20);
+        publishBatches(0, 20, 10);
+        assertTrue(publisher.isPending(TOPIC));
+        awaitAcknowledged(20);
+
+        assertFalse(publisher.isPending(TOPIC));
+        assertReceived(0, 20 * 10);
+    }
+
+    @Test
+    public void resendsAfterBrokerDropsConnection() throws InterruptedException {
+        publishBatches(0, 10, 10);
+        awaitAcknowledged(10);
+        broker.disconnectClients();
+        publishBatches(100, 10, 10);
+        awaitAcknowledged(20);
+
+        assertTrue(broker.getConnectionCount() >= 2);
+        // QoS 1 may deliver a batch twice around the reconnect, but never skips one.
+        final List<Long> expected = new ArrayList<>();
+        for (long timestamp = 0; timestamp < 200; timestamp++) {
+            expected.add(timestamp);
+        }
+        synchronized (received) {
+            assertTrue(received.containsAll(expected));
+        }
+    }
+
+    @Test
+    public void carriesSeveralDevicesOverOneConnection() throws InterruptedException {
+        final int devices = 8;
+        final int batches = 20;
+        // Every device sends a batch per publish interval at the same time as the others, once its last one is through.
+        for (int batch = 0; batch < batches; batch++) {
+            for (int device = 0; device < devices; device++) {
+                final String topic = "readings/TEST" + device + "/binary";
+                final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                while (publisher.isPending(topic) && System.currentTimeMillis() < deadline) {
+                    TimeUnit.MILLISECONDS.sleep(1);
+                }
+                publishBatches(topic, batch * 10, 1, 10);
+            }
+        }
+        awaitAcknowledged(devices * batches);
+
+        assertEquals(1, broker.getConnectionCount());
+        assertTrue(publisher.getGroupCount() < devices * batches);
+        synchronized (received) {
+            assertEquals(devices, receivedByTopic.size());
+            for (int device = 0; device < devices; device++) {
+                final List<Long> topicReceived = receivedByTopic.get("readings/TEST" + device + "/binary");
+                assertEquals(batches * 10, topicReceived.size());
+                for (int i = 0; i < topicReceived.size(); i++) {
+                    assertEquals(i, (long) topicReceived.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tellsWhetherMessagesArrived() throws InterruptedException {
+        final CountingListener listener = new CountingListener();
+        final BinaryBatchWriter writer = new BinaryBatchWriter(BATCH_BYTES);
+        final Sample sample = new Sample();
+        sample.set(Characteristic.TEMPERATURE, 0, 1);
+        sample.setValue(0, 21.5f);
+        assertTrue(writer.add(sample, 0));
+        final byte[] payload = new byte[writer.getLength()];
+        System.arraycopy(writer.getBuffer(), 0, payload, 0, payload.length);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(publisher.publish(TOPIC, payload, 0, payload.length, listener));
+        }
+        awaitAcknowledged(10);
+        assertEquals(10, listener.delivered.get());
+
+        // Nothing gets through once the broker is gone, closing the publisher drops what's waiting.
+        broker.close();
+        final MqttPublisher unreachable = new MqttPublisher(broker.getServerUri(), "TEST-gone", "TEST", "test",
+                MqttPublisher.DEFAULT_QUEUE_CAPACITY);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(unreachable.publish(TOPIC, payload, 0, payload.length, listener));
+        }
+        unreachable.close();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (listener.dropped.get() < 5 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertEquals(5, listener.dropped.get());
+        assertEquals(10, listener.delivered.get());
+        assertFalse(unreachable.publish(TOPIC, payload, 0, payload.length, listener));
+        assertEquals(5, listener.dropped.get());
+    }
+
+    @Test
+    public void sendsWhatsQueuedBeforeClosing() throws InterruptedException {
+        broker.setAckDelayMillis(20);
+        publishBatches(0, 20, 10);
+        publisher.close(TIMEOUT_MILLIS);
+        assertFalse(publisher.publish(TOPIC, new byte[1], 0, 1));
+        awaitAcknowledged(20);
+
+        assertReceived(0, 20 * 10);
+        assertEquals(1, publisher.getDroppedMessages());
+    }
+
+    /**
+     * Publishes batches of samples stamped with consecutive milliseconds, starting at the given one.
+     */
+    @Test
+    public void getsRetainedMessagesAgainAfterReconnecting() throws InterruptedException {
+        final String topic = "readings/TEST/formats";
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        broker.retain(topic, "TEXT".getBytes());
+        publisher.subscribe(topic, new MqttPublisher.MessageListener() {
+            @Override
+            public void onMessage(final String topic, final byte[] payload) {
+                messages.add(new String(payload));
+            }
+        });
+        assertEquals("TEXT", messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        broker.retain(topic, "TEXT,BINARY:2".getBytes());
+        assertEquals("TEXT,BINARY:2", messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        // Nothing to publish, the subscription alone brings the connection back.
+        broker.disconnectClients();
+        assertEquals("TEXT,BINARY:2", messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(2, broker.getConnectionCount());
+
+        publisher.unsubscribe(topic);
+        broker.retain(topic, "TEXT".getBytes());
+        publishBatches(0, 1, 1);
+        awaitAcknowledged(1);
+        assertEquals(null, messages.poll());
+    }
+
+    private void publishBatches(final long firstMillis, final int batches, final int samplesPerBatch) {
+        publishBatches(TOPIC, firstMillis, batches, samplesPerBatch);
+    }
+
+    private void publishBatches(final String topic, final long firstMillis, final int batches, final int samplesPerBatch) {
+        final BinaryBatchWriter writer = new BinaryBatchWriter(BATCH_BYTES);
+        final Sample sample = new Sample();
+        long timestamp = firstMillis;
+        for (int batch = 0; batch < batches; batch++) {
+            for (int i = 0; i < samplesPerBatch; i++) {
+                sample.set(Characteristic.TEMPERATURE, 0, 1);
+                sample.setValue(0, 21.5f);
+                assertTrue(writer.add(sample, timestamp++));
+            }
+            assertTrue(publisher.publish(topic, writer.getBuffer(), 0, writer.getLength()));
+            writer.clear();
+        }
+    }
+
+    private void awaitAcknowledged(final long messages) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (publisher.getPublishedMessages() < messages && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertEquals(messages, publisher.getPublishedMessages());
+    }
+
+    private static class CountingListener implements MqttPublisher.DeliveryListener {
+
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final AtomicInteger dropped = new AtomicInteger();
+
+        @Override
+        public void onDelivered(final String topic) {
+            delivered.incrementAndGet();
+        }
+
+        @Override
+        public void onDropped(final String topic) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void assertReceived(final long firstMillis, final int samples) {
+        synchronized (received) {
+            assertEquals(samples, received.size());
+            for (int i = 0; i < samples; i++) {
+                assertEquals(firstMillis + i, (long) received.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.hexiwear.model.otap.Image;
+import com.wolkabout.hexiwear.model.otap.ImageHeader;
+import com.wolkabout.hexiwear.simulator.SimulatedHexiwear;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Transfers a firmware image to {@link SimulatedHexiwear} and checks it arrives intact.
+ */
+public class OtapUpdaterTest {
+
+    private static final boolean VERBOSE = Boolean.getBoolean("simulator.verbose");
+    private static final int IMAGE_SIZE = 16 * 1024;
+    private static final long SEED = 1;
+
+    private final SimulatedHexiwear device = new SimulatedHexiwear(SEED).setOtapState(1);
+
+    @After
+    public void shutdown() {
+        device.shutdown();
+    }
+
+    @Test
+    public void transfersImageWithoutChunkDelay() throws InterruptedException {
+        transfer(0);
+    }
+
+    @Test
+    public void transfersImageWithDefaultChunkDelay() throws InterruptedException {
+        transfer(OtapUpdater.DEFAULT_CHUNK_DELAY_MILLIS);
+    }
+
+    private void transfer(final long chunkDelayMillis) throws InterruptedException {
+        final byte[] bytes = createImage();
+        final CRC32 checksum = new CRC32();
+        checksum.update(bytes);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] succeeded = new boolean[1];
+        final OtapUpdater updater = new OtapUpdater(device, new Image("simulated.img", bytes), new OtapUpdater.Listener() {
+            @Override
+            public void onInitiated() {
+            }
+
+            @Override
+            public void onProgress(final int progress) {
+            }
+
+            @Override
+            public void onFinished() {
+                succeeded[0] = true;
+                done.countDown();
+            }
+
+            @Override
+            public void onError() {
+                done.countDown();
+            }
+
+            @Override
+            public void onAuthenticationRequired() {
+                done.countDown();
+            }
+
+            @Override
+            public void log(final String message) {
+                if (VERBOSE) {
+                    System.out.println("OTAP: " + message);
+                }
+            }
+        }, chunkDelayMillis);
+
+        updater.start();
+        final boolean finished = done.await(5, TimeUnit.MINUTES);
+        updater.stop();
+
+        assertTrue("transfer didn't finish", finished);
+        assertTrue("transfer failed", succeeded[0]);
+        assertEquals(checksum.getValue(), device.getReceivedChecksum());
+    }
+
+    /**
+     * @return KW40 image with a valid header and random contents.
+     */
+    private static byte[] createImage() {
+        final byte[] bytes = new byte[IMAGE_SIZE];
+        new Random(SEED).nextBytes(bytes);
+        final byte[] header = new byte[ImageHeader.SIZE];
+        header[6] = ImageHeader.SIZE; // Header length
+        header[12] = 1; // Image ID, KW40
+        for (int i = 0; i < 4; i++) {
+            header[54 + i] = (byte) (bytes.length >> (8 * i)); // Total image file size
+        }
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        return bytes;
+    }
+}
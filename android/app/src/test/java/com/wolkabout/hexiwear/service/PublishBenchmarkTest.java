@@ -0,0 +1,376 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.service;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Codec;
+import com.wolkabout.hexiwear.model.HexiwearDevice;
+import com.wolkabout.hexiwear.model.Mode;
+import com.wolkabout.hexiwear.model.Sample;
+import com.wolkabout.hexiwear.simulator.LocalMqttBroker;
+import com.wolkabout.hexiwear.util.BinaryBatchReader;
+import com.wolkabout.hexiwear.util.BinaryBatchWriter;
+import com.wolkabout.hexiwear.util.Codecs;
+import com.wolkabout.hexiwear.util.ReadingAggregator;
+import com.wolkabout.hexiwear.util.SampleFormatter;
+import com.wolkabout.wolk.Logger;
+import com.wolkabout.wolk.ReadingType;
+import com.wolkabout.wolk.Wolk;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes synthetic sensor tag readings to a {@link LocalMqttBroker}, once through Wolk as text and once as binary
+ * batches through {@link MqttPublisher}, and prints how long readings take to reach the broker, messages per second
+ * and payload bytes. Both have to deliver every reading.
+ * <p>
+ * Binary samples carry their own timestamps, so their latency is exact to the millisecond. Wolk's messages aren't
+ * parsed: a message is taken to carry every reading added before it arrived, which on the loopback interface is
+ * off by well under a millisecond.
+ */
+public class PublishBenchmarkTest {
+
+    private static final int SECONDS = 3;
+    private static final int READINGS_PER_SECOND = 100;
+    private static final int PUBLISH_INTERVAL_SECONDS = 1;
+    private static final int BATCH_BYTES = 16 * 1024;
+    private static final long DELIVERY_TIMEOUT_MILLIS = 10000;
+    private static final String SERIAL = "BENCHMARK";
+    private static final String PASSWORD = "benchmark";
+
+    private LocalMqttBroker broker;
+
+    @After
+    public void tearDown() {
+        if (broker != null) {
+            broker.close();
+        }
+    }
+
+    @Test
+    public void publishesTextThroughWolk() throws IOException, InterruptedException {
+        final ConcurrentLinkedQueue<Long> addedAt = new ConcurrentLinkedQueue<>();
+        final Results results = new Results();
+        broker = new LocalMqttBroker(new LocalMqttBroker.Listener() {
+            @Override
+            public void onPublish(final String clientId, final String topic, final byte[] payload, final long receivedAtNanos) {
+                int readings = 0;
+                Long added;
+                while ((added = addedAt.peek()) != null && added <= receivedAtNanos) {
+                    addedAt.poll();
+                    results.addLatency(receivedAtNanos - added);
+                    readings++;
+                }
+                results.onMessage(payload.length, readings);
+            }
+        });
+
+        final Wolk wolk = new Wolk(new HexiwearDevice("Benchmark", SERIAL, "00:00:00:00:00:00", PASSWORD, "Benchmark"),
+                broker.getServerUri());
+        wolk.setLogger(LOGGER);
+        wolk.startAutoPublishing(PUBLISH_INTERVAL_SECONDS);
+
+        final SampleFormatter formatter = new SampleFormatter();
+        final ReadingType[] readingTypes = new ReadingType[Characteristic.values().length];
+        for (ReadingType readingType : ReadingType.values()) {
+            for (Characteristic characteristic : Characteristic.values()) {
+                if (characteristic.name().equals(readingType.name())) {
+                    readingTypes[characteristic.ordinal()] = readingType;
+                }
+            }
+        }
+        final Feed feed = new Feed() {
+            @Override
+            void onSample(final Sample sample) {
+                final ReadingType readingType = readingTypes[sample.getCharacteristicOrdinal()];
+                if (readingType != null) {
+                    addedAt.add(System.nanoTime());
+                    wolk.addReading(readingType, formatter.formatForPublishing(sample));
+                    count();
+                }
+            }
+        };
+        feed.run();
+        final boolean delivered = results.awaitReadings(feed.getCount(),
+                TimeUnit.SECONDS.toMillis(PUBLISH_INTERVAL_SECONDS) + DELIVERY_TIMEOUT_MILLIS);
+        wolk.stopAutoPublishing();
+
+        results.print("Wolk, text readings", feed.getCount(), broker);
+        assertTrue(results.getReadings() + " of " + feed.getCount() + " readings arrived", delivered);
+    }
+
+    @Test
+    public void publishesBinaryBatches() throws IOException, InterruptedException {
+        final Results results = new Results();
+        final BinaryBatchReader reader = new BinaryBatchReader();
+        broker = new LocalMqttBroker(new LocalMqttBroker.Listener() {
+            @Override
+            public void onPublish(final String clientId, final String topic, final byte[] payload, final long receivedAtNanos) {
+                final long receivedAtMillis = System.currentTimeMillis();
+                final int readings = reader.read(payload, 0, payload.length, new BinaryBatchReader.Listener() {
+                    @Override
+                    public void onSample(final Sample sample, final long timestampMillis) {
+                        results.addLatency(TimeUnit.MILLISECONDS.toNanos(receivedAtMillis - timestampMillis));
+                    }
+
+                    @Override
+                    public void onSummary(final ReadingAggregator.Summary summary, final long timestampMillis) {
+                        results.addLatency(TimeUnit.MILLISECONDS.toNanos(receivedAtMillis - timestampMillis));
+                    }
+                });
+                results.onMessage(payload.length, readings);
+            }
+        });
+
+        final MqttPublisher publisher = new MqttPublisher(broker.getServerUri(), SERIAL + "-batch", SERIAL, PASSWORD,
+                MqttPublisher.DEFAULT_QUEUE_CAPACITY);
+        publisher.setLogger(LOGGER);
+        final BinaryBatchWriter writer = new BinaryBatchWriter(BATCH_BYTES);
+        final String topic = "readings/" + SERIAL + "/binary";
+        final long intervalMillis = TimeUnit.SECONDS.toMillis(PUBLISH_INTERVAL_SECONDS);
+        final Feed feed = new Feed() {
+            private long dueAt;
+
+            @Override
+            void onSample(final Sample sample) {
+                final long now = System.currentTimeMillis();
+                if (writer.isEmpty()) {
+                    dueAt = now + intervalMillis;
+                }
+                if (!writer.add(sample, now)) {
+                    send();
+                    writer.add(sample, now);
+                }
+                count();
+                if (now >= dueAt) {
+                    send();
+                }
+            }
+
+            @Override
+            void onFinished() {
+                if (!writer.isEmpty()) {
+                    send();
+                }
+            }
+
+            private void send() {
+                if (publisher.publish(topic, writer.getBuffer(), 0, writer.getLength(), results)) {
+                    sent++;
+                }
+                writer.clear();
+            }
+        };
+        feed.run();
+        final boolean delivered = results.awaitReadings(feed.getCount(), DELIVERY_TIMEOUT_MILLIS)
+                && results.awaitAcknowledged(feed.sent, DELIVERY_TIMEOUT_MILLIS);
+        publisher.close();
+
+        results.print("Binary batches", feed.getCount(), broker);
+        System.out.println(String.format(Locale.ENGLISH, "  publisher: %d acknowledged, %d dropped, %d failed connects, last ack in %.2f ms",
+                publisher.getPublishedMessages(), publisher.getDroppedMessages(), publisher.getFailedConnects(),
+                publisher.getLastAckMicros() / 1000f));
+        assertTrue(results.getReadings() + " of " + feed.getCount() + " readings arrived", delivered);
+        assertEquals(0, publisher.getDroppedMessages());
+    }
+
+    private static final Logger LOGGER = new Logger() {
+        @Override
+        public void info(final String message) {
+        }
+
+        @Override
+        public void error(final String message, final Throwable e) {
+            System.out.println(message + (e == null ? "" : " " + e));
+        }
+    };
+
+    /**
+     * Sensor tag readings in the proportions of their default polling rates, paced to {@link #READINGS_PER_SECOND}.
+     */
+    private abstract static class Feed {
+
+        private final List<Characteristic> readings = new ArrayList<>();
+        private final float scale;
+        private final Random random = new Random(1);
+        private final Sample sample = new Sample();
+        private long count;
+        // Messages the publisher took.
+        long sent;
+
+        Feed() {
+            float total = 0;
+            for (Characteristic characteristic : Mode.SENSOR_TAG.getCharacteristics()) {
+                // The battery level isn't published.
+                if (characteristic != Characteristic.BATTERY) {
+                    readings.add(characteristic);
+                    total += Mode.SENSOR_TAG.getPollingRate(characteristic);
+                }
+            }
+            this.scale = READINGS_PER_SECOND / total;
+        }
+
+        void run() {
+            final long[] dueAt = new long[readings.size()];
+            final long start = System.nanoTime();
+            final long end = start + TimeUnit.SECONDS.toNanos(SECONDS);
+            long now = start;
+            while (now < end) {
+                long next = end;
+                for (int i = 0; i < readings.size(); i++) {
+                    if (now - start >= dueAt[i]) {
+                        final Characteristic characteristic = readings.get(i);
+                        dueAt[i] += (long) (1e9 / (Mode.SENSOR_TAG.getPollingRate(characteristic) * scale));
+                        onSample(createSample(characteristic));
+                    }
+                    next = Math.min(next, start + dueAt[i]);
+                }
+                LockSupport.parkNanos(next - System.nanoTime());
+                now = System.nanoTime();
+            }
+            onFinished();
+        }
+
+        private Sample createSample(final Characteristic characteristic) {
+            final Codec codec = Codecs.get(characteristic.ordinal());
+            sample.set(characteristic, System.nanoTime(), codec.getAxes());
+            final int limit = Math.min(1000, (1 << (8 * codec.getWidth() - (codec.isSigned() ? 1 : 0))) - 1);
+            for (int i = 0; i < codec.getAxes(); i++) {
+                sample.setValue(i, codec.toValue(codec.isSigned() ? random.nextInt(2 * limit + 1) - limit : random.nextInt(limit + 1)));
+            }
+            return sample;
+        }
+
+        /**
+         * Counts a reading handed to the publisher.
+         */
+        void count() {
+            count++;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        abstract void onSample(Sample sample);
+
+        void onFinished() {
+        }
+    }
+
+    private static class Results implements MqttPublisher.DeliveryListener {
+
+        private final List<Long> latencies = new ArrayList<>();
+        private final long startedAt = System.nanoTime();
+        private long messages;
+        private long bytes;
+        private long readings;
+        private long acknowledged;
+
+        synchronized void addLatency(final long nanos) {
+            latencies.add(nanos);
+        }
+
+        synchronized void onMessage(final int payloadBytes, final int readings) {
+            messages++;
+            bytes += payloadBytes;
+            this.readings += readings;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onDelivered(final String topic) {
+            acknowledged++;
+            notifyAll();
+        }
+
+        @Override
+        public void onDropped(final String topic) {
+        }
+
+        /**
+         * @return false if fewer readings arrived in time.
+         */
+        synchronized boolean awaitReadings(final long count, final long timeoutMillis) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            long left;
+            while (readings < count && (left = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return readings >= count;
+        }
+
+        /**
+         * A message arrives before the broker acknowledges it, the publisher would count it as dropped if closed in
+         * between.
+         */
+        synchronized boolean awaitAcknowledged(final long count, final long timeoutMillis) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            long left;
+            while (acknowledged < count && (left = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return acknowledged >= count;
+        }
+
+        synchronized long getReadings() {
+            return readings;
+        }
+
+        synchronized void print(final String name, final long fed, final LocalMqttBroker broker) {
+            final float seconds = (System.nanoTime() - startedAt) / 1e9f;
+            System.out.println("== " + name + " ==");
+            System.out.println(String.format(Locale.ENGLISH, "  %d readings fed, %d arrived in %d messages (%.2f messages/s) over %d connections",
+                    fed, readings, messages, messages / seconds, broker.getConnectionCount()));
+            if (messages == 0) {
+                return;
+            }
+
+            System.out.println(String.format(Locale.ENGLISH, "  %d payload bytes, %.1f per message, %.2f per reading",
+                    bytes, bytes / (float) messages, readings == 0 ? 0 : bytes / (float) readings));
+            Collections.sort(latencies);
+            System.out.println(String.format(Locale.ENGLISH, "  latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    percentile(0.5f), percentile(0.9f), percentile(0.99f), percentile(1)));
+        }
+
+        private float percentile(final float fraction) {
+            if (latencies.isEmpty()) {
+                return 0;
+            }
+            final int rank = Math.max(1, (int) Math.ceil(latencies.size() * fraction));
+            return latencies.get(rank - 1) / 1e6f;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MQTT 3.1.1 broker on the loopback interface, just enough of one for publishers to run against: every connection
+ * is accepted and each published message is handed to the {@link Listener} as it arrives. Subscriptions are to exact
+ * topics, they get the messages published there with QoS 0 and the retained one when subscribing. Plain TCP only,
+ * point clients at {@link #getServerUri()}.
+ * <p>
+ * Acknowledgements can be held back to play a slow broker.
+ */
+public class LocalMqttBroker implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CONNECT = 0x10;
+    private static final int CONNACK = 0x20;
+    private static final int PUBLISH = 0x30;
+    private static final int PUBACK = 0x40;
+    private static final int PUBREC = 0x50;
+    private static final int PUBREL = 0x60;
+    private static final int PUBCOMP = 0x70;
+    private static final int SUBSCRIBE = 0x80;
+    private static final int SUBACK = 0x90;
+    private static final int UNSUBSCRIBE = 0xa0;
+    private static final int UNSUBACK = 0xb0;
+    private static final int PINGREQ = 0xc0;
+    private static final int PINGRESP = 0xd0;
+    private static final int DISCONNECT = 0xe0;
+
+    private final ServerSocket serverSocket;
+    private final Listener listener;
+    private final List<Socket> clients = new CopyOnWriteArrayList<>();
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final Map<String, byte[]> retained = new ConcurrentHashMap<>();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong payloadBytes = new AtomicLong();
+
+    private volatile long ackDelayMillis;
+    private volatile boolean closed;
+
+    public LocalMqttBroker(final Listener listener) throws IOException {
+        this.listener = listener;
+        serverSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        final Thread acceptor = new Thread(acceptLoop, "Broker");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getServerUri() {
+        return "tcp://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * Holds back every acknowledgement of a published message for the given time.
+     */
+    public void setAckDelayMillis(final long ackDelayMillis) {
+        this.ackDelayMillis = ackDelayMillis;
+    }
+
+    public long getConnectionCount() {
+        return connections.get();
+    }
+
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes.get();
+    }
+
+    /**
+     * Publishes a retained message as the server would, to the clients subscribed now and to those subscribing later.
+     */
+    public void retain(final String topic, final byte[] payload) {
+        retained.put(topic, payload);
+        deliver(topic, payload);
+    }
+
+    private void deliver(final String topic, final byte[] payload) {
+        for (Session session : sessions) {
+            if (session.subscriptions.contains(topic)) {
+                session.deliver(topic, payload, false);
+            }
+        }
+    }
+
+    /**
+     * Drops every connection, clients see the broker go away.
+     */
+    public void disconnectClients() {
+        for (Socket client : clients) {
+            closeQuietly(client);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        disconnectClients();
+    }
+
+    private final Runnable acceptLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    final Socket client = serverSocket.accept();
+                    client.setTcpNoDelay(true);
+                    clients.add(client);
+                    final Thread thread = new Thread(new Session(client), "Broker client " + client.getPort());
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    if (!closed) {
+                        System.out.println("Broker stopped accepting: " + e);
+                    }
+                    return;
+                }
+            }
+        }
+    };
+
+    private class Session implements Runnable {
+
+        private final Socket socket;
+        private final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        private final Set<String> subscriptions = new CopyOnWriteArraySet<>();
+        private InputStream input;
+        private OutputStream output;
+        private String clientId = "";
+
+        Session(final Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                input = socket.getInputStream();
+                output = socket.getOutputStream();
+                sessions.add(this);
+                while (!closed) {
+                    final int header = read();
+                    final byte[] body = readBody();
+                    final long receivedAt = System.nanoTime();
+                    if (!handle(header, body, receivedAt)) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // The client went away.
+            } finally {
+                sessions.remove(this);
+                clients.remove(socket);
+                closeQuietly(socket);
+            }
+        }
+
+        /**
+         * @return false once the client disconnects.
+         */
+        private boolean handle(final int header, final byte[] body, final long receivedAt) throws IOException {
+            switch (header & 0xf0) {
+                case CONNECT:
+                    // Protocol name, level, flags and keep alive come before the client id.
+                    clientId = readString(body, 2 + readShort(body, 0) + 4);
+                    connections.incrementAndGet();
+                    write(CONNACK, 0, 0);
+                    return true;
+                case PUBLISH:
+                    onPublish(header, body, receivedAt);
+                    return true;
+                case PUBREL:
+                    write(PUBCOMP, body[0] & 0xff, body[1] & 0xff);
+                    return true;
+                case SUBSCRIBE:
+                    // Granted QoS 0 for each topic filter.
+                    packet.reset();
+                    packet.write(body, 0, 2);
+                    final List<String> topics = new ArrayList<>();
+                    for (int position = 2; position < body.length; position += 2 + readShort(body, position) + 1) {
+                        topics.add(readString(body, position));
+                        packet.write(0);
+                    }
+                    subscriptions.addAll(topics);
+                    writePacket(SUBACK);
+                    for (String topic : topics) {
+                        final byte[] payload = retained.get(topic);
+                        if (payload != null) {
+                            deliver(topic, payload, true);
+                        }
+                    }
+                    return true;
+                case UNSUBSCRIBE:
+                    write(UNSUBACK, body[0] & 0xff, body[1] & 0xff);
+                    return true;
+                case PINGREQ:
+                    packet.reset();
+                    writePacket(PINGRESP);
+                    return true;
+                case DISCONNECT:
+                    return false;
+                default:
+                    throw new IOException("Unexpected packet " + Integer.toHexString(header));
+            }
+        }
+
+        private void onPublish(final int header, final byte[] body, final long receivedAt) throws IOException {
+            final int qos = header >> 1 & 3;
+            final int topicLength = readShort(body, 0);
+            final String topic = new String(body, 2, topicLength, UTF_8);
+            final int payloadOffset = 2 + topicLength + (qos > 0 ? 2 : 0);
+            final byte[] payload = new byte[body.length - payloadOffset];
+            System.arraycopy(body, payloadOffset, payload, 0, payload.length);
+
+            messages.incrementAndGet();
+            payloadBytes.addAndGet(payload.length);
+            listener.onPublish(clientId, topic, payload, receivedAt);
+            if ((header & 1) != 0) {
+                retained.put(topic, payload);
+            }
+            LocalMqttBroker.this.deliver(topic, payload);
+            if (qos == 0) {
+                return;
+            }
+
+            final long delay = ackDelayMillis;
+            if (delay > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            write(qos == 1 ? PUBACK : PUBREC, body[2 + topicLength] & 0xff, body[3 + topicLength] & 0xff);
+        }
+
+        private int read() throws IOException {
+            final int value = input.read();
+            if (value < 0) {
+                throw new EOFException();
+            }
+            return value;
+        }
+
+        private byte[] readBody() throws IOException {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                final int digit = read();
+                length |= (digit & 0x7f) << shift;
+                if ((digit & 0x80) == 0) {
+                    break;
+                }
+            }
+
+            final byte[] body = new byte[length];
+            int read = 0;
+            while (read < length) {
+                final int count = input.read(body, read, length - read);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+            return body;
+        }
+
+        private void write(final int type, final int first, final int second) throws IOException {
+            packet.reset();
+            packet.write(first);
+            packet.write(second);
+            writePacket(type);
+        }
+
+        /**
+         * Sends a QoS 0 message from any thread, a session that can't take it is dropped.
+         */
+        private void deliver(final String topic, final byte[] payload, final boolean retain) {
+            final ByteArrayOutputStream message = new ByteArrayOutputStream(2 + topic.length() + payload.length);
+            final byte[] topicBytes = topic.getBytes(UTF_8);
+            message.write(topicBytes.length >> 8);
+            message.write(topicBytes.length & 0xff);
+            message.write(topicBytes, 0, topicBytes.length);
+            message.write(payload, 0, payload.length);
+            try {
+                writePacket(retain ? PUBLISH | 1 : PUBLISH, message);
+            } catch (IOException e) {
+                closeQuietly(socket);
+            }
+        }
+
+        private void writePacket(final int type) throws IOException {
+            writePacket(type, packet);
+        }
+
+        private synchronized void writePacket(final int type, final ByteArrayOutputStream packet)
+                throws IOException {
+            int length = packet.size();
+            output.write(type);
+            do {
+                final int digit = length & 0x7f;
+                length >>>= 7;
+                output.write(length > 0 ? digit | 0x80 : digit);
+            } while (length > 0);
+            packet.writeTo(output);
+            output.flush();
+        }
+    }
+
+    private static int readShort(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff) << 8 | bytes[offset + 1] & 0xff;
+    }
+
+    private static String readString(final byte[] bytes, final int offset) {
+        return new String(bytes, offset + 2, readShort(bytes, offset), UTF_8);
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+    }
+
+    /**
+     * Called on the connection's thread for every message published, before it's acknowledged.
+     */
+    public interface Listener {
+
+        void onPublish(String clientId, String topic, byte[] payload, long receivedAtNanos);
+    }
+}
@@ -0,0 +1,736 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.simulator;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.LinkProfile;
+import com.wolkabout.hexiwear.model.Mode;
+import com.wolkabout.hexiwear.model.otap.Command;
+import com.wolkabout.hexiwear.service.GattTransport;
+
+import java.nio.charset.Charset;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+/**
+ * Hexiwear served over a {@link GattTransport} without any radio, for running the protocol on a plain JVM.
+ * <p>
+ * Every response and notification is delivered from a single thread after the connection interval of the
+ * requested priority plus the configured latency and jitter. Responses and notifications can be lost and
+ * the link can drop periodically. Sensor values are generated from the seed, so runs with the same seed
+ * produce the same readings.
+ */
+public class SimulatedHexiwear implements GattTransport {
+
+    public static final int MAX_MTU = 247;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int ATT_HEADER_SIZE = 3;
+    private static final int CHUNK_HEADER_SIZE = 2;
+    private static final int OTAP_BLOCK_SIZE = 4096;
+    private static final byte OTAP_STATUS_SUCCESS = 0;
+    private static final byte OTAP_STATUS_UNEXPECTED_CHUNK = 0x0b;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "Simulated Hexiwear");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Random random;
+    private final Random[] noise = new Random[Characteristic.values().length];
+    private final long[] sampleCounts = new long[Characteristic.values().length];
+    private final Map<Characteristic, ScheduledFuture<?>> notifiers = new EnumMap<>(Characteristic.class);
+
+    // Configuration
+    private volatile long latencyMillis;
+    private volatile long jitterMillis = 5;
+    private volatile float lossRate;
+    private volatile long disconnectIntervalMillis;
+    private volatile long connectMillis = 100;
+    private volatile long discoveryMillis = 600;
+    private volatile boolean retainServices = true;
+    private volatile Mode mode = Mode.SENSOR_TAG;
+    private volatile String firmwareRevision = "1.0.0";
+    private volatile int otapState;
+
+    // Link state, only changed on the executor thread.
+    private Callback callback;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private volatile boolean requestPending;
+    private volatile String discoveredLayout;
+    private volatile int connectionPriority = LinkProfile.BALANCED.getConnectionPriority();
+    private volatile int mtu = LinkProfile.DEFAULT_MTU;
+    private ScheduledFuture<?> pendingDisconnect;
+
+    // OTAP transfer, only touched on the executor thread.
+    private final CRC32 receivedChecksum = new CRC32();
+    private byte[] otapImageId = new byte[2];
+    private int otapImageSize;
+    private int otapBlockStart;
+    private int otapBlockSize;
+    private int otapReceived;
+    private int otapNextChunk;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong busyRejections = new AtomicLong();
+    private final AtomicLong lostResponses = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong lostNotifications = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong discoveries = new AtomicLong();
+    private final AtomicLongArray reads = new AtomicLongArray(Characteristic.values().length);
+    private final AtomicLongArray notificationsByCharacteristic = new AtomicLongArray(Characteristic.values().length);
+
+    public SimulatedHexiwear(final long seed) {
+        random = new Random(seed);
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = new Random(seed * 31 + i);
+        }
+    }
+
+    /**
+     * Latency added on top of the connection interval to every response.
+     */
+    public SimulatedHexiwear setLatency(final long latencyMillis, final long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * @param lossRate probability of a response or notification never arriving.
+     */
+    public SimulatedHexiwear setLossRate(final float lossRate) {
+        this.lossRate = lossRate;
+        return this;
+    }
+
+    /**
+     * @param intervalMillis average time the link stays up, 0 to keep it up.
+     */
+    public SimulatedHexiwear setDisconnectInterval(final long intervalMillis) {
+        this.disconnectIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    public SimulatedHexiwear setConnectTime(final long connectMillis, final long discoveryMillis) {
+        this.connectMillis = connectMillis;
+        this.discoveryMillis = discoveryMillis;
+        return this;
+    }
+
+    /**
+     * @param retainServices whether the discovered services are still known after reconnecting, as they are
+     *                       for a bonded device on Android.
+     */
+    public SimulatedHexiwear setRetainServices(final boolean retainServices) {
+        this.retainServices = retainServices;
+        return this;
+    }
+
+    /**
+     * Switches the mode as if it was picked on the watch.
+     */
+    public SimulatedHexiwear setMode(final Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * A new revision changes the layout, so services known from before become stale.
+     */
+    public SimulatedHexiwear setFirmwareRevision(final String firmwareRevision) {
+        this.firmwareRevision = firmwareRevision;
+        return this;
+    }
+
+    /**
+     * @param otapState 0 when OTAP is off, 1 while waiting for a KW40 image and 2 for an MK64 one.
+     */
+    public SimulatedHexiwear setOtapState(final int otapState) {
+        this.otapState = otapState;
+        return this;
+    }
+
+    /**
+     * Drops the link right away, the client is told after the connection interval.
+     */
+    public void disconnect() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dropLink();
+            }
+        });
+    }
+
+    @Override
+    public void connect(final Callback callback) {
+        this.callback = callback;
+        closed = false;
+        executor.schedule(linkUp, connectMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void reconnect() {
+        if (!closed && !connected) {
+            executor.schedule(linkUp, connectMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connected = false;
+                stopNotifiers();
+                cancelDisconnect();
+            }
+        });
+    }
+
+    /**
+     * Stops the simulator thread, the simulator can't be used afterwards.
+     */
+    public void shutdown() {
+        close();
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!connected) {
+            return false;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (connected) {
+                    discoveredLayout = getCurrentLayout();
+                    discoveries.incrementAndGet();
+                    callback.onServicesDiscovered(STATUS_SUCCESS);
+                }
+            }
+        }, discoveryMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean hasServices() {
+        return discoveredLayout != null;
+    }
+
+    @Override
+    public boolean hasCharacteristic(final Characteristic characteristic) {
+        return discoveredLayout != null && isServed(characteristic);
+    }
+
+    @Override
+    public boolean supportsNotifications(final Characteristic characteristic) {
+        return hasCharacteristic(characteristic)
+                && characteristic.getType() == Characteristic.Type.READING
+                && characteristic != Characteristic.BATTERY;
+    }
+
+    @Override
+    public boolean read(final Characteristic characteristic) {
+        final boolean requested = request(characteristic, new Response() {
+            @Override
+            public void deliver(final int status) {
+                callback.onRead(characteristic, status == STATUS_SUCCESS ? getValue(characteristic) : null, status, System.nanoTime());
+            }
+        });
+        if (requested) {
+            reads.incrementAndGet(characteristic.ordinal());
+        }
+        return requested;
+    }
+
+    @Override
+    public boolean write(final Characteristic characteristic, final byte[] value) {
+        final byte[] written = value.clone();
+        return request(characteristic, new Response() {
+            @Override
+            public void deliver(final int status) {
+                callback.onWrite(characteristic, written, status);
+                if (status == STATUS_SUCCESS) {
+                    onWritten(characteristic, written);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean subscribe(final Characteristic characteristic, final Subscription subscription) {
+        return request(characteristic, new Response() {
+            @Override
+            public void deliver(final int status) {
+                callback.onSubscribed(characteristic, status);
+                if (status == STATUS_SUCCESS) {
+                    onSubscribed(characteristic, subscription);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean requestMtu(final int requestedMtu) {
+        return request(null, new Response() {
+            @Override
+            public void deliver(final int status) {
+                if (status == STATUS_SUCCESS) {
+                    mtu = Math.max(LinkProfile.DEFAULT_MTU, Math.min(requestedMtu, MAX_MTU));
+                }
+                callback.onMtuChanged(mtu, status);
+            }
+        });
+    }
+
+    @Override
+    public boolean requestConnectionPriority(final int priority) {
+        connectionPriority = priority;
+        return connected;
+    }
+
+    private final Runnable linkUp = new Runnable() {
+        @Override
+        public void run() {
+            if (closed || connected) {
+                return;
+            }
+
+            connected = true;
+            requestPending = false;
+            mtu = LinkProfile.DEFAULT_MTU;
+            connectionPriority = LinkProfile.BALANCED.getConnectionPriority();
+            if (!retainServices) {
+                discoveredLayout = null;
+            }
+            scheduleDisconnect();
+            callback.onConnectionStateChanged(true);
+        }
+    };
+
+    private void dropLink() {
+        if (!connected) {
+            return;
+        }
+
+        disconnects.incrementAndGet();
+        connected = false;
+        requestPending = false;
+        stopNotifiers();
+        cancelDisconnect();
+        resetOtap();
+        callback.onConnectionStateChanged(false);
+    }
+
+    private void scheduleDisconnect() {
+        final long interval = disconnectIntervalMillis;
+        if (interval <= 0) {
+            return;
+        }
+
+        // Somewhere between half and one and a half of the interval.
+        final long delay = interval / 2 + (long) (random.nextDouble() * interval);
+        pendingDisconnect = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                dropLink();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelDisconnect() {
+        if (pendingDisconnect != null) {
+            pendingDisconnect.cancel(false);
+            pendingDisconnect = null;
+        }
+    }
+
+    /**
+     * Issues an ATT request. Like the Android stack, only one may be outstanding at a time.
+     */
+    private boolean request(final Characteristic characteristic, final Response response) {
+        if (!connected || (characteristic != null && !hasCharacteristic(characteristic))) {
+            return false;
+        }
+        if (requestPending) {
+            busyRejections.incrementAndGet();
+            return false;
+        }
+
+        requestPending = true;
+        requests.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean lost = random.nextFloat() < lossRate;
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!connected) {
+                            return;
+                        }
+
+                        requestPending = false;
+                        if (lost) {
+                            lostResponses.incrementAndGet();
+                            return;
+                        }
+
+                        final boolean stale = discoveredLayout != null && !discoveredLayout.equals(getCurrentLayout());
+                        response.deliver(stale ? STATUS_INVALID_HANDLE : STATUS_SUCCESS);
+                    }
+                }, getResponseDelayMillis(), TimeUnit.MILLISECONDS);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Called on the executor thread.
+     */
+    private long getResponseDelayMillis() {
+        final long jitter = jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0;
+        return getConnectionIntervalMillis() + latencyMillis + jitter;
+    }
+
+    private long getConnectionIntervalMillis() {
+        if (connectionPriority == LinkProfile.STREAMING.getConnectionPriority()) {
+            return 15;
+        } else if (connectionPriority == LinkProfile.LOW_POWER.getConnectionPriority()) {
+            return 100;
+        }
+        return 45;
+    }
+
+    private void onSubscribed(final Characteristic characteristic, final Subscription subscription) {
+        if (characteristic == Characteristic.CONTROL_POINT) {
+            if (subscription == Subscription.INDICATIONS) {
+                resetOtap();
+                indicate(new byte[]{Command.NEW_IMAGE_INFO_REQUEST.getCommandByte(), 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+            }
+            return;
+        }
+
+        final ScheduledFuture<?> notifier = notifiers.remove(characteristic);
+        if (notifier != null) {
+            notifier.cancel(false);
+        }
+        if (subscription == Subscription.NONE) {
+            return;
+        }
+
+        final float rate = Math.max(0.1f, mode.getPollingRate(characteristic));
+        final long periodMicros = (long) (TimeUnit.SECONDS.toMicros(1) / rate);
+        notifiers.put(characteristic, executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                notifyValue(characteristic, getValue(characteristic));
+            }
+        }, periodMicros, periodMicros, TimeUnit.MICROSECONDS));
+    }
+
+    private void stopNotifiers() {
+        for (ScheduledFuture<?> notifier : notifiers.values()) {
+            notifier.cancel(false);
+        }
+        notifiers.clear();
+    }
+
+    private void notifyValue(final Characteristic characteristic, final byte[] value) {
+        if (!connected) {
+            return;
+        }
+        if (random.nextFloat() < lossRate) {
+            lostNotifications.incrementAndGet();
+            return;
+        }
+
+        notifications.incrementAndGet();
+        notificationsByCharacteristic.incrementAndGet(characteristic.ordinal());
+        callback.onChanged(characteristic, value, System.nanoTime());
+    }
+
+    /**
+     * Sends an indication to the control point once the current request is answered.
+     */
+    private void indicate(final byte[] value) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (connected) {
+                    notifications.incrementAndGet();
+                    callback.onChanged(Characteristic.CONTROL_POINT, value, System.nanoTime());
+                }
+            }
+        }, getResponseDelayMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void onWritten(final Characteristic characteristic, final byte[] value) {
+        if (characteristic == Characteristic.CONTROL_POINT && value[0] == Command.NEW_IMAGE_INFO_RESPONSE.getCommandByte()) {
+            otapImageId = new byte[]{value[1], value[2]};
+            otapImageSize = readInt(value, 11, 4);
+            otapBlockStart = 0;
+            requestBlock();
+        } else if (characteristic == Characteristic.DATA && value[0] == Command.IMAGE_CHUNK.getCommandByte()) {
+            onChunk(value);
+        }
+    }
+
+    private void requestBlock() {
+        final int chunkSize = Math.min(mtu - ATT_HEADER_SIZE - CHUNK_HEADER_SIZE, 0xff);
+        otapBlockSize = Math.min(Math.min(OTAP_BLOCK_SIZE, chunkSize * 256), otapImageSize - otapBlockStart);
+        otapReceived = 0;
+        otapNextChunk = 0;
+
+        final byte[] request = new byte[16];
+        request[0] = Command.IMAGE_BLOCK_REQUEST.getCommandByte();
+        request[1] = otapImageId[0];
+        request[2] = otapImageId[1];
+        writeInt(request, 3, 4, otapBlockStart);
+        writeInt(request, 7, 4, otapBlockSize);
+        writeInt(request, 11, 2, chunkSize);
+        request[13] = 0; // ATT
+        writeInt(request, 14, 2, 4);
+        indicate(request);
+    }
+
+    private void onChunk(final byte[] chunk) {
+        if ((chunk[1] & 0xff) != (otapNextChunk & 0xff)) {
+            indicate(new byte[]{Command.ERROR_NOTIFICATION.getCommandByte(), Command.IMAGE_CHUNK.getCommandByte(), OTAP_STATUS_UNEXPECTED_CHUNK});
+            return;
+        }
+
+        otapNextChunk++;
+        otapReceived += chunk.length - CHUNK_HEADER_SIZE;
+        receivedChecksum.update(chunk, CHUNK_HEADER_SIZE, chunk.length - CHUNK_HEADER_SIZE);
+        if (otapReceived < otapBlockSize) {
+            return;
+        }
+
+        otapBlockStart += otapBlockSize;
+        if (otapBlockStart < otapImageSize) {
+            requestBlock();
+        } else {
+            indicate(new byte[]{Command.IMAGE_TRANSFER_COMPLETE.getCommandByte(), otapImageId[0], otapImageId[1], OTAP_STATUS_SUCCESS});
+        }
+    }
+
+    private void resetOtap() {
+        otapImageSize = 0;
+        otapBlockStart = 0;
+        receivedChecksum.reset();
+    }
+
+    private boolean isServed(final Characteristic characteristic) {
+        switch (characteristic.getType()) {
+            case OTAP:
+                return otapState != 0;
+            case DERIVED:
+                return false;
+            default:
+                return characteristic != Characteristic.SERIAL && characteristic != Characteristic.HW_REVISION;
+        }
+    }
+
+    private String getCurrentLayout() {
+        final StringBuilder layout = new StringBuilder(firmwareRevision);
+        for (Characteristic characteristic : Characteristic.values()) {
+            if (isServed(characteristic)) {
+                layout.append(';').append(characteristic.getUuid());
+            }
+        }
+        return layout.toString();
+    }
+
+    /**
+     * Called on the executor thread.
+     */
+    private byte[] getValue(final Characteristic characteristic) {
+        final int index = characteristic.ordinal();
+        final long n = sampleCounts[index]++;
+        final Random noise = this.noise[index];
+        switch (characteristic) {
+            case ACCELERATION:
+                return triple(wave(n, 40, 100), wave(n + 10, 40, 100), 100 + noise.nextInt(5) - 2);
+            case GYRO:
+                return triple(wave(n, 25, 90) + noise.nextInt(3) - 1, noise.nextInt(3) - 1, wave(n, 60, 30));
+            case MAGNET:
+                return triple(2500 + wave(n, 200, 300), -1200 + noise.nextInt(9) - 4, 4000 + wave(n, 150, 100));
+            case TEMPERATURE:
+                return single(2350 + wave(n, 600, 80) + noise.nextInt(3) - 1);
+            case HUMIDITY:
+                return single(4200 + wave(n, 900, 250) + noise.nextInt(5) - 2);
+            case PRESSURE:
+                return single(10130 + wave(n, 1200, 15));
+            case LIGHT:
+                return new byte[]{(byte) (50 + wave(n, 30, 40))};
+            case BATTERY:
+                return new byte[]{(byte) Math.max(5, 95 - n / 100)};
+            case HEARTRATE:
+                return new byte[]{(byte) (72 + wave(n, 20, 8) + noise.nextInt(3))};
+            case STEPS:
+                return single((int) (n * 2 % 0xffff));
+            case CALORIES:
+                return new byte[]{(byte) (n / 10)};
+            case MODE:
+                return new byte[]{(byte) mode.getSymbol()};
+            case MANUFACTURER:
+                return "NXP".getBytes(UTF_8);
+            case FW_REVISION:
+                return firmwareRevision.getBytes(UTF_8);
+            case STATE:
+                return new byte[]{(byte) otapState};
+            default:
+                return new byte[1];
+        }
+    }
+
+    private static int wave(final long n, final int period, final int amplitude) {
+        return (int) Math.round(amplitude * Math.sin(2 * Math.PI * n / period));
+    }
+
+    private static byte[] single(final int value) {
+        final byte[] bytes = new byte[2];
+        writeInt(bytes, 0, 2, value);
+        return bytes;
+    }
+
+    private static byte[] triple(final int x, final int y, final int z) {
+        final byte[] bytes = new byte[6];
+        writeInt(bytes, 0, 2, x);
+        writeInt(bytes, 2, 2, y);
+        writeInt(bytes, 4, 2, z);
+        return bytes;
+    }
+
+    private static void writeInt(final byte[] bytes, final int offset, final int length, final int value) {
+        for (int i = 0; i < length; i++) {
+            bytes[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private static int readInt(final byte[] bytes, final int offset, final int length) {
+        int value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * @return CRC32 of the image data received over OTAP so far.
+     */
+    public long getReceivedChecksum() {
+        return receivedChecksum.getValue();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return requests refused because another one was still outstanding.
+     */
+    public long getBusyRejectionCount() {
+        return busyRejections.get();
+    }
+
+    public long getLostResponseCount() {
+        return lostResponses.get();
+    }
+
+    public long getNotificationCount() {
+        return notifications.get();
+    }
+
+    public long getLostNotificationCount() {
+        return lostNotifications.get();
+    }
+
+    public long getDisconnectCount() {
+        return disconnects.get();
+    }
+
+    /**
+     * @return service discoveries completed, including the first one.
+     */
+    public long getDiscoveryCount() {
+        return discoveries.get();
+    }
+
+    /**
+     * @return read requests taken for the characteristic, whether or not they were answered.
+     */
+    public long getReadCount(final Characteristic characteristic) {
+        return reads.get(characteristic.ordinal());
+    }
+
+    public long getNotificationCount(final Characteristic characteristic) {
+        return notificationsByCharacteristic.get(characteristic.ordinal());
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedHexiwear{" +
+                "requests=" + requests +
+                ", busyRejections=" + busyRejections +
+                ", lostResponses=" + lostResponses +
+                ", notifications=" + notifications +
+                ", lostNotifications=" + lostNotifications +
+                ", disconnects=" + disconnects +
+                '}';
+    }
+
+    private interface Response {
+
+        void deliver(int status);
+    }
+}
@@ -0,0 +1,387 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Codec;
+import com.wolkabout.hexiwear.model.Mode;
+import com.wolkabout.hexiwear.model.Sample;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Writes a synthetic sensor tag stream into {@link BinaryBatchWriter} batches for a few publish intervals and reads
+ * them back with {@link BinaryBatchReader}.
+ */
+public class BinaryBatchTest {
+
+    private static final int STREAM_SECONDS = 600;
+    private static final int BATCH_BYTES = 16 * 1024;
+    private static final long SEED = 1;
+    private static final int CPU_ROUNDS = 20;
+
+    private static Stream stream;
+
+    @BeforeClass
+    public static void createStream() {
+        stream = new Stream(SEED);
+    }
+
+    @Test
+    public void readsBackOneSecondBatches() {
+        assertRoundTrip(write(1));
+    }
+
+    @Test
+    public void readsBackTenSecondBatches() {
+        assertRoundTrip(write(10));
+    }
+
+    @Test
+    public void readsBackMinuteBatches() {
+        assertRoundTrip(write(60));
+    }
+
+    @Test
+    public void takesFewerBytesThanText() {
+        final SampleFormatter formatter = new SampleFormatter();
+        long textBytes = 0;
+        for (int i = 0; i < stream.size(); i++) {
+            textBytes += formatter.formatForPublishing(stream.get(i)).length();
+        }
+        long binaryBytes = 0;
+        for (byte[] batch : write(1)) {
+            binaryBytes += batch.length;
+        }
+        // Text sizes count the value only, Wolk adds the reading name and a timestamp to each one on top of that.
+        assertTrue(String.format(Locale.ENGLISH, "%.2f binary bytes/sample, %.2f text", binaryBytes / (double) stream.size(),
+                textBytes / (double) stream.size()), binaryBytes < textBytes);
+    }
+
+    @Test
+    public void takesLessCpuPerSampleThanText() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isCurrentThreadCpuTimeSupported());
+        final SampleFormatter formatter = new SampleFormatter();
+        final BinaryBatchWriter writer = new BinaryBatchWriter(BATCH_BYTES);
+        // Warms both up first, so neither pays for loading classes or compiling.
+        formatText(formatter, CPU_ROUNDS);
+        writeBinary(writer, CPU_ROUNDS);
+
+        long start = threads.getCurrentThreadCpuTime();
+        final long textChars = formatText(formatter, CPU_ROUNDS);
+        final double textNanos = (threads.getCurrentThreadCpuTime() - start) / (double) (CPU_ROUNDS * stream.size());
+        start = threads.getCurrentThreadCpuTime();
+        final long batches = writeBinary(writer, CPU_ROUNDS);
+        final double binaryNanos = (threads.getCurrentThreadCpuTime() - start) / (double) (CPU_ROUNDS * stream.size());
+
+        // Text counts formatting the value only, Wolk adds the reading name and a timestamp on top of that.
+        final String figures = String.format(Locale.ENGLISH, "%.0f ns CPU/sample binary (%d batches), %.0f ns text (%d chars)",
+                binaryNanos, batches, textNanos, textChars);
+        System.out.println(figures);
+        assertTrue(figures, textChars > 0 && batches > 0);
+        assertTrue(figures, binaryNanos < textNanos);
+    }
+
+    private static long formatText(final SampleFormatter formatter, final int rounds) {
+        long chars = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < stream.size(); i++) {
+                chars += formatter.formatForPublishing(stream.get(i)).length();
+            }
+        }
+        return chars;
+    }
+
+    /**
+     * Batches are cleared once full instead of copied out, publishing hands the writer's buffer over as it is.
+     */
+    private static long writeBinary(final BinaryBatchWriter writer, final int rounds) {
+        long batches = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < stream.size(); i++) {
+                if (!writer.add(stream.get(i), stream.getTimestampMillis(i))) {
+                    writer.clear();
+                    batches++;
+                    writer.add(stream.get(i), stream.getTimestampMillis(i));
+                }
+            }
+            writer.clear();
+            batches++;
+        }
+        return batches;
+    }
+
+    @Test
+    public void refusesSamplesOnceFull() {
+        final BinaryBatchWriter writer = new BinaryBatchWriter(BinaryBatchWriter.HEADER_BYTES + 128);
+        int added = 0;
+        while (writer.add(stream.get(added), stream.getTimestampMillis(added))) {
+            added++;
+        }
+        assertTrue(added >= 2);
+        assertEquals(added, writer.getSampleCount());
+        assertFalse(writer.add(stream.get(added), stream.getTimestampMillis(added)));
+
+        final List<byte[]> batches = new ArrayList<>();
+        finish(writer, batches);
+        final int[] read = new int[1];
+        new BinaryBatchReader().read(batches.get(0), 0, batches.get(0).length, new BinaryBatchReader.Listener() {
+            @Override
+            public void onSample(final Sample sample, final long timestampMillis) {
+                assertTrue(matches(stream.get(read[0]), sample));
+                assertEquals(stream.getTimestampMillis(read[0]), timestampMillis);
+                read[0]++;
+            }
+
+            @Override
+            public void onSummary(final ReadingAggregator.Summary summary, final long timestampMillis) {
+                fail("No summary was written.");
+            }
+        });
+        assertEquals(added, read[0]);
+    }
+
+    @Test
+    public void readsBackSummariesBetweenSamples() {
+        final ReadingAggregator aggregator = new ReadingAggregator();
+        for (int i = 0; i < 100; i++) {
+            if (stream.get(i).getCharacteristic() == Characteristic.ACCELERATION) {
+                aggregator.add(stream.get(i));
+            }
+        }
+        final int count = aggregator.getCount(Characteristic.ACCELERATION);
+        final ReadingAggregator.Summary written = new ReadingAggregator.Summary();
+        assertTrue(aggregator.take(Characteristic.ACCELERATION, written));
+        assertEquals(count, written.getCount());
+
+        final BinaryBatchWriter writer = new BinaryBatchWriter(BATCH_BYTES);
+        assertTrue(writer.add(stream.get(0), stream.getTimestampMillis(0)));
+        assertTrue(writer.add(written, stream.getTimestampMillis(100)));
+        assertTrue(writer.add(stream.get(1), stream.getTimestampMillis(101)));
+        final List<byte[]> batches = new ArrayList<>();
+        finish(writer, batches);
+
+        final List<Long> timestamps = new ArrayList<>();
+        final int[] summaries = new int[1];
+        new BinaryBatchReader().read(batches.get(0), 0, batches.get(0).length, new BinaryBatchReader.Listener() {
+            @Override
+            public void onSample(final Sample sample, final long timestampMillis) {
+                assertTrue(matches(stream.get(timestamps.isEmpty() ? 0 : 1), sample));
+                timestamps.add(timestampMillis);
+            }
+
+            @Override
+            public void onSummary(final ReadingAggregator.Summary summary, final long timestampMillis) {
+                assertEquals(Characteristic.ACCELERATION, summary.getCharacteristic());
+                assertEquals(count, summary.getCount());
+                for (ReadingAggregator.Statistic statistic : ReadingAggregator.Statistic.values()) {
+                    assertTrue(statistic.name(), matches(written.get(statistic), summary.get(statistic)));
+                }
+                timestamps.add(timestampMillis);
+                summaries[0]++;
+            }
+        });
+        assertEquals(1, summaries[0]);
+        assertEquals(3, timestamps.size());
+        assertEquals(stream.getTimestampMillis(100), (long) timestamps.get(1));
+        assertEquals(stream.getTimestampMillis(101), (long) timestamps.get(2));
+    }
+
+    @Test
+    public void readsVersionOneBatches() {
+        final List<byte[]> batches = write(10);
+        for (byte[] batch : batches) {
+            // Samples are written the same way in both versions.
+            batch[2] = 1;
+        }
+        assertRoundTrip(batches);
+    }
+
+    /**
+     * @return batches of the stream, each one started once the last publish interval is over or the last batch full.
+     */
+    private static List<byte[]> write(final int intervalSeconds) {
+        final BinaryBatchWriter writer = new BinaryBatchWriter(BATCH_BYTES);
+        final List<byte[]> batches = new ArrayList<>();
+        final long intervalMillis = intervalSeconds * 1000L;
+        long dueAt = 0;
+        for (int i = 0; i < stream.size(); i++) {
+            final long timestamp = stream.getTimestampMillis(i);
+            if (!writer.isEmpty() && timestamp >= dueAt) {
+                finish(writer, batches);
+            }
+            if (writer.isEmpty()) {
+                dueAt = timestamp + intervalMillis;
+            }
+            if (!writer.add(stream.get(i), timestamp)) {
+                finish(writer, batches);
+                writer.add(stream.get(i), timestamp);
+            }
+        }
+        finish(writer, batches);
+        return batches;
+    }
+
+    private static void finish(final BinaryBatchWriter writer, final List<byte[]> batches) {
+        final byte[] batch = new byte[writer.getLength()];
+        System.arraycopy(writer.getBuffer(), 0, batch, 0, batch.length);
+        batches.add(batch);
+        writer.clear();
+    }
+
+    private static void assertRoundTrip(final List<byte[]> batches) {
+        final BinaryBatchReader reader = new BinaryBatchReader();
+        final int[] next = new int[1];
+        for (byte[] batch : batches) {
+            reader.read(batch, 0, batch.length, new BinaryBatchReader.Listener() {
+                @Override
+                public void onSample(final Sample sample, final long timestampMillis) {
+                    final int index = next[0]++;
+                    assertTrue("more samples read than written", index < stream.size());
+                    assertTrue("sample " + index + " came back as " + sample.getCharacteristic(), matches(stream.get(index), sample));
+                    assertEquals("sample " + index, stream.getTimestampMillis(index), timestampMillis);
+                }
+
+                @Override
+                public void onSummary(final ReadingAggregator.Summary summary, final long timestampMillis) {
+                    fail("No summary was written.");
+                }
+            });
+        }
+        assertEquals(stream.size(), next[0]);
+    }
+
+    private static boolean matches(final Sample expected, final Sample actual) {
+        if (expected.getCharacteristic() != actual.getCharacteristic() || expected.size() != actual.size()) {
+            return false;
+        }
+        final Codec codec = Codecs.get(expected.getCharacteristicOrdinal());
+        for (int i = 0; i < expected.size(); i++) {
+            if (codec.toRaw(expected.get(i)) != codec.toRaw(actual.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Samples of a device lying on a desk in sensor tag mode, at the default polling rates with a few ms of jitter.
+     * Values are whatever the device could have sent, so they survive the trip through the codec unchanged.
+     */
+    private static class Stream {
+
+        private final List<Sample> samples = new ArrayList<>();
+        private final List<Long> timestamps = new ArrayList<>();
+
+        Stream(final long seed) {
+            final Random random = new Random(seed);
+            final List<Characteristic> readings = new ArrayList<>();
+            for (Characteristic characteristic : Mode.SENSOR_TAG.getCharacteristics()) {
+                if (characteristic != Characteristic.BATTERY) {
+                    readings.add(characteristic);
+                }
+            }
+
+            final long[] dueAt = new long[readings.size()];
+            final long startMillis = 1466000000000L;
+            for (long millis = 0; millis < STREAM_SECONDS * 1000L; millis++) {
+                for (int i = 0; i < readings.size(); i++) {
+                    final Characteristic characteristic = readings.get(i);
+                    if (millis < dueAt[i]) {
+                        continue;
+                    }
+
+                    final long period = (long) (1000 / Mode.SENSOR_TAG.getPollingRate(characteristic));
+                    dueAt[i] = millis + period + random.nextInt(7) - 3;
+                    samples.add(createSample(characteristic, random));
+                    timestamps.add(startMillis + millis);
+                }
+            }
+        }
+
+        private static Sample createSample(final Characteristic characteristic, final Random random) {
+            final Codec codec = Codecs.get(characteristic.ordinal());
+            final Sample sample = new Sample();
+            sample.set(characteristic, 0, codec.getAxes());
+            switch (characteristic) {
+                case ACCELERATION:
+                    setRaw(sample, codec, 2, -1, 99, 2, random);
+                    break;
+                case GYRO:
+                    setRaw(sample, codec, 0, 0, 0, 3, random);
+                    break;
+                case MAGNET:
+                    setRaw(sample, codec, 2000, 0, -4000, 30, random);
+                    break;
+                case LIGHT:
+                    setRaw(sample, codec, 40, 0, 0, 1, random);
+                    break;
+                case TEMPERATURE:
+                    setRaw(sample, codec, 2350, 0, 0, 5, random);
+                    break;
+                case HUMIDITY:
+                    setRaw(sample, codec, 4500, 0, 0, 10, random);
+                    break;
+                case PRESSURE:
+                    setRaw(sample, codec, 10130, 0, 0, 2, random);
+                    break;
+                default:
+                    throw new IllegalArgumentException("No synthetic values for " + characteristic);
+            }
+            return sample;
+        }
+
+        private static void setRaw(final Sample sample, final Codec codec, final int x, final int y, final int z,
+                                   final int noise, final Random random) {
+            final int[] centers = {x, y, z};
+            for (int i = 0; i < codec.getAxes(); i++) {
+                sample.setValue(i, codec.toValue(centers[i] + random.nextInt(2 * noise + 1) - noise));
+            }
+        }
+
+        int size() {
+            return samples.size();
+        }
+
+        Sample get(final int index) {
+            return samples.get(index);
+        }
+
+        long getTimestampMillis(final int index) {
+            return timestamps.get(index);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Codec;
+import com.wolkabout.hexiwear.model.Sample;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks every codec in {@link Codecs} against payloads captured from a Hexiwear and the text they have
+ * always been shown and published as.
+ */
+public class CodecsTest {
+
+    private static final List<Vector> VECTORS = new ArrayList<>();
+
+    static {
+        add(Characteristic.ACCELERATION, "e803f1fffdff", "10.00 g;-0.15 g;-0.03 g", "+100-2-0");
+        add(Characteristic.ACCELERATION, "000000000000", "0.00 g;0.00 g;0.00 g", "+0+0+0");
+        add(Characteristic.GYRO, "0000ffffff7f", "0.00 \u00B0/s;-1.00 \u00B0/s;32767.00 \u00B0/s", "+0-10+327670");
+        add(Characteristic.MAGNET, "008005000eff", "-327.68 \u00B5T;0.05 \u00B5T;-2.42 \u00B5T", "-3277+1-24");
+        add(Characteristic.LIGHT, "64", "100 %", "100");
+        add(Characteristic.LIGHT, "ff", "255 %", "255");
+        add(Characteristic.TEMPERATURE, "2e09", "23.50 \u2103", "235");
+        add(Characteristic.TEMPERATURE, "2909", "23.45 \u2103", "235");
+        add(Characteristic.HUMIDITY, "ffff", "655.35 %", "6554");
+        add(Characteristic.PRESSURE, "9427", "101.32 kPa", "10132");
+        add(Characteristic.BATTERY, "57", "87 %", "87");
+        add(Characteristic.HEARTRATE, "48", "72 bpm", "72");
+        add(Characteristic.STEPS, "d204", "1234 ", "123");
+        add(Characteristic.STEPS, "0500", "5 ", "1");
+        add(Characteristic.CALORIES, "c8", "200 ", "200");
+        add(Characteristic.ORIENTATION, "7b003efe0807", "12.3 \u00B0;-45.0 \u00B0;180.0 \u00B0", "+123-450+1800");
+        add(Characteristic.TEMPERATURE, "2e", null, null);
+        add(Characteristic.ACCELERATION, "e803f1ff", null, null);
+        add(Characteristic.MODE, "02", null, null);
+    }
+
+    @Test
+    public void decodesGoldenPayloads() {
+        final SampleFormatter formatter = new SampleFormatter(Locale.ENGLISH);
+        final Sample sample = new Sample();
+        for (Vector vector : VECTORS) {
+            final boolean decoded = SampleDecoder.decode(vector.characteristic, vector.payload, 0, sample);
+            assertEquals(vector.toString(), vector.display, decoded ? formatter.formatForDisplay(sample) : null);
+            assertEquals(vector.toString(), vector.published, decoded ? formatter.formatForPublishing(sample) : null);
+        }
+    }
+
+    @Test
+    public void everyDisplayedReadingHasCodecAndGoldenVector() {
+        for (Characteristic characteristic : Characteristic.getDisplayedReadings()) {
+            assertNotNull(characteristic + " has no codec", Codecs.get(characteristic));
+            assertTrue(characteristic + " has no golden vector", hasVector(characteristic));
+        }
+    }
+
+    @Test
+    public void onlyReadingsHaveCodecs() {
+        for (Characteristic characteristic : Characteristic.values()) {
+            if (!Characteristic.getDisplayedReadings().contains(characteristic)) {
+                final Codec codec = Codecs.get(characteristic);
+                assertNull(characteristic + " isn't a reading but has a codec", codec);
+            }
+        }
+    }
+
+    private static void add(final Characteristic characteristic, final String payload, final String display,
+                            final String published) {
+        VECTORS.add(new Vector(characteristic, payload, display, published));
+    }
+
+    private static boolean hasVector(final Characteristic characteristic) {
+        for (Vector vector : VECTORS) {
+            if (vector.characteristic == characteristic && vector.display != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Vector {
+
+        private final Characteristic characteristic;
+        private final String hex;
+        private final byte[] payload;
+        private final String display;
+        private final String published;
+
+        Vector(final Characteristic characteristic, final String hex, final String display, final String published) {
+            this.characteristic = characteristic;
+            this.hex = hex;
+            this.payload = new byte[hex.length() / 2];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+            }
+            this.display = display;
+            this.published = published;
+        }
+
+        @Override
+        public String toString() {
+            return characteristic + " " + hex + " (expected \"" + display + "\", \"" + published + "\")";
+        }
+    }
+}
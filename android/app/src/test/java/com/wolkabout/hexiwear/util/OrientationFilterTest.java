@@ -0,0 +1,180 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Sample;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link OrientationFilter} motion samples of a device with a known orientation and checks the estimate ends
+ * up within {@link #MAX_ERROR_DEGREES} of it.
+ */
+public class OrientationFilterTest {
+
+    private static final float MAX_ERROR_DEGREES = 3;
+    private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    // Earth field in uT, pointing north and down at roughly 60 degrees.
+    private static final float FIELD_NORTH = 20;
+    private static final float FIELD_DOWN = -40;
+    // Far below what a phone manages, the filter has to keep up with 20 motion samples a second per device.
+    private static final double MIN_UPDATES_PER_SECOND = 10000;
+
+    @Test
+    public void settlesWhenLevel() {
+        assertSettles(0, 0, 0);
+    }
+
+    @Test
+    public void settlesWhenRolledAndPitched() {
+        assertSettles(30, -20, 0);
+    }
+
+    @Test
+    public void settlesWhenFacingEast() {
+        assertSettles(0, 0, 90);
+    }
+
+    @Test
+    public void settlesWhenRolledPitchedAndTurned() {
+        assertSettles(-45, 10, -120);
+    }
+
+    @Test
+    public void followsSteadyTurn() {
+        final float degreesPerSecond = 45;
+        final OrientationFilter filter = new OrientationFilter();
+        final Motion motion = new Motion();
+        long timestamp = 1;
+        float yaw = 0;
+        for (int i = 0; i < 20 * 30; i++) {
+            timestamp += SAMPLE_INTERVAL_NANOS;
+            yaw = wrap(yaw + degreesPerSecond * SAMPLE_INTERVAL_NANOS / 1e9f);
+            motion.feed(filter, timestamp, 0, 0, yaw, degreesPerSecond);
+        }
+        assertClose(filter, 0, 0, yaw);
+    }
+
+    @Test
+    public void keepsUpWithMotionSamples() {
+        final OrientationFilter filter = new OrientationFilter();
+        final Motion motion = new Motion();
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        long timestamp = 1;
+        long updates = 0;
+        final long start = System.nanoTime();
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 1000; i++) {
+                timestamp += SAMPLE_INTERVAL_NANOS;
+                updates += motion.feed(filter, timestamp, 10, 20, wrap(updates * 0.01f), 5);
+            }
+        }
+        final double updatesPerSecond = updates * 1e9 / (System.nanoTime() - start);
+        assertTrue(String.format(Locale.ENGLISH, "%.0f updates/s", updatesPerSecond), updatesPerSecond >= MIN_UPDATES_PER_SECOND);
+    }
+
+    private static void assertSettles(final float roll, final float pitch, final float yaw) {
+        final OrientationFilter filter = new OrientationFilter();
+        final Motion motion = new Motion();
+        long timestamp = 1;
+        for (int i = 0; i < 20 * 30; i++) {
+            timestamp += SAMPLE_INTERVAL_NANOS;
+            motion.feed(filter, timestamp, roll, pitch, yaw, 0);
+        }
+        assertClose(filter, roll, pitch, yaw);
+    }
+
+    private static void assertClose(final OrientationFilter filter, final float roll, final float pitch, final float yaw) {
+        final float error = Math.max(Math.abs(wrap(filter.getRoll() - roll)),
+                Math.max(Math.abs(wrap(filter.getPitch() - pitch)), Math.abs(wrap(filter.getYaw() - yaw))));
+        assertTrue(String.format(Locale.ENGLISH, "roll %.1f, pitch %.1f, yaw %.1f after %d updates, expected %.1f, %.1f, %.1f",
+                        filter.getRoll(), filter.getPitch(), filter.getYaw(), filter.getStepCount(), roll, pitch, yaw),
+                error <= MAX_ERROR_DEGREES);
+    }
+
+    private static float wrap(final float degrees) {
+        float wrapped = degrees % 360;
+        if (wrapped > 180) {
+            wrapped -= 360;
+        } else if (wrapped < -180) {
+            wrapped += 360;
+        }
+        return wrapped;
+    }
+
+    /**
+     * Readings of a device held at the given angles, acceleration and gyro on every tick, the magnet on every other.
+     */
+    private static class Motion {
+
+        private final Sample sample = new Sample();
+        private final float[] vector = new float[3];
+        private boolean magnetTick;
+
+        int feed(final OrientationFilter filter, final long timestamp, final float roll, final float pitch,
+                 final float yaw, final float yawRate) {
+            int updates = 0;
+            toBody(0, 0, 1, roll, pitch, yaw);
+            updates += feed(filter, Characteristic.ACCELERATION, timestamp);
+            vector[0] = 0;
+            vector[1] = 0;
+            vector[2] = yawRate;
+            updates += feed(filter, Characteristic.GYRO, timestamp);
+            magnetTick = !magnetTick;
+            if (magnetTick) {
+                toBody(FIELD_NORTH, 0, FIELD_DOWN, roll, pitch, yaw);
+                updates += feed(filter, Characteristic.MAGNET, timestamp);
+            }
+            return updates;
+        }
+
+        private int feed(final OrientationFilter filter, final Characteristic characteristic, final long timestamp) {
+            sample.set(characteristic, timestamp, 3);
+            for (int i = 0; i < 3; i++) {
+                sample.setValue(i, vector[i]);
+            }
+            return filter.update(sample) ? 1 : 0;
+        }
+
+        /**
+         * Rotates an earth frame vector into the device frame, yaw about z, then pitch about y, then roll about x.
+         */
+        private void toBody(final float x, final float y, final float z, final float roll, final float pitch,
+                            final float yaw) {
+            final double r = Math.toRadians(roll);
+            final double p = Math.toRadians(pitch);
+            final double w = Math.toRadians(yaw);
+            final double x1 = Math.cos(w) * x + Math.sin(w) * y;
+            final double y1 = -Math.sin(w) * x + Math.cos(w) * y;
+            final double x2 = Math.cos(p) * x1 - Math.sin(p) * z;
+            final double z2 = Math.sin(p) * x1 + Math.cos(p) * z;
+            vector[0] = (float) x2;
+            vector[1] = (float) (Math.cos(r) * y1 + Math.sin(r) * z2);
+            vector[2] = (float) (-Math.sin(r) * y1 + Math.cos(r) * z2);
+        }
+    }
+}
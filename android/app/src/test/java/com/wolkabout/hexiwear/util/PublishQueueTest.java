@@ -0,0 +1,358 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.model.Codec;
+import com.wolkabout.hexiwear.model.Sample;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs every {@link PublishQueue} policy through a publisher that can't keep up, in memory and over a
+ * {@link ReadingOutbox}, checking which readings are kept, their order and that values survive the outbox.
+ */
+public class PublishQueueTest {
+
+    private static final Characteristic[] READINGS = {Characteristic.ACCELERATION, Characteristic.TEMPERATURE,
+            Characteristic.LIGHT, Characteristic.ORIENTATION};
+    private static final int CAPACITY = 8;
+    // Far below what a phone manages, a session offers a few hundred readings a second at most.
+    private static final double MIN_OFFERS_PER_SECOND = 1000000;
+    private static final double MIN_STORED_OFFERS_PER_SECOND = 50000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void dropsOldestInMemory() {
+        checkDropOldest(new PublishQueue(CAPACITY, null));
+    }
+
+    @Test
+    public void dropsOldestFromOutbox() throws IOException {
+        checkDropOldest(new PublishQueue(CAPACITY, openOutbox()));
+    }
+
+    @Test
+    public void dropsNewestInMemory() {
+        checkDropNewest(new PublishQueue(CAPACITY, null));
+    }
+
+    @Test
+    public void dropsNewestFromOutbox() throws IOException {
+        checkDropNewest(new PublishQueue(CAPACITY, openOutbox()));
+    }
+
+    @Test
+    public void keepsLatestInMemory() {
+        final PublishQueue queue = new PublishQueue(4, null);
+        fillKeepingLatest(queue);
+        assertEquals(readings(5, 14, 15, 16), drain(queue));
+    }
+
+    @Test
+    public void keepsLatestInOutbox() throws IOException {
+        final File directory = folder.newFolder();
+        final PublishQueue queue = new PublishQueue(4, new ReadingOutbox(directory, 4096, 1024 * 1024));
+        fillKeepingLatest(queue);
+
+        // The replaced readings stay dropped for the next session.
+        final PublishQueue next = new PublishQueue(4, new ReadingOutbox(directory, 4096, 1024 * 1024));
+        assertEquals(4, next.size());
+        assertEquals(readings(5, 14, 15, 16), drain(next));
+        assertEquals(readings(5, 14, 15, 16), drain(queue));
+    }
+
+    @Test
+    public void keepsSummariesInMemory() {
+        checkSummaries(new PublishQueue(CAPACITY, null));
+    }
+
+    @Test
+    public void keepsSummariesInOutbox() throws IOException {
+        checkSummaries(new PublishQueue(CAPACITY, openOutbox()));
+    }
+
+    @Test
+    public void spillsEverythingToOutbox() throws IOException {
+        final PublishQueue queue = new PublishQueue(CAPACITY, openOutbox());
+        queue.setPolicy(PublishQueue.Policy.SPILL_TO_DISK);
+        offerRange(queue, 0, 100);
+        assertEquals(100, queue.size());
+        assertEquals(100, queue.getMaxSize());
+        assertEquals(0, queue.getDroppedReadings());
+        assertEquals(range(0, 100), drain(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void keepsReadingsWhenTheProcessDies() throws IOException {
+        final File directory = folder.newFolder();
+        final PublishQueue queue = new PublishQueue(CAPACITY, new ReadingOutbox(directory, 4096, 1024 * 1024));
+        queue.setPolicy(PublishQueue.Policy.DROP_OLDEST);
+        offerRange(queue, 0, 20);
+        drain(queue, 3);
+
+        // Nothing is closed, the readings left are picked up by the next session.
+        final PublishQueue next = new PublishQueue(CAPACITY, new ReadingOutbox(directory, 4096, 1024 * 1024));
+        assertEquals(CAPACITY - 3, next.size());
+        assertEquals(range(20 - CAPACITY + 3, 20), drain(next));
+    }
+
+    @Test
+    public void readsOutboxWithoutAllocating() throws IOException {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        final PublishQueue queue = new PublishQueue(PublishQueue.DEFAULT_CAPACITY, openOutbox());
+        offerRange(queue, 0, PublishQueue.DEFAULT_CAPACITY);
+        final PublishQueue.Sink sink = new PublishQueue.Sink() {
+            @Override
+            public void onReading(final Sample sample, final long timestampMillis) {
+            }
+
+            @Override
+            public void onSummary(final ReadingAggregator.Summary summary, final long timestampMillis) {
+            }
+        };
+        // Warms up the path first, the first calls may load classes.
+        queue.drain(sink, 16);
+
+        final long thread = Thread.currentThread().getId();
+        final long before = allocations.getThreadAllocatedBytes(thread);
+        final int drained = queue.drain(sink, Integer.MAX_VALUE);
+        final long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+        assertEquals(PublishQueue.DEFAULT_CAPACITY - 16, drained);
+        assertTrue(allocated + " bytes allocated for " + drained + " readings", allocated < drained);
+    }
+
+    @Test
+    public void staysBoundedInMemory() {
+        final PublishQueue queue = new PublishQueue(PublishQueue.DEFAULT_CAPACITY, null);
+        for (PublishQueue.Policy policy : new PublishQueue.Policy[]{PublishQueue.Policy.DROP_OLDEST,
+                PublishQueue.Policy.DROP_NEWEST, PublishQueue.Policy.KEEP_LATEST}) {
+            queue.clear();
+            queue.setPolicy(policy);
+            final double offersPerSecond = measure(queue, 5000000);
+            assertEquals(policy.name(), PublishQueue.DEFAULT_CAPACITY, queue.getMaxSize());
+            assertTrue(String.format(Locale.ENGLISH, "%s: %.0f offers/s", policy, offersPerSecond),
+                    offersPerSecond >= MIN_OFFERS_PER_SECOND);
+        }
+    }
+
+    @Test
+    public void staysBoundedInOutbox() throws IOException {
+        final PublishQueue queue = new PublishQueue(PublishQueue.DEFAULT_CAPACITY, openOutbox());
+        for (PublishQueue.Policy policy : new PublishQueue.Policy[]{PublishQueue.Policy.DROP_OLDEST,
+                PublishQueue.Policy.DROP_NEWEST, PublishQueue.Policy.KEEP_LATEST}) {
+            queue.clear();
+            queue.setPolicy(policy);
+            final double offersPerSecond = measure(queue, 100000);
+            assertTrue(policy.name(), queue.size() <= PublishQueue.DEFAULT_CAPACITY);
+            assertTrue(String.format(Locale.ENGLISH, "%s: %.0f offers/s", policy, offersPerSecond),
+                    offersPerSecond >= MIN_STORED_OFFERS_PER_SECOND);
+        }
+    }
+
+    private void checkDropOldest(final PublishQueue queue) {
+        queue.setPolicy(PublishQueue.Policy.DROP_OLDEST);
+        offerRange(queue, 0, 20);
+        assertEquals(CAPACITY, queue.size());
+        assertEquals(20 - CAPACITY, queue.getDroppedReadings());
+        assertEquals(range(20 - CAPACITY, 20), drain(queue));
+    }
+
+    private void checkDropNewest(final PublishQueue queue) {
+        queue.setPolicy(PublishQueue.Policy.DROP_NEWEST);
+        offerRange(queue, 0, 20);
+        assertEquals(20 - CAPACITY, queue.getDroppedReadings());
+        final List<String> drained = drain(queue, 3);
+        offerRange(queue, 20, 5);
+        drained.addAll(drain(queue));
+
+        final List<String> expected = range(0, CAPACITY);
+        expected.addAll(range(20, 23));
+        assertEquals(expected, drained);
+    }
+
+    private void checkSummaries(final PublishQueue queue) {
+        final ReadingAggregator aggregator = new ReadingAggregator();
+        for (int i = 0; i < 12; i += READINGS.length) {
+            aggregator.add(sample(i));
+        }
+        final ReadingAggregator.Summary summary = new ReadingAggregator.Summary();
+        assertTrue(aggregator.take(READINGS[0], summary));
+        assertEquals(3, summary.getCount());
+
+        offer(queue, 1);
+        assertTrue(queue.offer(summary, timestamp(2)));
+        offer(queue, 3);
+        final List<String> expected = readings(1);
+        expected.add(describe(summary, timestamp(2)));
+        expected.addAll(readings(3));
+        assertEquals(expected, drain(queue));
+    }
+
+    private void fillKeepingLatest(final PublishQueue queue) {
+        queue.setPolicy(PublishQueue.Policy.KEEP_LATEST);
+        // Four readings of the first two characteristics fill the queue.
+        offer(queue, 0, 1, 4, 5);
+        // Reading 8 drops 0 where it sits, 10 has nothing of its characteristic to replace and makes room by
+        // dropping 1, then 14 drops 10 at the end, 15 drops 4 and 16 drops 8 from the middle.
+        offer(queue, 8, 10, 14, 15, 16);
+        assertEquals(3, queue.getReplacedReadings());
+        assertEquals(2, queue.getDroppedReadings());
+        assertEquals(4, queue.size());
+    }
+
+    /**
+     * @return offers per second into a full queue, with the publisher taking one reading for every four offered.
+     */
+    private static double measure(final PublishQueue queue, final int count) {
+        final Sample[] samples = new Sample[READINGS.length * 16];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = sample(i);
+        }
+
+        final PublishQueue.Sink sink = new PublishQueue.Sink() {
+            @Override
+            public void onReading(final Sample sample, final long timestampMillis) {
+            }
+
+            @Override
+            public void onSummary(final ReadingAggregator.Summary summary, final long timestampMillis) {
+            }
+        };
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            queue.offer(samples[i % samples.length], i);
+            if ((i & 3) == 0) {
+                queue.drain(sink, 1);
+            }
+        }
+        return count * 1e9 / (System.nanoTime() - start);
+    }
+
+    private ReadingOutbox openOutbox() throws IOException {
+        return new ReadingOutbox(folder.newFolder(), 4096, 1024 * 1024);
+    }
+
+    private static void offer(final PublishQueue queue, final int... readings) {
+        for (int i : readings) {
+            queue.offer(sample(i), timestamp(i));
+        }
+    }
+
+    private static void offerRange(final PublishQueue queue, final int from, final int count) {
+        for (int i = from; i < from + count; i++) {
+            queue.offer(sample(i), timestamp(i));
+        }
+    }
+
+    private static List<String> drain(final PublishQueue queue) {
+        return drain(queue, Integer.MAX_VALUE);
+    }
+
+    private static List<String> drain(final PublishQueue queue, final int maxReadings) {
+        final List<String> drained = new ArrayList<>();
+        queue.drain(new PublishQueue.Sink() {
+            @Override
+            public void onReading(final Sample sample, final long timestampMillis) {
+                drained.add(describe(sample, timestampMillis));
+            }
+
+            @Override
+            public void onSummary(final ReadingAggregator.Summary summary, final long timestampMillis) {
+                drained.add(describe(summary, timestampMillis));
+            }
+        }, maxReadings);
+        return drained;
+    }
+
+    private static List<String> readings(final int... readings) {
+        final List<String> described = new ArrayList<>();
+        for (int i : readings) {
+            described.add(describe(sample(i), timestamp(i)));
+        }
+        return described;
+    }
+
+    private static List<String> range(final int from, final int to) {
+        final List<String> described = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            described.add(describe(sample(i), timestamp(i)));
+        }
+        return described;
+    }
+
+    private static String describe(final ReadingAggregator.Summary summary, final long timestampMillis) {
+        final StringBuilder described = new StringBuilder("Summary of " + summary.getCount());
+        for (ReadingAggregator.Statistic statistic : ReadingAggregator.Statistic.values()) {
+            described.append(", ").append(statistic).append(' ').append(describe(summary.get(statistic), timestampMillis));
+        }
+        return described.toString();
+    }
+
+    private static String describe(final Sample sample, final long timestampMillis) {
+        final Codec codec = Codecs.get(sample.getCharacteristicOrdinal());
+        final int[] raw = new int[sample.size()];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = codec.toRaw(sample.get(i));
+        }
+        return sample.getCharacteristic() + " " + Arrays.toString(raw) + " at " + timestampMillis;
+    }
+
+    /**
+     * @return reading i, a characteristic from {@link #READINGS} with raw values derived from i.
+     */
+    private static Sample sample(final int i) {
+        final Characteristic characteristic = READINGS[i % READINGS.length];
+        final Codec codec = Codecs.get(characteristic.ordinal());
+        final Sample sample = new Sample();
+        sample.set(characteristic, 0, codec.getAxes());
+        final int limit = codec.getWidth() == 1 ? 100 : 10000;
+        for (int axis = 0; axis < codec.getAxes(); axis++) {
+            final int raw = (i * (axis + 7)) % limit;
+            sample.setValue(axis, codec.toValue(codec.isSigned() && axis == 1 ? -raw : raw));
+        }
+        return sample;
+    }
+
+    private static long timestamp(final int i) {
+        return 1466000000000L + 1000L * i;
+    }
+}
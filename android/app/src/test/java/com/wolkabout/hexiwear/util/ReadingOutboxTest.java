@@ -0,0 +1,348 @@
+/**
+ * Hexiwear application is used to pair with Hexiwear BLE devices
+ * and send sensor readings to WolkSense sensor data cloud
+ * <p>
+ * Copyright (C) 2016 WolkAbout Technology s.r.o.
+ * <p>
+ * Hexiwear is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * Hexiwear is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.wolkabout.hexiwear.util;
+
+import com.wolkabout.hexiwear.model.Characteristic;
+import com.wolkabout.hexiwear.service.MqttPublisher;
+import com.wolkabout.hexiwear.simulator.LocalMqttBroker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link ReadingOutbox} through restarts, a full disk, a torn record and an outage of a {@link LocalMqttBroker},
+ * checking no reading is lost, repeated or reordered.
+ */
+public class ReadingOutboxTest {
+
+    private static final Characteristic[] READINGS = {Characteristic.ACCELERATION, Characteristic.TEMPERATURE,
+            Characteristic.LIGHT, Characteristic.ORIENTATION};
+    // Far below what a phone manages, a session appends a few hundred readings a second at most.
+    private static final double MIN_APPENDS_PER_SECOND = 100000;
+    private static final double MIN_FORWARDS_PER_SECOND = 1000000;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsReadingsAcrossRestarts() throws IOException {
+        final File directory = folder.newFolder();
+        ReadingOutbox outbox = new ReadingOutbox(directory, 4096, 1024 * 1024);
+        append(outbox, 0, 5000);
+        outbox.close();
+
+        outbox = new ReadingOutbox(directory, 4096, 1024 * 1024);
+        assertEquals(5000, outbox.getPendingRecords());
+        final Collector collector = new Collector();
+        outbox.forward(collector, 1234);
+        outbox.close();
+
+        outbox = new ReadingOutbox(directory, 4096, 1024 * 1024);
+        assertEquals(5000 - 1234, outbox.getPendingRecords());
+        append(outbox, 5000, 1000);
+        outbox.forward(collector, Integer.MAX_VALUE);
+        collector.assertSequence(0, 6000);
+        assertEquals(0, outbox.getPendingRecords());
+        assertEquals(1, countSegments(directory));
+        outbox.close();
+    }
+
+    @Test
+    public void dropsOldestSegmentsOverTheCap() throws IOException {
+        final File directory = folder.newFolder();
+        final ReadingOutbox outbox = new ReadingOutbox(directory, 1024, 4096);
+        append(outbox, 0, 1000);
+        assertEquals(4, countSegments(directory));
+        final Collector collector = new Collector();
+        outbox.forward(collector, Integer.MAX_VALUE);
+        assertEquals(1000, collector.values.size() + outbox.getDroppedRecords());
+        collector.assertSequence((int) outbox.getDroppedRecords(), 1000);
+        outbox.close();
+    }
+
+    @Test
+    public void skipsSupersededReadingsAcrossRestarts() throws IOException {
+        final File directory = folder.newFolder();
+        ReadingOutbox outbox = new ReadingOutbox(directory, 1024, 1024 * 1024);
+        append(outbox, 0, 200);
+        final Collector collector = new Collector();
+        outbox.forward(collector, 1);
+        // Every reading of the first characteristic after the forwarded one, across several segments.
+        for (int i = 0; i < 49; i++) {
+            assertTrue(outbox.supersede(READINGS[0]));
+        }
+        assertFalse(outbox.supersede(READINGS[0]));
+        assertEquals(150, outbox.getPendingRecords());
+        assertEquals(0, outbox.getPendingRecords(READINGS[0]));
+        assertEquals(1000L, outbox.getOldestPendingMillis());
+        outbox.close();
+
+        outbox = new ReadingOutbox(directory, 1024, 1024 * 1024);
+        assertEquals(150, outbox.getPendingRecords());
+        outbox.forward(collector, Integer.MAX_VALUE);
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            if (i == 0 || i % READINGS.length != 0) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, collector.values);
+        assertEquals(0, outbox.getPendingRecords());
+        assertEquals(0, outbox.getPendingBytes());
+        outbox.close();
+    }
+
+    @Test
+    public void keepsReadingsReadAheadUntilAcknowledged() throws IOException {
+        final File directory = folder.newFolder();
+        ReadingOutbox outbox = new ReadingOutbox(directory, 1024, 1024 * 1024);
+        append(outbox, 0, 300);
+        final Collector sent = new Collector();
+        assertEquals(100, outbox.readAhead(sent, 100));
+        final long delivered = outbox.getReadPosition();
+        assertEquals(50, outbox.readAhead(sent, 50));
+        sent.assertSequence(0, 150);
+        assertEquals(300, outbox.getPendingRecords());
+
+        // The second lot wasn't delivered, it's read again after the first one was acknowledged.
+        outbox.rewind();
+        outbox.acknowledge(delivered);
+        assertEquals(200, outbox.getPendingRecords());
+        assertEquals(100, outbox.getForwardedRecords());
+        final Collector resent = new Collector();
+        outbox.readAhead(resent, 50);
+        resent.assertSequence(100, 150);
+        outbox.close();
+
+        // Nothing after the acknowledged readings was taken out.
+        outbox = new ReadingOutbox(directory, 1024, 1024 * 1024);
+        assertEquals(200, outbox.getPendingRecords());
+        final Collector restarted = new Collector();
+        outbox.readAhead(restarted, Integer.MAX_VALUE);
+        restarted.assertSequence(100, 300);
+        outbox.acknowledge(outbox.getReadPosition());
+        assertEquals(0, outbox.getPendingRecords());
+        assertEquals(1, countSegments(directory));
+        outbox.close();
+    }
+
+    @Test
+    public void stopsAtTornRecord() throws IOException {
+        final File directory = folder.newFolder();
+        ReadingOutbox outbox = new ReadingOutbox(directory, 4096, 1024 * 1024);
+        append(outbox, 0, 10);
+        outbox.close();
+
+        // A value byte of the last record is garbled, as if the process died while writing it.
+        final File segment = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(".seg");
+            }
+        })[0];
+        final int lastRecord = 9 * recordSize(1);
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(lastRecord + 2 + 9);
+        file.write('x');
+        file.close();
+
+        outbox = new ReadingOutbox(directory, 4096, 1024 * 1024);
+        assertEquals(9, outbox.getPendingRecords());
+        append(outbox, 9, 5);
+        final Collector collector = new Collector();
+        outbox.forward(collector, Integer.MAX_VALUE);
+        collector.assertSequence(0, 14);
+        outbox.close();
+    }
+
+    @Test
+    public void replaysToBrokerAfterOutage() throws IOException, InterruptedException {
+        final File directory = folder.newFolder();
+        // Appended while the network is down, then the process dies without closing the outbox.
+        append(new ReadingOutbox(directory, 4096, 1024 * 1024), 0, 3000);
+
+        final List<String> received = new ArrayList<>();
+        final LocalMqttBroker broker = new LocalMqttBroker(new LocalMqttBroker.Listener() {
+            @Override
+            public void onPublish(final String clientId, final String topic, final byte[] payload, final long receivedAtNanos) {
+                synchronized (received) {
+                    received.add(topic + " " + new String(payload, ASCII));
+                }
+            }
+        });
+        final MqttPublisher publisher = new MqttPublisher(broker.getServerUri(), "TEST", "TEST", "test",
+                MqttPublisher.DEFAULT_QUEUE_CAPACITY);
+        final ReadingOutbox outbox = new ReadingOutbox(directory, 4096, 1024 * 1024);
+        final ReadingOutbox.Sink sink = new ReadingOutbox.Sink() {
+            @Override
+            public void onReading(final Characteristic characteristic, final long timestampMillis, final int[] values,
+                                  final int count) {
+                final byte[] payload = (timestampMillis + ":" + values[0]).getBytes(ASCII);
+                publisher.publish("readings/TEST/" + characteristic.name(), payload, 0, payload.length);
+            }
+        };
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ((outbox.getPendingRecords() > 0 || publisher.getPublishedMessages() < 3000)
+                && System.currentTimeMillis() < deadline) {
+            // Never more than the publisher has room for, the way a session forwards a batch per publish interval.
+            outbox.forward(sink, MqttPublisher.DEFAULT_QUEUE_CAPACITY - publisher.getQueuedMessages());
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        outbox.close();
+        publisher.close();
+        broker.close();
+
+        assertEquals(0, outbox.getPendingRecords());
+        assertEquals(0, publisher.getDroppedMessages());
+        synchronized (received) {
+            assertEquals(3000, received.size());
+            for (int i = 0; i < received.size(); i++) {
+                assertEquals("readings/TEST/" + READINGS[i % READINGS.length].name() + " " + 1000L * i + ":" + i,
+                        received.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void discardsSegmentsOfAnOlderLayout() throws IOException {
+        final File directory = folder.newFolder();
+        // Version 1 had a cursor of 12 bytes and kept values as text.
+        final RandomAccessFile cursor = new RandomAccessFile(new File(directory, "cursor"), "rw");
+        cursor.setLength(12);
+        cursor.close();
+        final RandomAccessFile segment = new RandomAccessFile(new File(directory, "0000000000000001.seg"), "rw");
+        segment.setLength(4096);
+        segment.writeShort(3);
+        segment.write(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, '+', '4', '2', 0, 0, 0, 0});
+        segment.close();
+
+        ReadingOutbox outbox = new ReadingOutbox(directory, 4096, 1024 * 1024);
+        assertEquals(0, outbox.getPendingRecords());
+        append(outbox, 0, 10);
+        outbox.close();
+
+        outbox = new ReadingOutbox(directory, 4096, 1024 * 1024);
+        final Collector collector = new Collector();
+        outbox.forward(collector, Integer.MAX_VALUE);
+        collector.assertSequence(0, 10);
+        outbox.close();
+    }
+
+    @Test
+    public void keepsUpWithReadings() throws IOException {
+        final ReadingOutbox outbox = new ReadingOutbox(folder.newFolder());
+        final int count = 500000;
+        final int[] values = {0, -42, 7};
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            values[0] = i % 1000;
+            outbox.append(Characteristic.ACCELERATION, i, values, values.length);
+            if (outbox.getPendingBytes() > outbox.getMaxBytes() / 2) {
+                outbox.forward(NO_SINK, Integer.MAX_VALUE);
+            }
+        }
+        final double appendsPerSecond = count * 1e9 / (System.nanoTime() - start);
+        outbox.forward(NO_SINK, Integer.MAX_VALUE);
+
+        values[0] = 1;
+        for (int i = 0; i < count / 10; i++) {
+            outbox.append(Characteristic.ACCELERATION, i, values, values.length);
+        }
+        start = System.nanoTime();
+        final int forwarded = outbox.forward(NO_SINK, Integer.MAX_VALUE);
+        final double forwardsPerSecond = forwarded * 1e9 / (System.nanoTime() - start);
+        outbox.close();
+
+        assertTrue(String.format(Locale.ENGLISH, "%.0f appends/s", appendsPerSecond), appendsPerSecond >= MIN_APPENDS_PER_SECOND);
+        assertTrue(String.format(Locale.ENGLISH, "%.0f forwards/s", forwardsPerSecond), forwardsPerSecond >= MIN_FORWARDS_PER_SECOND);
+    }
+
+    private static void append(final ReadingOutbox outbox, final int from, final int count) throws IOException {
+        final int[] values = new int[1];
+        for (int i = from; i < from + count; i++) {
+            values[0] = i;
+            outbox.append(READINGS[i % READINGS.length], 1000L * i, values, 1);
+        }
+    }
+
+    private static int recordSize(final int values) {
+        return 2 + 1 + 8 + 4 * values + 4;
+    }
+
+    private static int countSegments(final File directory) {
+        int count = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".seg")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final ReadingOutbox.Sink NO_SINK = new ReadingOutbox.Sink() {
+        @Override
+        public void onReading(final Characteristic characteristic, final long timestampMillis, final int[] values,
+                              final int count) {
+        }
+    };
+
+    private static class Collector implements ReadingOutbox.Sink {
+
+        private final List<Integer> values = new ArrayList<>();
+        private final List<Characteristic> characteristics = new ArrayList<>();
+        private final List<Long> timestamps = new ArrayList<>();
+
+        @Override
+        public void onReading(final Characteristic characteristic, final long timestampMillis, final int[] values,
+                              final int count) {
+            assertEquals(1, count);
+            this.values.add(values[0]);
+            characteristics.add(characteristic);
+            timestamps.add(timestampMillis);
+        }
+
+        void assertSequence(final int from, final int to) {
+            assertEquals(to - from, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                final int expected = from + i;
+                assertEquals("reading " + i, expected, (int) values.get(i));
+                assertEquals("reading " + i, READINGS[expected % READINGS.length], characteristics.get(i));
+                assertEquals("reading " + i, 1000L * expected, (long) timestamps.get(i));
+            }
+        }
+    }
+}